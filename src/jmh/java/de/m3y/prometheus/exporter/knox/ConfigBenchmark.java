@@ -0,0 +1,28 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks config helpers used per probe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+    @Param({
+            "jdbc:hive2://knox-hive-server:10000/default",
+            "jdbc:hive2://knox-hive-server:10000/default;ssl=true;sslTrustStore=/path/to/truststore.jks;"
+                    + "trustStorePassword=secret;transportMode=http;httpPath=gateway/default/hive"
+    })
+    public String jdbcUrl;
+
+    @Benchmark
+    public String escapeJdbcUrl() {
+        return Config.HiveService.escapeJdbcUrl(jdbcUrl);
+    }
+}
@@ -0,0 +1,102 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the collect path for a number of stub targets, without any backend.
+ * <p>
+ * Run with allocation profiling: mvn -Pbenchmark test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KnoxCollectorBenchmark {
+    @Param({"10", "100", "1000"})
+    public int targets;
+
+    @Param({"SUMMARY", "HISTOGRAM"})
+    public Config.MetricType opsDurationType;
+
+    private KnoxCollector knoxCollector;
+    private List<KnoxCollector.AbstractBaseAction> actions;
+    private final List<CustomExecutor.TimedFutureTask<Boolean>> futures = new ArrayList<>();
+    private List<Collector.MetricFamilySamples> samples;
+
+    @Setup
+    public void setUp() {
+        final Config config = new Config();
+        config.getOpsDuration().setType(opsDurationType);
+        knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+
+        final List<KnoxCollector.AbstractBaseAction> stubActions = new ArrayList<>();
+        for (int i = 0; i < targets; i++) {
+            // Every tenth target fails
+            stubActions.add(new StubAction("/path-" + i, i % 10 == 0
+                    ? KnoxCollector.AbstractBaseAction.Status.ERROR_OTHER
+                    : KnoxCollector.AbstractBaseAction.Status.SUCCESS));
+        }
+        knoxCollector.setActions(stubActions);
+        actions = knoxCollector.getActions();
+
+        for (KnoxCollector.AbstractBaseAction action : actions) {
+            final CustomExecutor.TimedFutureTask<Boolean> future = new CustomExecutor.TimedFutureTask<>(action);
+            future.run();
+            futures.add(future);
+        }
+        samples = knoxCollector.collect();
+    }
+
+    @TearDown
+    public void tearDown() {
+        knoxCollector.shutdown();
+    }
+
+    /**
+     * Full scrape, including a probe cycle of all stub targets.
+     */
+    @Benchmark
+    public List<Collector.MetricFamilySamples> collect() {
+        return knoxCollector.collect();
+    }
+
+    /**
+     * Records the results of a probe cycle.
+     */
+    @Benchmark
+    public void updateMetrics() {
+        for (int i = 0; i < targets; i++) {
+            knoxCollector.updateMetrics(futures.get(i), actions.get(i));
+        }
+    }
+
+    @Benchmark
+    public void setLabelStatus(Blackhole blackhole) {
+        for (KnoxCollector.AbstractBaseAction action : actions) {
+            action.setLabelStatus(KnoxCollector.AbstractBaseAction.Status.SUCCESS);
+            blackhole.consume(action.getLabels());
+        }
+    }
+
+    /**
+     * Text exposition of the collected samples.
+     */
+    @Benchmark
+    public String writeTextFormat() throws IOException {
+        final StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, Collections.enumeration(samples));
+        return writer.toString();
+    }
+}
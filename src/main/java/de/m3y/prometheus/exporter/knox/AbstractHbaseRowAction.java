@@ -0,0 +1,31 @@
+package de.m3y.prometheus.exporter.knox;
+
+/**
+ * HBase canary action accessing the canary row.
+ */
+abstract class AbstractHbaseRowAction extends KnoxCollector.AbstractKnoxRequestAction {
+    protected final String table;
+    // Family and qualifier, which is null if not given
+    protected final String[] column;
+    protected final String rowKey;
+
+    AbstractHbaseRowAction(KnoxCollector collector, String action, String knoxUrl, String table, String column,
+                           String rowKey, String username, String password, int timeout) {
+        collector.super(action, knoxUrl, username, password, table, timeout);
+        this.table = table;
+        this.column = splitColumn(column);
+        this.rowKey = rowKey;
+    }
+
+    /**
+     * Splits a column into family and qualifier.
+     *
+     * @param column the column, as 'family:qualifier' or 'family'.
+     * @return the family and qualifier, which is null if not given.
+     */
+    private static String[] splitColumn(String column) {
+        final int separator = column.indexOf(':');
+        return separator < 0 ? new String[]{column, null}
+                : new String[]{column.substring(0, separator), column.substring(separator + 1)};
+    }
+}
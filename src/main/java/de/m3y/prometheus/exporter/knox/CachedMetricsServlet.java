@@ -0,0 +1,266 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes metrics like the Prometheus MetricsServlet, but serializes the probe results of each snapshot only once.
+ * <p>
+ * Scrape requests waiting for a probe cycle get suspended using the Servlet async API,
+ * so no request thread is parked for the probe duration.
+ * A scrape waiting longer than the scrape timeout gets a 503 (Service Unavailable).
+ * <p>
+ * While the snapshot generation is unchanged (eg between two background probe cycles),
+ * all scrapes get the same pre-serialized probe results, for each of text format 0.0.4 and OpenMetrics.
+ * The registry, holding metrics changing independently of probe cycles (eg result ages or JVM metrics),
+ * gets collected and serialized on each request.
+ * Scrapes selecting metrics by name[] or without a snapshot generation
+ * (eg probing on scrape request) also collect and serialize the probe results on each request.
+ */
+public class CachedMetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedMetricsServlet.class);
+
+    /**
+     * Generation for collecting and serializing on each request.
+     */
+    static final long NO_GENERATION = -1L;
+
+    private static final byte[] OPENMETRICS_EOF = "# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Collected probe results of a snapshot generation, with the lazily serialized expositions per content type.
+     */
+    private static final class Snapshot {
+        private final long generation;
+        private final List<Collector.MetricFamilySamples> samples;
+        // Text format or OpenMetrics, without OpenMetrics EOF. See variant(...)
+        private final AtomicReferenceArray<byte[]> expositions = new AtomicReferenceArray<>(2);
+
+        Snapshot(long generation, List<Collector.MetricFamilySamples> samples) {
+            this.generation = generation;
+            this.samples = samples;
+        }
+    }
+
+    private final transient CollectorRegistry registry;
+    private final transient Supplier<List<Collector.MetricFamilySamples>> probeResultsCollector;
+    private final transient LongSupplier generationSupplier;
+    private final transient Supplier<CompletableFuture<Void>> snapshotRequester;
+    private final transient LongSupplier scrapeTimeoutSupplier;
+    private transient volatile Snapshot snapshot;
+
+    /**
+     * @param registry              the registry to expose, collected on each request.
+     * @param probeResultsCollector collects the probe results, changing with the snapshot generation only.
+     * @param generationSupplier    supplies the current snapshot generation, or {@link #NO_GENERATION}.
+     * @param snapshotRequester     requests a snapshot per scrape, completing when the snapshot is available.
+     * @param scrapeTimeoutSupplier supplies the max time in milliseconds a scrape waits for the snapshot.
+     */
+    CachedMetricsServlet(CollectorRegistry registry,
+                         Supplier<List<Collector.MetricFamilySamples>> probeResultsCollector,
+                         LongSupplier generationSupplier, Supplier<CompletableFuture<Void>> snapshotRequester,
+                         LongSupplier scrapeTimeoutSupplier) {
+        this.registry = registry;
+        this.probeResultsCollector = probeResultsCollector;
+        this.generationSupplier = generationSupplier;
+        this.snapshotRequester = snapshotRequester;
+        this.scrapeTimeoutSupplier = scrapeTimeoutSupplier;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final CompletableFuture<Void> snapshotRequest = snapshotRequester.get();
+        if (snapshotRequest.isDone() && !snapshotRequest.isCompletedExceptionally()) {
+            writeExposition(req, resp); // Eg probing in background
+            return;
+        }
+
+        final AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(Math.max(1L, scrapeTimeoutSupplier.getAsLong()));
+        // Either the timeout or the completed snapshot request answers the scrape
+        final AtomicBoolean answered = new AtomicBoolean();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    LOGGER.warn("Scrape timed out after {}ms waiting for probe cycle", asyncContext.getTimeout());
+                    try {
+                        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Probe cycle timed out");
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                // Nothing to do
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                answered.set(true); // Eg client disconnected
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // Nothing to do
+            }
+        });
+        snapshotRequest.whenComplete((result, throwable) -> {
+            if (!answered.compareAndSet(false, true)) {
+                return; // Timed out
+            }
+            asyncContext.start(() -> {
+                try {
+                    if (null == throwable) {
+                        writeExposition(req, resp);
+                    } else {
+                        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Probe cycle failed");
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to write metrics", e);
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        });
+    }
+
+    private void writeExposition(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
+        final boolean gzip = acceptsGzip(req);
+        final String[] names = req.getParameterValues("name[]");
+        final long generation = generationSupplier.getAsLong();
+
+        final List<Collector.MetricFamilySamples> samples;
+        final byte[] probeResults;
+        if (null != names) {
+            final Set<String> includedNames = new HashSet<>(Arrays.asList(names));
+            samples = filter(Collections.list(registry.metricFamilySamples()), includedNames);
+            probeResults = serialize(contentType, filter(probeResultsCollector.get(), includedNames));
+        } else if (generation == NO_GENERATION) {
+            samples = Collections.list(registry.metricFamilySamples());
+            probeResults = serialize(contentType, probeResultsCollector.get());
+        } else {
+            samples = Collections.list(registry.metricFamilySamples());
+            probeResults = getOrSerialize(generation, contentType);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(probeResults.length + 16 * 1024);
+        try (OutputStream outputStream = gzip ? new GZIPOutputStream(bytes) : bytes) {
+            outputStream.write(serialize(contentType, samples));
+            outputStream.write(probeResults);
+            if (isOpenMetrics(contentType)) {
+                outputStream.write(OPENMETRICS_EOF);
+            }
+        }
+        final byte[] exposition = bytes.toByteArray();
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(contentType);
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setContentLength(exposition.length);
+        try (OutputStream outputStream = resp.getOutputStream()) {
+            outputStream.write(exposition);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doGet(req, resp);
+    }
+
+    private byte[] getOrSerialize(long generation, String contentType) throws IOException {
+        Snapshot current = snapshot;
+        if (null == current || current.generation != generation) {
+            synchronized (this) {
+                current = snapshot;
+                if (null == current || current.generation != generation) {
+                    // Concurrent scrapes of a new generation collect only once
+                    current = new Snapshot(generation, probeResultsCollector.get());
+                    snapshot = current;
+                }
+            }
+        }
+
+        final int variant = isOpenMetrics(contentType) ? 1 : 0;
+        byte[] exposition = current.expositions.get(variant);
+        if (null == exposition) {
+            // Concurrent first scrapes of a variant might both serialize, which is harmless
+            exposition = serialize(contentType, current.samples);
+            current.expositions.set(variant, exposition);
+        }
+        return exposition;
+    }
+
+    /**
+     * Selects metric families by name, also of collectors not describing their metric families.
+     */
+    private static List<Collector.MetricFamilySamples> filter(List<Collector.MetricFamilySamples> samples,
+                                                              Set<String> includedNames) {
+        final List<Collector.MetricFamilySamples> included = new ArrayList<>();
+        for (Collector.MetricFamilySamples metricFamilySamples : samples) {
+            if (includedNames.contains(metricFamilySamples.name)) {
+                included.add(metricFamilySamples);
+            }
+        }
+        return included;
+    }
+
+    private static boolean isOpenMetrics(String contentType) {
+        return TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType);
+    }
+
+    /**
+     * Serializes the samples, without the OpenMetrics EOF so that serialized parts can be concatenated.
+     */
+    private static byte[] serialize(String contentType, List<Collector.MetricFamilySamples> samples)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            TextFormat.writeFormat(contentType, writer, Collections.enumeration(samples));
+        }
+        final byte[] serialized = bytes.toByteArray();
+        return isOpenMetrics(contentType)
+                ? Arrays.copyOf(serialized, serialized.length - OPENMETRICS_EOF.length) : serialized;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        final Enumeration<String> encodings = req.getHeaders("Accept-Encoding");
+        while (null != encodings && encodings.hasMoreElements()) {
+            for (String encoding : encodings.nextElement().split(",")) {
+                if (encoding.trim().toLowerCase(Locale.ROOT).startsWith("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+package de.m3y.prometheus.exporter.knox;
+
+/**
+ * Circuit breaker of a probe target, skipping probes of a persistently failing target.
+ * <p>
+ * After the configured number of consecutive failures the breaker opens, and the target is not probed
+ * until the backoff elapsed. Then a single trial probe is allowed (half open): On success the breaker closes,
+ * on failure it opens again with the backoff multiplied, up to the max backoff.
+ * <p>
+ * Thread safe, as probing and recording results may happen on different threads.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long backoffMs;
+    private long openUntilNs;
+
+    /**
+     * Checks if the target should be probed, possibly transitioning from open to half open.
+     *
+     * @param config the circuit breaker config.
+     * @param nowNs  the current time in nanoseconds.
+     * @return true, if the target should be probed.
+     */
+    synchronized boolean allowProbe(Config.CircuitBreakerConfig config, long nowNs) {
+        if (!config.isEnabled()) {
+            state = State.CLOSED; // Eg disabled on reload
+            return true;
+        }
+        switch (state) {
+            case OPEN:
+                if (nowNs - openUntilNs >= 0) {
+                    state = State.HALF_OPEN;
+                    return true; // Trial probe
+                }
+                return false;
+            default:
+                // Closed, or half open without recorded trial result (probe cycles do not overlap)
+                return true;
+        }
+    }
+
+    /**
+     * Records the result of a probe.
+     *
+     * @param config the circuit breaker config.
+     * @param failed true, if the target failed (timeout or error other than authentication).
+     * @param nowNs  the current time in nanoseconds.
+     */
+    synchronized void recordResult(Config.CircuitBreakerConfig config, boolean failed, long nowNs) {
+        if (!failed) {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            backoffMs = 0;
+            return;
+        }
+
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            backoffMs = Math.min((long) (backoffMs * config.getBackoffMultiplier()), config.getMaxBackoff());
+            open(nowNs);
+        } else if (config.isEnabled() && consecutiveFailures >= config.getFailureThreshold()) {
+            backoffMs = Math.min(config.getInitialBackoff(), config.getMaxBackoff());
+            open(nowNs);
+        }
+    }
+
+    private void open(long nowNs) {
+        state = State.OPEN;
+        openUntilNs = nowNs + backoffMs * 1000L * 1000L;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the current backoff in milliseconds, or 0 if closed.
+     */
+    synchronized long getBackoffMs() {
+        return backoffMs;
+    }
+}
@@ -1,21 +1,888 @@
 package de.m3y.prometheus.exporter.knox;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * Config options for collector.
  */
-public class Config {
+public class Config implements Cloneable {
     private static final int DEFAULT_TIMEOUT_MS = 60000;
+    private static final int DEFAULT_MAX_CONCURRENT_PROBES = 10;
+    private static final int DEFAULT_HUNG_TASK_GRACE_PERIOD_MS = 30000;
     private int timeout = DEFAULT_TIMEOUT_MS;
     private String defaultUsername;
     private String defaultPassword;
     private WebHdfsService[] webHdfsServices = new WebHdfsService[]{};
     private HiveService[] hiveServices = new HiveService[]{};
     private HBaseService[] hbaseServices = new HBaseService[]{};
+    private WebHdfsThroughputService[] webHdfsThroughputServices = new WebHdfsThroughputService[]{};
+    private HBaseCanaryService[] hbaseCanaryServices = new HBaseCanaryService[]{};
     private int jdbcLoginTimeout;
+    private int probeInterval;
+    private ExecutorMode executorMode = ExecutorMode.PLATFORM;
+    private PoolConfig knoxSessionPool = new PoolConfig();
+    private HivePoolConfig hiveConnectionPool = new HivePoolConfig();
+    private AuthCookieConfig knoxAuthCookie = new AuthCookieConfig();
+    private OpsDurationConfig opsDuration = new OpsDurationConfig();
+    private Map<String, ProbeModule> modules = new HashMap<>();
+    private int maxConcurrentProbes = DEFAULT_MAX_CONCURRENT_PROBES;
+    private ShardingConfig sharding = new ShardingConfig();
+    private ServerConfig server = new ServerConfig();
+    private CircuitBreakerConfig circuitBreaker = new CircuitBreakerConfig();
+    private int hungTaskGracePeriod = DEFAULT_HUNG_TASK_GRACE_PERIOD_MS;
+    private boolean replaceHungThreads = true;
+    private LoadConfig load = new LoadConfig();
+    private ProbeSpreadingConfig probeSpreading = new ProbeSpreadingConfig();
+    private GatewayLimitsConfig gatewayLimits = new GatewayLimitsConfig();
+
+    /**
+     * Threads for running probe actions.
+     */
+    public enum ExecutorMode {
+        /**
+         * Pool of platform threads, sized to the number of actions.
+         */
+        PLATFORM,
+        /**
+         * A new virtual thread per action, if supported by the JVM (Java 21+).
+         * Falls back to {@link #PLATFORM} otherwise.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Options for pooling and reusing connections across probes.
+     */
+    public static class PoolConfig {
+        private static final int DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+        private static final int DEFAULT_MAX_LIFETIME_MS = 30 * 60 * 1000;
+        private boolean enabled = true;
+        private int idleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
+        private int maxLifetime = DEFAULT_MAX_LIFETIME_MS;
+
+        /**
+         * @return true, if pooled. If false, each probe opens and closes its own connection.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return the max time in milliseconds a connection may stay unused in the pool.
+         */
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        /**
+         * @return the max time in milliseconds a connection may be used since opened.
+         */
+        public int getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public void setMaxLifetime(int maxLifetime) {
+            this.maxLifetime = maxLifetime;
+        }
+
+        void validate(String name) {
+            requireValid(idleTimeout >= 0 && maxLifetime >= 0,
+                    name + " idleTimeout and maxLifetime must not be negative");
+        }
+    }
+
+    /**
+     * Options for pooling Hive JDBC connections. Disabled by default.
+     */
+    public static class HivePoolConfig extends PoolConfig {
+        private String validationQuery;
+
+        public HivePoolConfig() {
+            setEnabled(false);
+        }
+
+        /**
+         * @return the query validating an idle connection before reuse, or null if not validating.
+         */
+        public String getValidationQuery() {
+            return validationQuery;
+        }
+
+        public void setValidationQuery(String validationQuery) {
+            this.validationQuery = validationQuery;
+        }
+    }
+
+    /**
+     * Options for reusing the Knox authentication cookie (eg hadoop-jwt or the session id) per gateway and user,
+     * instead of authenticating each request with HTTP Basic. Enabled by default.
+     */
+    public static class AuthCookieConfig {
+        private static final int DEFAULT_MAX_AGE_MS = 10 * 60 * 1000;
+        private boolean enabled = true;
+        private String[] cookieNames = new String[]{"hadoop-jwt", "JSESSIONID", "KNOXSESSIONID"};
+        private int maxAge = DEFAULT_MAX_AGE_MS;
+
+        /**
+         * @return true, if reusing the authentication cookie. If false, each request authenticates with HTTP Basic.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return the names of cookies set by Knox on authentication.
+         */
+        public String[] getCookieNames() {
+            return cookieNames;
+        }
+
+        public void setCookieNames(String[] cookieNames) {
+            this.cookieNames = cookieNames;
+        }
+
+        /**
+         * @return the max time in milliseconds an authentication cookie is reused, if not expiring earlier
+         * (by cookie expiry or JWT exp claim). Should be below the Knox session timeout.
+         */
+        public int getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(int maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        void validate() {
+            requireValid(null != cookieNames, "knoxAuthCookie cookieNames must not be empty, if given");
+            requireValid(maxAge >= 0, "knoxAuthCookie maxAge must not be negative");
+        }
+
+        static AuthCookieConfig of(boolean enabled, int maxAge) {
+            AuthCookieConfig config = new AuthCookieConfig();
+            config.setEnabled(enabled);
+            config.setMaxAge(maxAge);
+            return config;
+        }
+    }
+
+    /**
+     * Metric type for operation durations.
+     */
+    public enum MetricType {
+        /**
+         * Summary with 0.5/0.95/0.99 quantiles per series.
+         */
+        SUMMARY,
+        /**
+         * Histogram with configurable buckets, aggregatable across targets and exporter instances.
+         */
+        HISTOGRAM
+    }
+
+    /**
+     * Options for the operation duration metric.
+     */
+    public static class OpsDurationConfig {
+        private MetricType type = MetricType.SUMMARY;
+        private double[] buckets;
+        private ExponentialBuckets exponentialBuckets;
+        private Map<String, double[]> actionBuckets = new HashMap<>();
+
+        /**
+         * @return the metric type.
+         */
+        public MetricType getType() {
+            return type;
+        }
+
+        public void setType(MetricType type) {
+            this.type = type;
+        }
+
+        /**
+         * @return the histogram upper bucket bounds in seconds, or null for exponential or default buckets.
+         */
+        public double[] getBuckets() {
+            return buckets;
+        }
+
+        public void setBuckets(double[] buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return the exponential histogram buckets, or null for explicit or default buckets.
+         */
+        public ExponentialBuckets getExponentialBuckets() {
+            return exponentialBuckets;
+        }
+
+        public void setExponentialBuckets(ExponentialBuckets exponentialBuckets) {
+            this.exponentialBuckets = exponentialBuckets;
+        }
+
+        /**
+         * @return the histogram upper bucket bounds in seconds per action type, eg hive_query.
+         */
+        public Map<String, double[]> getActionBuckets() {
+            return actionBuckets;
+        }
+
+        public void setActionBuckets(Map<String, double[]> actionBuckets) {
+            this.actionBuckets = actionBuckets;
+        }
+
+        void validate() {
+            requireValid(null != type, "opsDuration type must be set");
+            requireValid(null != actionBuckets, "opsDuration actionBuckets must not be empty, if given");
+            if (null != buckets) {
+                validateBuckets("opsDuration buckets", buckets);
+            }
+            if (null != exponentialBuckets) {
+                exponentialBuckets.validate();
+            }
+            for (Map.Entry<String, double[]> entry : actionBuckets.entrySet()) {
+                validateBuckets("opsDuration actionBuckets of " + entry.getKey(), entry.getValue());
+            }
+        }
+
+        private static void validateBuckets(String name, double[] bounds) {
+            requireValid(null != bounds && bounds.length > 0, name + " must not be empty");
+            for (int i = 1; i < bounds.length; i++) {
+                requireValid(bounds[i - 1] < bounds[i], name + " must be in increasing order");
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            OpsDurationConfig that = (OpsDurationConfig) o;
+            if (type != that.type || !Arrays.equals(buckets, that.buckets)
+                    || !Objects.equals(exponentialBuckets, that.exponentialBuckets)
+                    || actionBuckets.size() != that.actionBuckets.size()) {
+                return false;
+            }
+            for (Map.Entry<String, double[]> entry : actionBuckets.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), that.actionBuckets.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, Arrays.hashCode(buckets), exponentialBuckets, actionBuckets.keySet());
+        }
+    }
+
+    /**
+     * Exponential histogram buckets, with each upper bound a factor of the previous bound.
+     */
+    public static class ExponentialBuckets {
+        private double start = 0.005;
+        private double factor = 2;
+        private int count = 14;
+
+        /**
+         * @return the upper bound of the first bucket in seconds.
+         */
+        public double getStart() {
+            return start;
+        }
+
+        public void setStart(double start) {
+            this.start = start;
+        }
+
+        /**
+         * @return the factor between upper bounds of consecutive buckets.
+         */
+        public double getFactor() {
+            return factor;
+        }
+
+        public void setFactor(double factor) {
+            this.factor = factor;
+        }
+
+        /**
+         * @return the number of buckets.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        void validate() {
+            requireValid(start > 0 && factor > 1 && count > 0,
+                    "opsDuration exponentialBuckets require a positive start and count, and a factor above 1");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ExponentialBuckets that = (ExponentialBuckets) o;
+            return Double.compare(that.start, start) == 0 && Double.compare(that.factor, factor) == 0
+                    && count == that.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start, factor, count);
+        }
+    }
+
+    /**
+     * Options for sharding targets across exporter instances, without a coordinator.
+     * <p>
+     * Each instance knows all peers (including itself) and its own index, and owns the targets
+     * hashing to it. Disabled if no peers are configured.
+     */
+    public static class ShardingConfig {
+        private static final int DEFAULT_HEALTH_CHECK_INTERVAL_MS = 10000;
+        private static final int DEFAULT_HEALTH_CHECK_TIMEOUT_MS = 2000;
+        private String[] peers = new String[]{};
+        private int shardIndex;
+        private int replicationFactor = 1;
+        private int healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL_MS;
+        private int healthCheckTimeout = DEFAULT_HEALTH_CHECK_TIMEOUT_MS;
+        private int unhealthyThreshold = 2;
+
+        /**
+         * @return true, if peers are configured.
+         */
+        public boolean isEnabled() {
+            return peers.length > 0;
+        }
+
+        /**
+         * @return the base URLs of all exporter instances including this one, eg http://exporter-0:9092
+         */
+        public String[] getPeers() {
+            return peers;
+        }
+
+        public void setPeers(String[] peers) {
+            this.peers = peers;
+        }
+
+        /**
+         * @return the index of this instance in the peers.
+         */
+        public int getShardIndex() {
+            return shardIndex;
+        }
+
+        public void setShardIndex(int shardIndex) {
+            this.shardIndex = shardIndex;
+        }
+
+        /**
+         * @return the number of instances probing each target.
+         */
+        public int getReplicationFactor() {
+            return replicationFactor;
+        }
+
+        public void setReplicationFactor(int replicationFactor) {
+            this.replicationFactor = replicationFactor;
+        }
+
+        /**
+         * @return the interval in milliseconds for checking peer health, or 0 for not checking.
+         */
+        public int getHealthCheckInterval() {
+            return healthCheckInterval;
+        }
+
+        public void setHealthCheckInterval(int healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+        }
+
+        /**
+         * @return the timeout in milliseconds of a peer health check.
+         */
+        public int getHealthCheckTimeout() {
+            return healthCheckTimeout;
+        }
+
+        public void setHealthCheckTimeout(int healthCheckTimeout) {
+            this.healthCheckTimeout = healthCheckTimeout;
+        }
+
+        /**
+         * @return the number of consecutive failed health checks, after which a peer counts as down.
+         */
+        public int getUnhealthyThreshold() {
+            return unhealthyThreshold;
+        }
+
+        public void setUnhealthyThreshold(int unhealthyThreshold) {
+            this.unhealthyThreshold = unhealthyThreshold;
+        }
+
+        /**
+         * @throws IllegalArgumentException if invalid, eg the shard index is not a valid peer index.
+         */
+        void validate() {
+            requireValid(null != peers, "sharding peers must not be empty, if given");
+            if (isEnabled()) {
+                requireValid(shardIndex >= 0 && shardIndex < peers.length, "sharding shardIndex " + shardIndex
+                        + " must be an index of peers " + Arrays.toString(peers));
+                requireValid(replicationFactor > 0, "sharding replicationFactor must be positive");
+                requireValid(healthCheckInterval >= 0, "sharding healthCheckInterval must not be negative");
+                requireValid(healthCheckTimeout >= 0, "sharding healthCheckTimeout must not be negative");
+                requireValid(unhealthyThreshold > 0, "sharding unhealthyThreshold must be positive");
+            }
+        }
+    }
+
+    /**
+     * Options for the embedded Jetty web server. Applied on startup only, not on config reload.
+     * <p>
+     * Defaults are the Jetty defaults.
+     */
+    public static class ServerConfig {
+        private static final int DEFAULT_MIN_THREADS = 8;
+        private static final int DEFAULT_MAX_THREADS = 200;
+        private static final int DEFAULT_THREAD_IDLE_TIMEOUT_MS = 60000;
+        private static final int DEFAULT_IDLE_TIMEOUT_MS = 30000;
+        private int minThreads = DEFAULT_MIN_THREADS;
+        private int maxThreads = DEFAULT_MAX_THREADS;
+        private int threadIdleTimeout = DEFAULT_THREAD_IDLE_TIMEOUT_MS;
+        private int acceptQueueSize;
+        private int idleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
+
+        /**
+         * @return the min number of request threads.
+         */
+        public int getMinThreads() {
+            return minThreads;
+        }
+
+        public void setMinThreads(int minThreads) {
+            this.minThreads = minThreads;
+        }
+
+        /**
+         * @return the max number of request threads.
+         */
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        public void setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+        }
+
+        /**
+         * @return the idle time in milliseconds, after which threads above min threads get stopped.
+         */
+        public int getThreadIdleTimeout() {
+            return threadIdleTimeout;
+        }
+
+        public void setThreadIdleTimeout(int threadIdleTimeout) {
+            this.threadIdleTimeout = threadIdleTimeout;
+        }
+
+        /**
+         * @return the size of the queue of pending connections, or 0 for the OS default.
+         */
+        public int getAcceptQueueSize() {
+            return acceptQueueSize;
+        }
+
+        public void setAcceptQueueSize(int acceptQueueSize) {
+            this.acceptQueueSize = acceptQueueSize;
+        }
+
+        /**
+         * @return the idle time in milliseconds, after which an idle connection gets closed.
+         */
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+    }
+
+    /**
+     * Options for generating load with the configured actions, see {@link LoadGenerator}.
+     */
+    public static class LoadConfig {
+        private static final int DEFAULT_CONCURRENCY = 10;
+        private static final int DEFAULT_WARMUP_MS = 10000;
+
+        /**
+         * Load model.
+         */
+        public enum Model {
+            /**
+             * Requests start at the target rate, independent of completion (eg like many independent clients).
+             */
+            OPEN,
+            /**
+             * Each of the concurrent callers starts the next request after completion of its previous request,
+             * throttled by the target rate if set.
+             */
+            CLOSED
+        }
+
+        private Model model = Model.OPEN;
+        private int concurrency = DEFAULT_CONCURRENCY;
+        private int warmup = DEFAULT_WARMUP_MS;
+        private LoadStage[] stages = new LoadStage[]{new LoadStage()};
+
+        public Model getModel() {
+            return model;
+        }
+
+        public void setModel(Model model) {
+            this.model = model;
+        }
+
+        /**
+         * @return the number of concurrent callers (threads).
+         */
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * @return the warm up duration in milliseconds at the rate of the first stage, not included in the report.
+         */
+        public int getWarmup() {
+            return warmup;
+        }
+
+        public void setWarmup(int warmup) {
+            this.warmup = warmup;
+        }
+
+        /**
+         * @return the measured stages, run in order.
+         */
+        public LoadStage[] getStages() {
+            return stages;
+        }
+
+        public void setStages(LoadStage[] stages) {
+            this.stages = stages;
+        }
+    }
+
+    /**
+     * A load stage, ramping linearly from the rate of the previous stage to the stage rate.
+     */
+    public static class LoadStage {
+        private static final int DEFAULT_DURATION_MS = 60000;
+        private static final double DEFAULT_RATE = 10;
+        private int duration = DEFAULT_DURATION_MS;
+        private double rate = DEFAULT_RATE;
+
+        /**
+         * @return the stage duration in milliseconds.
+         */
+        public int getDuration() {
+            return duration;
+        }
+
+        public void setDuration(int duration) {
+            this.duration = duration;
+        }
+
+        /**
+         * @return the target rate in requests per second at the end of the stage, or 0 for an unthrottled closed model.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        public void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        static LoadStage of(int duration, double rate) {
+            LoadStage loadStage = new LoadStage();
+            loadStage.setDuration(duration);
+            loadStage.setRate(rate);
+            return loadStage;
+        }
+    }
+
+    /**
+     * Options for skipping probes of persistently failing targets, with exponential backoff.
+     * <p>
+     * Disabled if the failure threshold is 0.
+     */
+    public static class CircuitBreakerConfig {
+        private static final int DEFAULT_INITIAL_BACKOFF_MS = 60000;
+        private static final int DEFAULT_MAX_BACKOFF_MS = 15 * 60 * 1000;
+        private int failureThreshold;
+        private int initialBackoff = DEFAULT_INITIAL_BACKOFF_MS;
+        private int maxBackoff = DEFAULT_MAX_BACKOFF_MS;
+        private double backoffMultiplier = 2;
+
+        /**
+         * @return true, if a failure threshold is configured.
+         */
+        public boolean isEnabled() {
+            return failureThreshold > 0;
+        }
+
+        /**
+         * @return the number of consecutive timeouts or errors (except authentication errors) opening the breaker.
+         */
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        /**
+         * @return the time in milliseconds before the first trial probe of an opened breaker.
+         */
+        public int getInitialBackoff() {
+            return initialBackoff;
+        }
+
+        public void setInitialBackoff(int initialBackoff) {
+            this.initialBackoff = initialBackoff;
+        }
+
+        /**
+         * @return the max time in milliseconds between trial probes.
+         */
+        public int getMaxBackoff() {
+            return maxBackoff;
+        }
+
+        public void setMaxBackoff(int maxBackoff) {
+            this.maxBackoff = maxBackoff;
+        }
+
+        /**
+         * @return the factor increasing the backoff after each failed trial probe.
+         */
+        public double getBackoffMultiplier() {
+            return backoffMultiplier;
+        }
+
+        public void setBackoffMultiplier(double backoffMultiplier) {
+            this.backoffMultiplier = backoffMultiplier;
+        }
+
+        void validate() {
+            requireValid(failureThreshold >= 0, "circuitBreaker failureThreshold must not be negative");
+            if (isEnabled()) {
+                requireValid(initialBackoff > 0 && maxBackoff >= initialBackoff,
+                        "circuitBreaker requires a positive initialBackoff, not above maxBackoff");
+                requireValid(backoffMultiplier >= 1, "circuitBreaker backoffMultiplier must be at least 1");
+            }
+        }
+    }
+
+    /**
+     * Options for spreading the probe starts of a probe cycle, instead of starting all probes at once.
+     * <p>
+     * Each target starts at a deterministic offset within the window, derived from a hash of the target.
+     * Disabled if the window is 0.
+     */
+    public static class ProbeSpreadingConfig {
+        private int window;
+        private int gatewayStagger;
+
+        /**
+         * @return true, if a window is configured.
+         */
+        public boolean isEnabled() {
+            return window > 0;
+        }
+
+        /**
+         * @return the time in milliseconds after the probe cycle start, within which all probes start.
+         * Should be below the probe interval, if probing in background.
+         */
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+
+        /**
+         * @return the time in milliseconds across which the probes of a gateway (Knox URL or JDBC URL) start
+         * evenly spaced, from a per gateway offset. If 0, each probe starts at its own per target offset.
+         */
+        public int getGatewayStagger() {
+            return gatewayStagger;
+        }
+
+        public void setGatewayStagger(int gatewayStagger) {
+            this.gatewayStagger = gatewayStagger;
+        }
+
+        void validate() {
+            requireValid(window >= 0 && gatewayStagger >= 0,
+                    "probeSpreading window and gatewayStagger must not be negative");
+        }
+
+        static ProbeSpreadingConfig of(int window, int gatewayStagger) {
+            ProbeSpreadingConfig config = new ProbeSpreadingConfig();
+            config.setWindow(window);
+            config.setGatewayStagger(gatewayStagger);
+            return config;
+        }
+    }
+
+    /**
+     * Concurrency and rate limits of requests to a gateway. Unlimited by default.
+     */
+    public static class GatewayLimitConfig {
+        private int maxConcurrent;
+        private double rate;
+        private int burst = 1;
+
+        /**
+         * @return true, if limiting concurrency or rate.
+         */
+        public boolean isEnabled() {
+            return maxConcurrent > 0 || rate > 0;
+        }
+
+        /**
+         * @return the max number of concurrent requests, or 0 if unlimited.
+         */
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        public void setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        /**
+         * @return the max rate of request starts per second (token bucket refill rate), or 0 if unlimited.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        public void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * @return the number of requests starting at once after idling (token bucket size), if rate limited.
+         */
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        void validate(String name) {
+            requireValid(maxConcurrent >= 0, name + " maxConcurrent must not be negative");
+            requireValid(rate >= 0 && !Double.isInfinite(rate), name + " rate must not be negative");
+            requireValid(burst > 0, name + " burst must be positive");
+        }
+
+        static GatewayLimitConfig of(int maxConcurrent, double rate, int burst) {
+            GatewayLimitConfig config = new GatewayLimitConfig();
+            config.setMaxConcurrent(maxConcurrent);
+            config.setRate(rate);
+            config.setBurst(burst);
+            return config;
+        }
+    }
+
+    /**
+     * Limits of requests per gateway, the host and port of a Knox URL or a Hive JDBC URL.
+     * <p>
+     * The default limits apply to each gateway, unless overridden for the gateway.
+     */
+    public static class GatewayLimitsConfig extends GatewayLimitConfig {
+        private Map<String, GatewayLimitConfig> gateways = new HashMap<>();
+
+        /**
+         * @return the limits by gateway host and port (eg 'my-knox-server:8443'), replacing the default limits.
+         */
+        public Map<String, GatewayLimitConfig> getGateways() {
+            return gateways;
+        }
+
+        public void setGateways(Map<String, GatewayLimitConfig> gateways) {
+            this.gateways = gateways;
+        }
+
+        void validate() {
+            validate("gatewayLimits");
+            requireValid(null != gateways, "gatewayLimits gateways must not be empty, if given");
+            for (Map.Entry<String, GatewayLimitConfig> entry : gateways.entrySet()) {
+                requireValid(null != entry.getValue(), "gatewayLimits of " + entry.getKey() + " must not be empty");
+                entry.getValue().validate("gatewayLimits of " + entry.getKey());
+            }
+        }
+
+        /**
+         * @param gateway the gateway host and port.
+         * @return the limits of the gateway.
+         */
+        GatewayLimitConfig resolve(String gateway) {
+            final GatewayLimitConfig config = gateways.get(gateway);
+            return null == config ? this : config;
+        }
+    }
 
     public abstract static class KnoxService {
         private String username;
         private String password;
+        private Integer timeout;
 
         public String getUsername() {
             return username;
@@ -32,6 +899,49 @@ public class Config {
         public void setPassword(String password) {
             this.password = password;
         }
+
+        /**
+         * @return the service timeout in milliseconds overriding the global timeout, or null if not set.
+         */
+        public Integer getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Integer timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * Resolves the timeout for a target of this service, such as a status path or query.
+         * <p>
+         * A target timeout overrides the service timeout, which overrides the global timeout.
+         *
+         * @param target         the target, such as status path or query.
+         * @param defaultTimeout the global timeout in milliseconds.
+         * @return the timeout in milliseconds.
+         */
+        public int resolveTimeout(String target, int defaultTimeout) {
+            final Integer targetTimeout = targetTimeouts().get(target);
+            if (null != targetTimeout) {
+                return targetTimeout;
+            }
+            return null == timeout ? defaultTimeout : timeout;
+        }
+
+        /**
+         * @return the timeouts in milliseconds per target, eg per query.
+         */
+        protected Map<String, Integer> targetTimeouts() {
+            return Collections.emptyMap();
+        }
+
+        void validate(String name) {
+            requireValid(null == timeout || timeout > 0, name + " timeout must be positive");
+            requireValid(null != targetTimeouts(), name + " timeouts must not be empty, if given");
+            for (Integer targetTimeout : targetTimeouts().values()) {
+                requireValid(null != targetTimeout && targetTimeout > 0, name + " timeouts must be positive");
+            }
+        }
     }
 
     public static class HBaseService extends KnoxService {
@@ -49,6 +959,7 @@ public class Config {
     public static class HiveService extends KnoxService {
         private String jdbcUrl;
         private String[] queries = new String[]{};
+        private Map<String, Integer> queryTimeouts = new HashMap<>();
 
         public String getJdbcUrl() {
             return jdbcUrl;
@@ -66,6 +977,22 @@ public class Config {
             this.queries = queries;
         }
 
+        /**
+         * @return the timeouts in milliseconds per query, overriding the service timeout.
+         */
+        public Map<String, Integer> getQueryTimeouts() {
+            return queryTimeouts;
+        }
+
+        public void setQueryTimeouts(Map<String, Integer> queryTimeouts) {
+            this.queryTimeouts = queryTimeouts;
+        }
+
+        @Override
+        protected Map<String, Integer> targetTimeouts() {
+            return queryTimeouts;
+        }
+
         static HiveService of(String username, String password, String jdbcUrl, String... query) {
             HiveService hiveCheck = new HiveService();
             hiveCheck.setUsername(username);
@@ -86,9 +1013,114 @@ public class Config {
         }
     }
 
+    /**
+     * Prober of a probe module.
+     */
+    public enum Prober {
+        WEBHDFS_STATUS,
+        HBASE_STATUS,
+        HIVE_QUERY
+    }
+
+    /**
+     * A module for probing a target on demand, with the target (Knox URL or JDBC URL) given by the probe request.
+     */
+    public static class ProbeModule extends KnoxService {
+        private Prober prober;
+        private String statusPath = "/";
+        private String query = "SELECT 1";
+        private String allowedTargets;
+        // Compiled once, as matched on each probe request. Null if not given or invalid.
+        private Pattern allowedTargetsPattern;
+
+        public Prober getProber() {
+            return prober;
+        }
+
+        public void setProber(Prober prober) {
+            this.prober = prober;
+        }
+
+        /**
+         * @return the WebHDFS status path, for {@link Prober#WEBHDFS_STATUS}.
+         */
+        public String getStatusPath() {
+            return statusPath;
+        }
+
+        public void setStatusPath(String statusPath) {
+            this.statusPath = statusPath;
+        }
+
+        /**
+         * @return the Hive query, for {@link Prober#HIVE_QUERY}.
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        public void setQuery(String query) {
+            this.query = query;
+        }
+
+        /**
+         * @return the regular expression matching allowed targets, eg 'https://my-knox-server:8443/gateway/.*'.
+         */
+        public String getAllowedTargets() {
+            return allowedTargets;
+        }
+
+        public void setAllowedTargets(String allowedTargets) {
+            this.allowedTargets = allowedTargets;
+            Pattern pattern = null;
+            if (null != allowedTargets) {
+                try {
+                    pattern = Pattern.compile(allowedTargets);
+                } catch (PatternSyntaxException e) {
+                    // Reported by validate
+                }
+            }
+            allowedTargetsPattern = pattern;
+        }
+
+        /**
+         * Checks if the target matches the allowed targets,
+         * so that on demand probes can not be directed to arbitrary hosts.
+         *
+         * @param target the target URL.
+         * @return true, if the whole target matches.
+         */
+        boolean isAllowedTarget(String target) {
+            final Pattern pattern = allowedTargetsPattern;
+            return null != pattern && pattern.matcher(target).matches();
+        }
+
+        @Override
+        void validate(String name) {
+            super.validate(name);
+            requireValid(null != allowedTargets, name + " requires allowedTargets");
+            if (null == allowedTargetsPattern) {
+                try {
+                    Pattern.compile(allowedTargets);
+                } catch (PatternSyntaxException e) {
+                    requireValid(false, name + " allowedTargets is not a valid regular expression : "
+                            + e.getMessage());
+                }
+            }
+        }
+
+        static ProbeModule of(Prober prober, String allowedTargets) {
+            ProbeModule module = new ProbeModule();
+            module.setProber(prober);
+            module.setAllowedTargets(allowedTargets);
+            return module;
+        }
+    }
+
     public static class WebHdfsService extends KnoxService {
         String knoxUrl;
         String[] statusPaths = new String[]{};
+        Map<String, Integer> statusPathTimeouts = new HashMap<>();
 
         public String getKnoxUrl() {
             return knoxUrl;
@@ -106,6 +1138,22 @@ public class Config {
             this.statusPaths = statusPaths;
         }
 
+        /**
+         * @return the timeouts in milliseconds per status path, overriding the service timeout.
+         */
+        public Map<String, Integer> getStatusPathTimeouts() {
+            return statusPathTimeouts;
+        }
+
+        public void setStatusPathTimeouts(Map<String, Integer> statusPathTimeouts) {
+            this.statusPathTimeouts = statusPathTimeouts;
+        }
+
+        @Override
+        protected Map<String, Integer> targetTimeouts() {
+            return statusPathTimeouts;
+        }
+
         static WebHdfsService of(String username, String password, String knoxUrl, String... statusPaths) {
             WebHdfsService webHdfsCheck = new WebHdfsService();
             webHdfsCheck.setUsername(username);
@@ -116,6 +1164,208 @@ public class Config {
         }
     }
 
+    /**
+     * A WebHDFS data path probe, writing, reading back and deleting a test file.
+     */
+    public static class WebHdfsThroughputService extends KnoxService {
+        private static final int DEFAULT_PAYLOAD_SIZE = 1024 * 1024;
+        private String knoxUrl;
+        private String path = "/tmp";
+        private int payloadSize = DEFAULT_PAYLOAD_SIZE;
+
+        public String getKnoxUrl() {
+            return knoxUrl;
+        }
+
+        public void setKnoxUrl(String knoxUrl) {
+            this.knoxUrl = knoxUrl;
+        }
+
+        /**
+         * @return the directory for the test file, writable by the user.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the size of the test file in bytes.
+         */
+        public int getPayloadSize() {
+            return payloadSize;
+        }
+
+        public void setPayloadSize(int payloadSize) {
+            this.payloadSize = payloadSize;
+        }
+
+        static WebHdfsThroughputService of(String username, String password, String knoxUrl, String path,
+                                           int payloadSize) {
+            WebHdfsThroughputService webHdfsThroughputCheck = new WebHdfsThroughputService();
+            webHdfsThroughputCheck.setUsername(username);
+            webHdfsThroughputCheck.setPassword(password);
+            webHdfsThroughputCheck.setKnoxUrl(knoxUrl);
+            webHdfsThroughputCheck.setPath(path);
+            webHdfsThroughputCheck.setPayloadSize(payloadSize);
+            return webHdfsThroughputCheck;
+        }
+
+        @Override
+        void validate(String name) {
+            super.validate(name);
+            requireValid(null != knoxUrl, name + " require a knoxUrl");
+            requireValid(null != path, name + " require a path");
+            requireValid(payloadSize >= 0, name + " payloadSize must not be negative");
+        }
+    }
+
+    /**
+     * Probes the HBase data path via Knox HBase REST, using a canary table.
+     */
+    public static class HBaseCanaryService extends KnoxService {
+        private static final int DEFAULT_SCAN_LIMIT = 100;
+
+        /**
+         * Operations against the canary table.
+         */
+        public enum Operation {
+            /**
+             * Gets the canary row.
+             */
+            GET,
+            /**
+             * Puts the canary row, storing the current time.
+             */
+            PUT,
+            /**
+             * Scans the row key range, up to the scan limit.
+             */
+            SCAN
+        }
+
+        private String knoxUrl;
+        private String table;
+        private String column = "cf:knox_exporter";
+        private String rowKey = "knox-exporter-canary";
+        private String scanStartRow;
+        private String scanEndRow;
+        private int scanLimit = DEFAULT_SCAN_LIMIT;
+        private Operation[] operations = Operation.values();
+
+        public String getKnoxUrl() {
+            return knoxUrl;
+        }
+
+        public void setKnoxUrl(String knoxUrl) {
+            this.knoxUrl = knoxUrl;
+        }
+
+        /**
+         * @return the canary table, eg 'knox_exporter' or 'namespace:knox_exporter'.
+         */
+        public String getTable() {
+            return table;
+        }
+
+        public void setTable(String table) {
+            this.table = table;
+        }
+
+        /**
+         * @return the column as 'family:qualifier', with the family existing in the canary table.
+         */
+        public String getColumn() {
+            return column;
+        }
+
+        public void setColumn(String column) {
+            this.column = column;
+        }
+
+        /**
+         * @return the row key of the canary row, for get and put.
+         */
+        public String getRowKey() {
+            return rowKey;
+        }
+
+        public void setRowKey(String rowKey) {
+            this.rowKey = rowKey;
+        }
+
+        /**
+         * @return the inclusive scan start row, or null for the canary row.
+         */
+        public String getScanStartRow() {
+            return scanStartRow;
+        }
+
+        public void setScanStartRow(String scanStartRow) {
+            this.scanStartRow = scanStartRow;
+        }
+
+        /**
+         * @return the exclusive scan end row, or null for scanning up to the scan limit.
+         */
+        public String getScanEndRow() {
+            return scanEndRow;
+        }
+
+        public void setScanEndRow(String scanEndRow) {
+            this.scanEndRow = scanEndRow;
+        }
+
+        /**
+         * @return the max number of rows to scan.
+         */
+        public int getScanLimit() {
+            return scanLimit;
+        }
+
+        public void setScanLimit(int scanLimit) {
+            this.scanLimit = scanLimit;
+        }
+
+        /**
+         * @return the operations to probe, each as separate action.
+         */
+        public Operation[] getOperations() {
+            return operations;
+        }
+
+        public void setOperations(Operation[] operations) {
+            this.operations = operations;
+        }
+
+        static HBaseCanaryService of(String username, String password, String knoxUrl, String table) {
+            HBaseCanaryService hBaseCanaryService = new HBaseCanaryService();
+            hBaseCanaryService.setUsername(username);
+            hBaseCanaryService.setPassword(password);
+            hBaseCanaryService.setKnoxUrl(knoxUrl);
+            hBaseCanaryService.setTable(table);
+            return hBaseCanaryService;
+        }
+
+        @Override
+        void validate(String name) {
+            super.validate(name);
+            requireValid(null != knoxUrl, name + " require a knoxUrl");
+            requireValid(null != table, name + " require a table");
+            requireValid(null != column && !column.isEmpty() && column.charAt(0) != ':',
+                    name + " column must be given as 'family:qualifier' or 'family'");
+            requireValid(null != rowKey, name + " require a rowKey");
+            requireValid(scanLimit > 0, name + " scanLimit must be positive");
+            requireValid(null != operations, name + " operations must not be empty, if given");
+            for (Operation operation : operations) {
+                requireValid(null != operation, name + " operations must not be empty, if given");
+            }
+        }
+    }
+
     public int getTimeout() {
         return timeout;
     }
@@ -164,6 +1414,22 @@ public class Config {
         this.hbaseServices = hbaseServices;
     }
 
+    public WebHdfsThroughputService[] getWebHdfsThroughputServices() {
+        return webHdfsThroughputServices;
+    }
+
+    public void setWebHdfsThroughputServices(WebHdfsThroughputService[] webHdfsThroughputServices) {
+        this.webHdfsThroughputServices = webHdfsThroughputServices;
+    }
+
+    public HBaseCanaryService[] getHbaseCanaryServices() {
+        return hbaseCanaryServices;
+    }
+
+    public void setHbaseCanaryServices(HBaseCanaryService[] hbaseCanaryServices) {
+        this.hbaseCanaryServices = hbaseCanaryServices;
+    }
+
     public int getJdbcLoginTimeout() {
         return jdbcLoginTimeout;
     }
@@ -171,5 +1437,235 @@ public class Config {
     public void setJdbcLoginTimeout(int jdbcLoginTimeout) {
         this.jdbcLoginTimeout = jdbcLoginTimeout;
     }
-}
 
+    /**
+     * Interval in milliseconds for probing in background.
+     * <p>
+     * If zero (default), Knox gets probed on each scrape request.
+     *
+     * @return the probe interval in milliseconds, or zero if probing on scrape.
+     */
+    public int getProbeInterval() {
+        return probeInterval;
+    }
+
+    public void setProbeInterval(int probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    public PoolConfig getKnoxSessionPool() {
+        return knoxSessionPool;
+    }
+
+    public void setKnoxSessionPool(PoolConfig knoxSessionPool) {
+        this.knoxSessionPool = knoxSessionPool;
+    }
+
+    public HivePoolConfig getHiveConnectionPool() {
+        return hiveConnectionPool;
+    }
+
+    public void setHiveConnectionPool(HivePoolConfig hiveConnectionPool) {
+        this.hiveConnectionPool = hiveConnectionPool;
+    }
+
+    public AuthCookieConfig getKnoxAuthCookie() {
+        return knoxAuthCookie;
+    }
+
+    public void setKnoxAuthCookie(AuthCookieConfig knoxAuthCookie) {
+        this.knoxAuthCookie = knoxAuthCookie;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public void setExecutorMode(ExecutorMode executorMode) {
+        this.executorMode = executorMode;
+    }
+
+    public OpsDurationConfig getOpsDuration() {
+        return opsDuration;
+    }
+
+    public void setOpsDuration(OpsDurationConfig opsDuration) {
+        this.opsDuration = opsDuration;
+    }
+
+    /**
+     * @return the probe modules by name, for probing targets on demand.
+     */
+    public Map<String, ProbeModule> getModules() {
+        return modules;
+    }
+
+    public void setModules(Map<String, ProbeModule> modules) {
+        this.modules = modules;
+    }
+
+    /**
+     * @return the max number of on demand probes running in parallel. Further probes get queued.
+     */
+    public int getMaxConcurrentProbes() {
+        return maxConcurrentProbes;
+    }
+
+    public void setMaxConcurrentProbes(int maxConcurrentProbes) {
+        this.maxConcurrentProbes = maxConcurrentProbes;
+    }
+
+    public ShardingConfig getSharding() {
+        return sharding;
+    }
+
+    public void setSharding(ShardingConfig sharding) {
+        this.sharding = sharding;
+    }
+
+    public ServerConfig getServer() {
+        return server;
+    }
+
+    public void setServer(ServerConfig server) {
+        this.server = server;
+    }
+
+    public CircuitBreakerConfig getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfig circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the time in milliseconds after cancellation, until a still running action counts as abandoned.
+     */
+    public int getHungTaskGracePeriod() {
+        return hungTaskGracePeriod;
+    }
+
+    public void setHungTaskGracePeriod(int hungTaskGracePeriod) {
+        this.hungTaskGracePeriod = hungTaskGracePeriod;
+    }
+
+    /**
+     * @return true, if adding a platform thread for each thread occupied by an abandoned action.
+     */
+    public boolean isReplaceHungThreads() {
+        return replaceHungThreads;
+    }
+
+    public void setReplaceHungThreads(boolean replaceHungThreads) {
+        this.replaceHungThreads = replaceHungThreads;
+    }
+
+    /**
+     * @return the load generation options, only used by {@link LoadGenerator}.
+     */
+    public LoadConfig getLoad() {
+        return load;
+    }
+
+    public void setLoad(LoadConfig load) {
+        this.load = load;
+    }
+
+    /**
+     * @return the options for spreading probe starts.
+     */
+    public ProbeSpreadingConfig getProbeSpreading() {
+        return probeSpreading;
+    }
+
+    public void setProbeSpreading(ProbeSpreadingConfig probeSpreading) {
+        this.probeSpreading = probeSpreading;
+    }
+
+    /**
+     * @return the concurrency and rate limits of requests per gateway.
+     */
+    public GatewayLimitsConfig getGatewayLimits() {
+        return gatewayLimits;
+    }
+
+    public void setGatewayLimits(GatewayLimitsConfig gatewayLimits) {
+        this.gatewayLimits = gatewayLimits;
+    }
+
+    /**
+     * Copies the top level options, sharing the nested options and services.
+     * For deriving a config, as a loaded config must not be modified.
+     *
+     * @return a shallow copy.
+     */
+    Config copy() {
+        try {
+            return (Config) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // Cloneable
+        }
+    }
+
+    /**
+     * Validates a loaded config, before it becomes the current config.
+     *
+     * @throws IllegalArgumentException if invalid, eg a service without URL or an empty (null) section.
+     */
+    void validate() {
+        requireValid(timeout > 0, "timeout must be positive");
+        requireValid(probeInterval >= 0, "probeInterval must not be negative");
+        requireValid(maxConcurrentProbes > 0, "maxConcurrentProbes must be positive");
+        requireValid(jdbcLoginTimeout >= 0, "jdbcLoginTimeout must not be negative");
+        requireValid(hungTaskGracePeriod >= 0, "hungTaskGracePeriod must not be negative");
+        requireValid(null != executorMode, "executorMode must be set");
+        requireValid(null != modules, "modules must not be empty, if given");
+        for (Object section : Arrays.asList(knoxSessionPool, hiveConnectionPool, knoxAuthCookie, opsDuration,
+                sharding, server, circuitBreaker, load, probeSpreading, gatewayLimits)) {
+            requireValid(null != section, "config sections must not be empty, if given");
+        }
+        for (Object[] services : Arrays.asList(webHdfsServices, hiveServices, hbaseServices,
+                webHdfsThroughputServices, hbaseCanaryServices)) {
+            requireValid(null != services, "service lists must not be empty, if given");
+        }
+        sharding.validate();
+        knoxSessionPool.validate("knoxSessionPool");
+        hiveConnectionPool.validate("hiveConnectionPool");
+        knoxAuthCookie.validate();
+        opsDuration.validate();
+        circuitBreaker.validate();
+        probeSpreading.validate();
+        gatewayLimits.validate();
+        for (WebHdfsService service : webHdfsServices) {
+            service.validate("webHdfsServices");
+            requireValid(null != service.getKnoxUrl(), "webHdfsServices require a knoxUrl");
+            requireValid(null != service.getStatusPaths(), "webHdfsServices statusPaths must not be empty, if given");
+        }
+        for (HiveService service : hiveServices) {
+            service.validate("hiveServices");
+            requireValid(null != service.getJdbcUrl(), "hiveServices require a jdbcUrl");
+            requireValid(null != service.getQueries(), "hiveServices queries must not be empty, if given");
+        }
+        for (HBaseService service : hbaseServices) {
+            service.validate("hbaseServices");
+            requireValid(null != service.getKnoxUrl(), "hbaseServices require a knoxUrl");
+        }
+        for (WebHdfsThroughputService service : webHdfsThroughputServices) {
+            service.validate("webHdfsThroughputServices");
+        }
+        for (HBaseCanaryService service : hbaseCanaryServices) {
+            service.validate("hbaseCanaryServices");
+        }
+        for (Map.Entry<String, ProbeModule> entry : modules.entrySet()) {
+            requireValid(null != entry.getValue(), "module " + entry.getKey() + " must not be empty");
+            entry.getValue().validate("module " + entry.getKey());
+        }
+    }
+
+    private static void requireValid(boolean valid, String message) {
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid config: " + message);
+        }
+    }
+}
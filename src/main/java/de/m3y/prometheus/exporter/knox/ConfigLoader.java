@@ -3,7 +3,12 @@ package de.m3y.prometheus.exporter.knox;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
 /**
@@ -32,7 +37,8 @@ public interface ConfigLoader {
     boolean hasModifications();
 
     /**
-     * Creates a file based config loader.
+     * Creates a file based config loader, checking for modifications at most every
+     * {@link FileConfigLoader#DEFAULT_CHECK_INTERVAL_MS} milliseconds.
      *
      * @param configFile the config file to watch.
      * @return a new config loader.
@@ -41,40 +47,157 @@ public interface ConfigLoader {
         return new FileConfigLoader(configFile);
     }
 
+    /**
+     * Creates a config loader for a fixed config, never reloaded.
+     *
+     * @param config the config.
+     * @return a new config loader.
+     */
+    static ConfigLoader of(Config config) {
+        return new FixedConfigLoader(config);
+    }
+
+    /**
+     * Counts failed reloads, each keeping the previous config.
+     *
+     * @return the number of failed reloads.
+     */
+    default long getReloadFailureCount() {
+        return 0;
+    }
+
+    /**
+     * Provides a fixed config, eg a config created programmatically.
+     */
+    class FixedConfigLoader implements ConfigLoader {
+        private final Config config;
+
+        FixedConfigLoader(Config config) {
+            this.config = config;
+        }
+
+        public Config getCurrentConfig() {
+            return config;
+        }
+
+        public Config getOrLoadIfModified() {
+            return config;
+        }
+
+        public boolean hasModifications() {
+            return false;
+        }
+    }
+
+    /**
+     * Loads the config from a YAML file, reloading if modified.
+     * <p>
+     * The current config is published as a snapshot, replaced as a whole by a successful reload and never modified
+     * after publishing. Readers get the current config without locking, only reloads are serialized.
+     * A failed reload (unreadable, unparseable or invalid config) keeps the previous config,
+     * and is not retried until the file is modified again.
+     * <p>
+     * The file timestamp is checked at most once per check interval, instead of on every scrape.
+     */
     class FileConfigLoader implements ConfigLoader {
+        private static final Logger LOGGER = LoggerFactory.getLogger(FileConfigLoader.class);
+        static final long DEFAULT_CHECK_INTERVAL_MS = 5000L;
+
         private final File filename;
-        private long lastModifiedTimestamp;
-        private Config config;
+        private final long checkIntervalNs;
+        // File timestamp of the last modification check
+        private volatile long checkedLastModifiedTimestamp;
+        private volatile long nextCheckNs;
+        private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+        private final AtomicLong reloadFailures = new AtomicLong();
+
+        /**
+         * A loaded config, with the file timestamp of the (possibly failed) last load.
+         */
+        private static final class Snapshot {
+            private final Config config;
+            private final long lastModifiedTimestamp;
+
+            private Snapshot(Config config, long lastModifiedTimestamp) {
+                this.config = config;
+                this.lastModifiedTimestamp = lastModifiedTimestamp;
+            }
+        }
 
         FileConfigLoader(File filename) {
+            this(filename, DEFAULT_CHECK_INTERVAL_MS);
+        }
+
+        /**
+         * @param filename        the config file.
+         * @param checkIntervalMs the min time in milliseconds between checks of the file timestamp.
+         */
+        FileConfigLoader(File filename, long checkIntervalMs) {
             this.filename = filename;
+            checkIntervalNs = TimeUnit.MILLISECONDS.toNanos(checkIntervalMs);
+            nextCheckNs = System.nanoTime();
         }
 
-        public synchronized Config getCurrentConfig() {
-            if (null == config) {
+        public Config getCurrentConfig() {
+            final Snapshot current = snapshot.get();
+            if (null == current) {
                 return getOrLoadIfModified(); // Load if not initialized yet
             }
-            return config;
+            return current.config;
         }
 
-        public synchronized Config getOrLoadIfModified() {
+        public Config getOrLoadIfModified() {
             // Check if previous config exists and if there are no intermediate modifications since last load
-            if (null != config && !hasModifications()) {
-                return config;
+            final Snapshot current = snapshot.get();
+            if (null != current && !hasModifications()) {
+                return current.config;
             }
+            return reload().config;
+        }
 
-            // Load
-            try (FileInputStream is = new FileInputStream(filename)) {
-                lastModifiedTimestamp = filename.lastModified();
-                config = new Yaml().loadAs(is, Config.class);
-                return config;
-            } catch (IOException e) {
-                throw new IllegalStateException("Can not load config from file " + filename, e);
+        public boolean hasModifications() {
+            final long nowNs = System.nanoTime();
+            if (nowNs - nextCheckNs >= 0) {
+                nextCheckNs = nowNs + checkIntervalNs;
+                checkedLastModifiedTimestamp = filename.lastModified();
             }
+            final Snapshot current = snapshot.get();
+            return checkedLastModifiedTimestamp > (null == current ? 0L : current.lastModifiedTimestamp);
+        }
+
+        @Override
+        public long getReloadFailureCount() {
+            return reloadFailures.get();
         }
 
-        public synchronized boolean hasModifications() {
-            return filename.lastModified() > lastModifiedTimestamp;
+        private synchronized Snapshot reload() {
+            final Snapshot current = snapshot.get();
+            // Possibly reloaded concurrently
+            if (null != current && !hasModifications()) {
+                return current;
+            }
+
+            final long lastModifiedTimestamp = filename.lastModified();
+            checkedLastModifiedTimestamp = lastModifiedTimestamp;
+            nextCheckNs = System.nanoTime() + checkIntervalNs;
+            Snapshot loaded;
+            try (FileInputStream is = new FileInputStream(filename)) {
+                final Config config = new Yaml().loadAs(is, Config.class);
+                if (null == config) {
+                    throw new IllegalArgumentException("Empty config");
+                }
+                config.validate();
+                loaded = new Snapshot(config, lastModifiedTimestamp);
+            } catch (IOException | RuntimeException e) {
+                if (null == current) {
+                    throw new IllegalStateException("Can not load config from file " + filename, e);
+                }
+                reloadFailures.incrementAndGet();
+                LOGGER.error("Can not reload config from file {}, keeping previous config", filename, e);
+                loaded = new Snapshot(current.config, lastModifiedTimestamp);
+            }
+            snapshot.set(loaded);
+            return loaded;
         }
     }
 }
@@ -0,0 +1,263 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pools connections such as Knox sessions for reuse across probe cycles.
+ * <p>
+ * Connections are grouped by a key, eg Knox URL and user, and get borrowed exclusively:
+ * Cancelling a probe by closing its connection must not affect other probes.
+ * Idle connections are evicted after the idle timeout or max lifetime,
+ * and unhealthy connections (eg after an error) are closed instead of returned to the pool.
+ * Idle connections can optionally be validated before being reused.
+ * <p>
+ * If disabled, borrowing always opens a new connection and releasing closes it.
+ *
+ * @param <C> the connection type.
+ */
+class ConnectionPool<C extends AutoCloseable> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * Opens a new connection.
+     *
+     * @param <C> the connection type.
+     * @param <E> the exception type thrown when failing to open a connection.
+     */
+    @FunctionalInterface
+    interface ConnectionFactory<C, E extends Exception> {
+        C open() throws E;
+    }
+
+    private static class PooledConnection<C> {
+        private final C connection;
+        private final long createdNs;
+        private long lastUsedNs;
+
+        PooledConnection(C connection, long createdNs) {
+            this.connection = connection;
+            this.createdNs = createdNs;
+            this.lastUsedNs = createdNs;
+        }
+    }
+
+    private final String name;
+    private final Predicate<C> validator;
+    private final Map<String, Deque<PooledConnection<C>>> idleConnections = new HashMap<>();
+    private final Map<C, PooledConnection<C>> borrowedConnections = new IdentityHashMap<>();
+    private boolean configured;
+    private boolean enabled;
+    private long idleTimeoutNs;
+    private long maxLifetimeNs;
+
+    /**
+     * @param name the pool name, for logging.
+     */
+    ConnectionPool(String name) {
+        this(name, connection -> true);
+    }
+
+    /**
+     * @param name      the pool name, for logging.
+     * @param validator validates an idle connection before reuse.
+     */
+    ConnectionPool(String name, Predicate<C> validator) {
+        this.name = name;
+        this.validator = validator;
+    }
+
+    /**
+     * (Re)configures the pool, closing all idle connections if the pool config changed.
+     *
+     * @param poolConfig the pool config.
+     */
+    void configure(Config.PoolConfig poolConfig) {
+        final long newIdleTimeoutNs = poolConfig.getIdleTimeout() * 1000L * 1000L;
+        final long newMaxLifetimeNs = poolConfig.getMaxLifetime() * 1000L * 1000L;
+        synchronized (this) {
+            if (configured && enabled == poolConfig.isEnabled()
+                    && idleTimeoutNs == newIdleTimeoutNs && maxLifetimeNs == newMaxLifetimeNs) {
+                return; // Unchanged, keep warm connections
+            }
+            configured = true;
+            enabled = poolConfig.isEnabled();
+            idleTimeoutNs = newIdleTimeoutNs;
+            maxLifetimeNs = newMaxLifetimeNs;
+        }
+        LOGGER.info("Configured {} pool : enabled={}, idleTimeout={}ms, maxLifetime={}ms", name,
+                poolConfig.isEnabled(), poolConfig.getIdleTimeout(), poolConfig.getMaxLifetime());
+        clear();
+    }
+
+    /**
+     * Borrows an idle connection, or opens a new one if none is available.
+     *
+     * @param key     the connection group key.
+     * @param factory opens a new connection.
+     * @param <E>     the exception type thrown when failing to open a connection.
+     * @return the connection, to be released by {@link #release(String, AutoCloseable, boolean)}.
+     * @throws E if opening a new connection fails.
+     */
+    <E extends Exception> C borrow(String key, ConnectionFactory<C, E> factory) throws E {
+        PooledConnection<C> pooledConnection;
+        while (null != (pooledConnection = pollIdle(key))) {
+            // Validate outside of lock, as validation might block
+            if (validator.test(pooledConnection.connection)) {
+                synchronized (this) {
+                    borrowedConnections.put(pooledConnection.connection, pooledConnection);
+                }
+                return pooledConnection.connection;
+            }
+            LOGGER.debug("Discarding invalid {} connection", name);
+            closeAll(Collections.singletonList(pooledConnection.connection));
+        }
+
+        final C connection = factory.open();
+        synchronized (this) {
+            borrowedConnections.put(connection, new PooledConnection<>(connection, System.nanoTime()));
+        }
+        return connection;
+    }
+
+    private PooledConnection<C> pollIdle(String key) {
+        final List<C> expired = new ArrayList<>();
+        try {
+            synchronized (this) {
+                final Deque<PooledConnection<C>> idle = idleConnections.get(key);
+                final long now = System.nanoTime();
+                while (null != idle && !idle.isEmpty()) {
+                    PooledConnection<C> pooledConnection = idle.pollFirst(); // Most recently used first
+                    if (isExpired(pooledConnection, now)) {
+                        expired.add(pooledConnection.connection);
+                    } else {
+                        return pooledConnection;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            closeAll(expired);
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, or closes it if unhealthy, expired or pooling is disabled.
+     *
+     * @param key        the connection group key.
+     * @param connection the borrowed connection.
+     * @param healthy    false, if the connection must not be reused (eg after an error).
+     */
+    void release(String key, C connection, boolean healthy) {
+        synchronized (this) {
+            final PooledConnection<C> pooledConnection = borrowedConnections.remove(connection);
+            if (null != pooledConnection && healthy && enabled) {
+                pooledConnection.lastUsedNs = System.nanoTime();
+                if (!isExpired(pooledConnection, pooledConnection.lastUsedNs)) {
+                    idleConnections.computeIfAbsent(key, k -> new ArrayDeque<>()).offerFirst(pooledConnection);
+                    return;
+                }
+            }
+        }
+        closeAll(Collections.singletonList(connection));
+    }
+
+    /**
+     * Closes idle connections exceeding idle timeout or max lifetime.
+     */
+    void evictExpired() {
+        final List<C> expired = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            for (Iterator<Deque<PooledConnection<C>>> iter = idleConnections.values().iterator(); iter.hasNext(); ) {
+                final Deque<PooledConnection<C>> idle = iter.next();
+                idle.removeIf(pooledConnection -> {
+                    if (isExpired(pooledConnection, now)) {
+                        expired.add(pooledConnection.connection);
+                        return true;
+                    }
+                    return false;
+                });
+                if (idle.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+        if (!expired.isEmpty()) {
+            LOGGER.debug("Evicting {} expired {} connections", expired.size(), name);
+            closeAll(expired);
+        }
+    }
+
+    /**
+     * Closes idle connections of groups no longer in use, eg after removing a target.
+     *
+     * @param keys the connection group keys still in use.
+     */
+    void retainKeys(Collection<String> keys) {
+        final List<C> removed = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Deque<PooledConnection<C>>>> iter = idleConnections.entrySet().iterator();
+                 iter.hasNext(); ) {
+                final Map.Entry<String, Deque<PooledConnection<C>>> entry = iter.next();
+                if (!keys.contains(entry.getKey())) {
+                    for (PooledConnection<C> pooledConnection : entry.getValue()) {
+                        removed.add(pooledConnection.connection);
+                    }
+                    iter.remove();
+                }
+            }
+        }
+        if (!removed.isEmpty()) {
+            LOGGER.debug("Closing {} {} connections no longer in use", removed.size(), name);
+            closeAll(removed);
+        }
+    }
+
+    /**
+     * @return the number of idle pooled connections.
+     */
+    synchronized int getIdleCount() {
+        int count = 0;
+        for (Deque<PooledConnection<C>> idle : idleConnections.values()) {
+            count += idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections get closed when released.
+     */
+    void clear() {
+        final List<C> idle = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<PooledConnection<C>> pooledConnections : idleConnections.values()) {
+                for (PooledConnection<C> pooledConnection : pooledConnections) {
+                    idle.add(pooledConnection.connection);
+                }
+            }
+            idleConnections.clear();
+            // Borrowed connections must not return to the pool
+            borrowedConnections.clear();
+        }
+        closeAll(idle);
+    }
+
+    private boolean isExpired(PooledConnection<C> pooledConnection, long now) {
+        return now - pooledConnection.lastUsedNs > idleTimeoutNs
+                || now - pooledConnection.createdNs > maxLifetimeNs;
+    }
+
+    private void closeAll(List<C> connections) {
+        for (C connection : connections) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                LOGGER.warn("Failed to close {} connection. Ignoring.", name, e);
+            }
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package de.m3y.prometheus.exporter.knox;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,6 +15,13 @@ import org.slf4j.LoggerFactory;
 /**
  * Customized thread pool executor supporting timing tasks and cancelling blocking tasks.
  * <p>
+ * Runs tasks either on a pool of platform threads or on a new virtual thread per task.
+ * Timed tasks get cancelled when exceeding their timeout, counted from when the task starts running.
+ * Timed tasks not picked up by a thread within their timeout plus the queue grace period get cancelled as well,
+ * eg while all threads are stuck, so that waiting for a task is always bounded.
+ * The time a task waits for a thread (queue wait) is tracked separately,
+ * as well as the time waiting for a shared limit of {@link Limited} tasks.
+ * <p>
  * See http://jcip.net/listings/TimingThreadPool.java and http://jcip.net/listings/SocketUsingTask.java
  */
 class CustomExecutor extends ThreadPoolExecutor {
@@ -21,11 +35,29 @@ class CustomExecutor extends ThreadPoolExecutor {
      * @param <T> The result type returned by {@code get}
      */
     static class TimedFutureTask<T> extends FutureTask<T> {
-        private long startTimeNs;
-        private long durationNs;
+        static final long NOT_STARTED = -1L;
+        private final Callable<T> callable;
+        private volatile long submitTimeNs;
+        private volatile long queueWaitNs = NOT_STARTED;
+        private volatile long startTimeNs;
+        private volatile long durationNs;
+        private volatile long cancelTimeNs;
+        // Set once when still running after cancellation plus grace period
+        private boolean abandoned;
+        private volatile long timeoutNs;
+        private volatile ScheduledFuture<?> deadline;
+        private volatile ScheduledFuture<?> queueDeadline;
+        // Time in nanoseconds of the queue deadline, or zero if none
+        private volatile long queueDeadlineNs;
+        private volatile boolean pickedUp;
+        private volatile BiConsumer<Callable<T>, Future<T>> completionListener;
+        private final CountDownLatch notified = new CountDownLatch(1);
+        // Releases the acquired limit, if a limited task
+        private Runnable limitRelease;
 
         public TimedFutureTask(Callable<T> callable) {
             super(callable);
+            this.callable = callable;
         }
 
         /**
@@ -35,6 +67,45 @@ class CustomExecutor extends ThreadPoolExecutor {
             return durationNs;
         }
 
+        /**
+         * @return the time in nanoseconds between submission and start, or {@link #NOT_STARTED}.
+         */
+        public long getQueueWaitNs() {
+            return queueWaitNs;
+        }
+
+        /**
+         * Initializes the submission time, for tracking the queue wait.
+         */
+        public void markSubmitted() {
+            this.submitTimeNs = System.nanoTime();
+        }
+
+        /**
+         * @return timeout in nanoseconds, or zero if none.
+         */
+        public long getTimeoutNs() {
+            return timeoutNs;
+        }
+
+        /**
+         * @param timeoutNs timeout in nanoseconds after start, or zero if none.
+         */
+        public void setTimeoutNs(long timeoutNs) {
+            this.timeoutNs = timeoutNs;
+        }
+
+        /**
+         * Stops the queue wait, when a thread picks up the task.
+         */
+        public void stopQueueWait() {
+            pickedUp = true;
+            stopQueueDeadline();
+            if (submitTimeNs != 0) {
+                queueWaitNs = System.nanoTime() - submitTimeNs;
+            }
+        }
+
         /**
          * Initializes the start time.
          */
@@ -46,16 +117,216 @@ class CustomExecutor extends ThreadPoolExecutor {
          * Initializes the end time.
          */
         public void stopTimer() {
-            durationNs = System.nanoTime() - startTimeNs;
+            // Not started tasks (eg cancelled while queued) have no duration
+            durationNs = startTimeNs == 0 ? 0 : System.nanoTime() - startTimeNs;
+        }
+
+        /**
+         * @param completionListener notified when task completes or gets cancelled.
+         */
+        public void setCompletionListener(BiConsumer<Callable<T>, Future<T>> completionListener) {
+            this.completionListener = completionListener;
         }
 
+        @Override
+        protected void done() {
+            final BiConsumer<Callable<T>, Future<T>> listener = completionListener;
+            if (null != listener) {
+                try {
+                    listener.accept(callable, this);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to notify completion of {}", callable, e);
+                }
+            }
+            notified.countDown();
+        }
+
+        /**
+         * Waits until the completion listener got notified, as waiters of a future wake up before notification.
+         *
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        void awaitNotified() throws InterruptedException {
+            notified.await();
+        }
+
+        /**
+         * Waits for the limit of a {@link Limited} task at most for the task timeout and until the queue deadline,
+         * cancelling the task if timed out or interrupted.
+         * <p>
+         * Does not wait for a task already cancelled (eg by the queue deadline while queued), or picked up
+         * after its queue deadline, so that a worker thread is not blocked for a task that will not run.
+         *
+         * @return false, if cancelled.
+         */
+        private boolean acquireLimit() {
+            if (isCancelled()) {
+                return false;
+            }
+            long limitTimeoutNs = timeoutNs;
+            final long deadlineNs = queueDeadlineNs;
+            if (deadlineNs != 0) {
+                final long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    LOGGER.debug("Cancelling {}, as picked up after queue deadline", callable);
+                    cancel(false);
+                    return false;
+                }
+                limitTimeoutNs = Math.min(limitTimeoutNs, remainingNs);
+            }
+            if (callable instanceof Limited) {
+                try {
+                    limitRelease = ((Limited) callable).acquireLimit(limitTimeoutNs);
+                } catch (InterruptedException e) {
+                    cancel(false);
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (null == limitRelease) {
+                    LOGGER.debug("Cancelling {}, as not acquiring limit within timeout", callable);
+                    cancel(false);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void releaseLimit() {
+            final Runnable release = limitRelease;
+            if (null != release) {
+                limitRelease = null;
+                release.run();
+            }
+        }
+
+        private void startDeadline(ScheduledExecutorService deadlineTimer) {
+            if (timeoutNs > 0) {
+                deadline = deadlineTimer.schedule(() -> cancel(true), timeoutNs, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stopDeadline() {
+            final ScheduledFuture<?> scheduledDeadline = deadline;
+            if (null != scheduledDeadline) {
+                scheduledDeadline.cancel(false);
+            }
+            stopQueueDeadline();
+        }
+
+        /**
+         * Cancels the task, if not picked up by a thread within the timeout plus grace period after submission.
+         */
+        private void startQueueDeadline(ScheduledExecutorService deadlineTimer, long gracePeriodNs) {
+            if (timeoutNs > 0) {
+                queueDeadlineNs = System.nanoTime() + timeoutNs + gracePeriodNs;
+                queueDeadline = deadlineTimer.schedule(() -> {
+                    if (!pickedUp) {
+                        LOGGER.warn("Cancelling {}, as not started within {}ms after submission", callable,
+                                TimeUnit.NANOSECONDS.toMillis(timeoutNs + gracePeriodNs));
+                        cancel(false);
+                    }
+                }, timeoutNs + gracePeriodNs, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stopQueueDeadline() {
+            final ScheduledFuture<?> scheduledQueueDeadline = queueDeadline;
+            if (null != scheduledQueueDeadline) {
+                scheduledQueueDeadline.cancel(false);
+            }
+        }
+
+        @Override
+        protected void set(T t) {
+            if (!isDone()) {
+                stopTimer(); // Before completing, so that waiters see the duration
+                stopDeadline();
+            }
+            super.set(t);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (!isDone()) {
+                stopTimer();
+                stopDeadline();
+            }
+            super.setException(t);
+        }
+
+        /**
+         * Cancels the task and afterwards the (blocking) operation, if callable is a {@link CancellableCallable}.
+         * <p>
+         * Marks the task as cancelled before cancelling the operation, so that a blocking call
+         * failing due to eg a closed socket does not complete the task first.
+         *
+         * @param mayInterruptIfRunning {@code true} if the thread executing this task should be interrupted
+         * @return {@code false} if the task could not be cancelled, typically because it has already completed
+         */
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            cancelTimeNs = System.nanoTime();
             stopTimer();
-            return super.cancel(mayInterruptIfRunning);
+            stopDeadline();
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && callable instanceof CancellableCallable) {
+                try {
+                    ((CancellableCallable<T>) callable).cancel();
+                } catch (Exception ex) {
+                    LOGGER.debug("Ignoring exception when cancelling {}", callable, ex);
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return callable.toString();
         }
     }
 
+    /**
+     * A task limiting its own run time.
+     */
+    interface TimeLimited {
+        /**
+         * @return the timeout in milliseconds, or zero for the default timeout.
+         */
+        long getTimeoutMs();
+    }
+
+    /**
+     * A task starting delayed, eg for spreading the start times of tasks.
+     */
+    interface StartDelayed {
+        /**
+         * @return the delay in milliseconds before submitting the task, or zero for starting right away.
+         */
+        long getStartDelayMs();
+    }
+
+    /**
+     * A task sharing a limit with other tasks, eg of concurrency or rate per gateway.
+     * <p>
+     * The task thread waits for the limit before the task starts, so that waiting counts neither as
+     * task duration nor as queue wait. Waiting is bounded by the task timeout and the queue deadline, and a task
+     * not acquiring the limit in time gets cancelled like a task exceeding its timeout (eg while tasks holding
+     * the limit hang).
+     */
+    interface Limited {
+        /**
+         * Waits until the task may start, at most for the timeout.
+         *
+         * @param timeoutNs the max wait in nanoseconds, or zero if unbounded.
+         * @return releases the acquired limit after the task ran, or null if timed out.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        Runnable acquireLimit(long timeoutNs) throws InterruptedException;
+    }
+
     /**
      * See http://jcip.net/listings/SocketUsingTask.java
      *
@@ -72,11 +343,301 @@ class CustomExecutor extends ThreadPoolExecutor {
          *
          * @return a new instance
          */
-        RunnableFuture<T> newTask();
+        default RunnableFuture<T> newTask() {
+            return new TimedFutureTask<>(this);
+        }
     }
 
+    private final boolean virtual;
+    private final ScheduledThreadPoolExecutor deadlineTimer = createDeadlineTimer();
+    private final LongAdder rejectedTaskCount = new LongAdder();
+    private final LongAdder abandonedTaskCount = new LongAdder();
+    private volatile long queueGracePeriodNs;
+    // Timed tasks currently running on a thread, including cancelled tasks not yet returned
+    private final Set<TimedFutureTask<?>> runningTasks = ConcurrentHashMap.newKeySet();
+
     public CustomExecutor() {
         super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        virtual = false;
+        setRejectedExecutionHandler(this::reject);
+        prestartAllCoreThreads(); // Avoid thread creation skewing the first task timing
+    }
+
+    /**
+     * Creates an executor starting a new (virtual) thread per task, without keeping idle threads.
+     *
+     * @param threadFactory the thread factory, eg for virtual threads.
+     */
+    private CustomExecutor(ThreadFactory threadFactory) {
+        super(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), threadFactory);
+        virtual = true;
+        setRejectedExecutionHandler(this::reject);
+    }
+
+    private void reject(Runnable r, ThreadPoolExecutor executor) {
+        rejectedTaskCount.increment();
+        throw new RejectedExecutionException("Task " + r + " rejected from " + executor);
+    }
+
+    private static ScheduledThreadPoolExecutor createDeadlineTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "knox-deadline-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true); // Most deadlines get cancelled, as tasks complete in time
+        return timer;
+    }
+
+    /**
+     * Creates an executor for the given mode.
+     *
+     * @param executorMode the executor mode.
+     * @return a new executor, falling back to platform threads if virtual threads are not supported.
+     */
+    static CustomExecutor create(Config.ExecutorMode executorMode) {
+        if (Config.ExecutorMode.VIRTUAL == executorMode) {
+            final ThreadFactory threadFactory = createVirtualThreadFactory();
+            if (null != threadFactory) {
+                return new CustomExecutor(threadFactory);
+            }
+            LOGGER.warn("Virtual threads not supported by JVM {}, falling back to platform threads",
+                    System.getProperty("java.version"));
+        }
+        return new CustomExecutor();
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()}, available since Java 21.
+     *
+     * @return the virtual thread factory, or null if not supported.
+     */
+    static ThreadFactory createVirtualThreadFactory() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException
+                | InvocationTargetException e) { // Eg preview feature not enabled
+            LOGGER.debug("Can not create virtual thread factory", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true, if running each task on a new virtual thread.
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the number of tasks rejected, eg after shutdown.
+     */
+    long getRejectedTaskCount() {
+        return rejectedTaskCount.sum();
+    }
+
+    /**
+     * Counts tasks still running although cancelled, eg with a thread stuck in a blocking close.
+     *
+     * @return the number of cancelled running tasks.
+     */
+    int getCancelledRunningTaskCount() {
+        int count = 0;
+        for (TimedFutureTask<?> task : runningTasks) {
+            if (task.isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks tasks still running after cancellation plus grace period as abandoned.
+     * <p>
+     * The thread of an abandoned task is not available for other tasks until the task returns.
+     *
+     * @param gracePeriodNs the grace period in nanoseconds after cancellation.
+     * @return the number of abandoned running tasks.
+     */
+    int updateAbandonedTasks(long gracePeriodNs) {
+        final long nowNs = System.nanoTime();
+        int count = 0;
+        for (TimedFutureTask<?> task : runningTasks) {
+            synchronized (task) {
+                if (!task.abandoned && task.isCancelled() && nowNs - task.cancelTimeNs > gracePeriodNs) {
+                    task.abandoned = true;
+                    abandonedTaskCount.increment();
+                    LOGGER.warn("Abandoning task {} still running {}ms after cancellation", task,
+                            TimeUnit.NANOSECONDS.toMillis(nowNs - task.cancelTimeNs));
+                }
+                if (task.abandoned) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param queueGracePeriodNs the time in nanoseconds after the task timeout, until a task not yet picked up
+     *                           by a thread gets cancelled.
+     */
+    void setQueueGracePeriodNs(long queueGracePeriodNs) {
+        this.queueGracePeriodNs = queueGracePeriodNs;
+    }
+
+    /**
+     * @return the number of tasks marked abandoned, since executor creation.
+     */
+    long getAbandonedTaskCount() {
+        return abandonedTaskCount.sum();
+    }
+
+    /**
+     * Ensures that the given number of tasks can run in parallel.
+     * <p>
+     * Resizes the pool of platform threads. Virtual threads are not pooled and need no resizing.
+     *
+     * @param parallelism the number of parallel tasks.
+     */
+    void ensureParallelism(int parallelism) {
+        if (virtual) {
+            return;
+        }
+        if (parallelism > getMaximumPoolSize()) {
+            // Grow max first, as core pool size must not exceed max pool size
+            setMaximumPoolSize(parallelism);
+            setCorePoolSize(parallelism);
+        } else if (parallelism < getMaximumPoolSize()) {
+            setCorePoolSize(parallelism);
+            setMaximumPoolSize(parallelism);
+        }
+    }
+
+    /**
+     * Executes the given tasks, cancelling each task exceeding the timeout.
+     * <p>
+     * Unlike {@link ThreadPoolExecutor#invokeAll(Collection, long, TimeUnit)}, the timeout of each
+     * task counts from when the task starts running: Thread start up or queueing does not count.
+     * Tasks implementing {@link TimeLimited} use their own timeout, each with an independent deadline.
+     * Tasks implementing {@link StartDelayed} get submitted after their delay, which does not count as queue wait.
+     *
+     * @param tasks   the collection of tasks
+     * @param timeout the maximum time for each task to run
+     * @param unit    the time unit of the timeout argument
+     * @param <T>     the type of the values returned from the tasks
+     * @return a list of Futures representing the tasks, in the same sequential order as given by the tasks
+     * @throws InterruptedException if interrupted while waiting, in which case unfinished tasks are cancelled
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return invokeAll(tasks, timeout, unit, null);
+    }
+
+    /**
+     * Executes the given tasks like {@link #invokeAll(Collection, long, TimeUnit)}, notifying the
+     * completion listener as soon as each task completes or gets cancelled.
+     * <p>
+     * This allows handling results of fast tasks without waiting for slow tasks.
+     *
+     * @param tasks              the collection of tasks
+     * @param timeout            the maximum time for each task to run
+     * @param unit               the time unit of the timeout argument
+     * @param completionListener notified on completion of each task, or null.
+     * @param <T>                the type of the values returned from the tasks
+     * @return a list of Futures representing the tasks, in the same sequential order as given by the tasks
+     * @throws InterruptedException if interrupted while waiting, in which case unfinished tasks are cancelled
+     */
+    <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit,
+                                  BiConsumer<Callable<T>, Future<T>> completionListener)
+            throws InterruptedException {
+        final long defaultTimeoutNs = unit.toNanos(timeout);
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        final List<ScheduledFuture<?>> delayedStarts = new ArrayList<>();
+        boolean done = false;
+        try {
+            for (Callable<T> task : tasks) {
+                final RunnableFuture<T> future = newTaskFor(task);
+                if (future instanceof TimedFutureTask) {
+                    final TimedFutureTask<T> timedFutureTask = (TimedFutureTask<T>) future;
+                    final long taskTimeoutMs = task instanceof TimeLimited ? ((TimeLimited) task).getTimeoutMs() : 0;
+                    timedFutureTask.setTimeoutNs(taskTimeoutMs > 0
+                            ? TimeUnit.MILLISECONDS.toNanos(taskTimeoutMs) : defaultTimeoutNs);
+                    timedFutureTask.setCompletionListener(completionListener);
+                }
+                futures.add(future);
+                final long startDelayMs = task instanceof StartDelayed ? ((StartDelayed) task).getStartDelayMs() : 0;
+                if (startDelayMs > 0) {
+                    delayedStarts.add(deadlineTimer.schedule(() -> submitDelayed(future), startDelayMs,
+                            TimeUnit.MILLISECONDS));
+                } else {
+                    markSubmitted(future);
+                    execute(future);
+                    startQueueDeadline(future);
+                }
+            }
+            for (Future<T> future : futures) {
+                awaitDone(future, defaultTimeoutNs);
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                for (ScheduledFuture<?> delayedStart : delayedStarts) {
+                    delayedStart.cancel(false);
+                }
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a task after its start delay.
+     * A task rejected after its delay (eg on shutdown) gets cancelled, so that waiting for it completes.
+     */
+    private void submitDelayed(RunnableFuture<?> future) {
+        markSubmitted(future);
+        try {
+            execute(future);
+            startQueueDeadline(future);
+        } catch (RejectedExecutionException e) {
+            future.cancel(false);
+        }
+    }
+
+    private void startQueueDeadline(RunnableFuture<?> future) {
+        if (future instanceof TimedFutureTask) {
+            ((TimedFutureTask<?>) future).startQueueDeadline(deadlineTimer, queueGracePeriodNs);
+        }
+    }
+
+    private static void markSubmitted(RunnableFuture<?> future) {
+        if (future instanceof TimedFutureTask) {
+            ((TimedFutureTask<?>) future).markSubmitted();
+        }
+    }
+
+    private static void awaitDone(Future<?> future, long timeoutNs) throws InterruptedException {
+        try {
+            if (future instanceof TimedFutureTask) {
+                // Bounded, as cancelled by the queue deadline if not started, and by the deadline if running
+                future.get();
+            } else {
+                future.get(timeoutNs, TimeUnit.NANOSECONDS);
+            }
+        } catch (CancellationException | ExecutionException ignored) {
+            // Handled by caller inspecting the future
+        } catch (TimeoutException e) {
+            future.cancel(true);
+        }
+        if (future instanceof TimedFutureTask) {
+            ((TimedFutureTask<?>) future).awaitNotified();
+        }
     }
 
     @Override
@@ -88,15 +649,29 @@ class CustomExecutor extends ThreadPoolExecutor {
             LOGGER.debug("Before execution of timed {}", name);
         }
         if (r instanceof TimedFutureTask) {
-            ((TimedFutureTask) r).startTimer();
+            final TimedFutureTask<?> task = (TimedFutureTask<?>) r;
+            runningTasks.add(task);
+            task.stopQueueWait();
+            if (task.acquireLimit()) {
+                task.startTimer();
+                task.startDeadline(deadlineTimer);
+            }
         }
     }
 
+    @Override
+    protected void terminated() {
+        deadlineTimer.shutdownNow();
+        super.terminated();
+    }
+
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
         try {
+            // Timer gets stopped on completion or cancellation of the task
             if (r instanceof TimedFutureTask) {
-                ((TimedFutureTask) r).stopTimer();
+                ((TimedFutureTask<?>) r).releaseLimit();
+                runningTasks.remove(r);
             } else {
                 LOGGER.warn("Runnable not of expected type {} but of type {} for {}",
                         TimedFutureTask.class, r.getClass(), r);
@@ -0,0 +1,123 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Limits the concurrency and rate of requests to a gateway (bulkhead), shared by all actions of the gateway.
+ * <p>
+ * A request first waits for a rate token, then for a concurrency permit, so that waiting for a token
+ * does not hold a permit. Tokens are spaced by the inverse rate, allowing a burst after idling
+ * (generic cell rate algorithm). Waiting for a permit is fair, in order of arrival.
+ * <p>
+ * Thread safe.
+ */
+class GatewayLimiter {
+    static final Runnable NO_RELEASE = () -> {
+    };
+
+    private final String gateway;
+    // Null if concurrency is unlimited
+    private final Semaphore permits;
+    // Zero if rate is unlimited
+    private final long tokenIntervalNs;
+    private final long burstNs;
+    private final DoubleConsumer waitDuration;
+    // Guarded by this
+    private long nextTokenNs;
+    private boolean tokenIssued;
+
+    /**
+     * @param gateway      the gateway, as host and port.
+     * @param config       the limits.
+     * @param waitDuration records the wait duration in seconds of each request.
+     */
+    GatewayLimiter(String gateway, Config.GatewayLimitConfig config, DoubleConsumer waitDuration) {
+        this.gateway = gateway;
+        permits = config.getMaxConcurrent() > 0 ? new Semaphore(config.getMaxConcurrent(), true) : null;
+        tokenIntervalNs = config.getRate() > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / config.getRate()) : 0;
+        burstNs = Math.max(0, config.getBurst() - 1) * tokenIntervalNs;
+        this.waitDuration = waitDuration;
+    }
+
+    String getGateway() {
+        return gateway;
+    }
+
+    /**
+     * Waits until a request may start, at most for the timeout.
+     * <p>
+     * A token not available within the timeout is not reserved.
+     *
+     * @param timeoutNs the max wait in nanoseconds, or zero if unbounded.
+     * @return releases the concurrency permit after the request, or null if timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    Runnable acquire(long timeoutNs) throws InterruptedException {
+        final long startNs = System.nanoTime();
+        try {
+            if (tokenIntervalNs > 0) {
+                final long tokenWaitNs = reserveToken(startNs, timeoutNs);
+                if (tokenWaitNs < 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.sleep(tokenWaitNs);
+            }
+            if (null == permits) {
+                return NO_RELEASE;
+            }
+            if (timeoutNs > 0) {
+                final long remainingNs = timeoutNs - (System.nanoTime() - startNs);
+                return permits.tryAcquire(Math.max(0L, remainingNs), TimeUnit.NANOSECONDS) ? permits::release : null;
+            }
+            permits.acquire();
+            return permits::release;
+        } finally {
+            waitDuration.accept((System.nanoTime() - startNs) / 1E9);
+        }
+    }
+
+    /**
+     * @param nowNs     the current time in nanoseconds.
+     * @param timeoutNs the max wait in nanoseconds, or zero if unbounded.
+     * @return the wait in nanoseconds until the reserved token becomes available, or -1 if exceeding the timeout.
+     */
+    private synchronized long reserveToken(long nowNs, long timeoutNs) {
+        // Unused tokens accumulate up to the burst
+        if (!tokenIssued || nextTokenNs - (nowNs - burstNs) < 0) {
+            nextTokenNs = nowNs - burstNs;
+            tokenIssued = true;
+        }
+        final long tokenWaitNs = Math.max(0L, nextTokenNs - nowNs);
+        if (timeoutNs > 0 && tokenWaitNs > timeoutNs) {
+            return -1L;
+        }
+        nextTokenNs += tokenIntervalNs;
+        return tokenWaitNs;
+    }
+
+    /**
+     * Derives the gateway of a Knox URL or a Hive JDBC URL.
+     *
+     * @param uri the Knox URL or JDBC URL.
+     * @return the host and port (if given), or the authority if not parseable as host (eg ZooKeeper quorum).
+     */
+    static String gatewayOf(String uri) {
+        final String url = uri.startsWith("jdbc:") ? uri.substring("jdbc:".length()) : uri;
+        try {
+            final URI parsed = new URI(url);
+            if (null != parsed.getHost()) {
+                return parsed.getPort() < 0 ? parsed.getHost() : parsed.getHost() + ':' + parsed.getPort();
+            }
+            if (null != parsed.getAuthority()) {
+                return parsed.getAuthority();
+            }
+        } catch (URISyntaxException e) {
+            // Fall through
+        }
+        return uri;
+    }
+}
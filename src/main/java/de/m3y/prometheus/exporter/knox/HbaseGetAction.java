@@ -0,0 +1,24 @@
+package de.m3y.prometheus.exporter.knox;
+
+import org.apache.knox.gateway.shell.AbstractRequest;
+import org.apache.knox.gateway.shell.BasicResponse;
+import org.apache.knox.gateway.shell.KnoxSession;
+import org.apache.knox.gateway.shell.hbase.HBase;
+
+/**
+ * Gets the canary row, reading from the RegionServer hosting it.
+ */
+class HbaseGetAction extends AbstractHbaseRowAction {
+    static final String ACTION = "hbase_get";
+
+    HbaseGetAction(KnoxCollector collector, String knoxUrl, String table, String column, String rowKey,
+                   String username, String password, int timeout) {
+        super(collector, ACTION, knoxUrl, table, column, rowKey, username, password, timeout);
+    }
+
+    @Override
+    protected AbstractRequest<? extends BasicResponse> createRequest(KnoxSession knoxSession) {
+        // Missing row fails with 404, eg if never put
+        return HBase.session(knoxSession).table(table).row(rowKey).query().column(column[0], column[1]);
+    }
+}
@@ -0,0 +1,24 @@
+package de.m3y.prometheus.exporter.knox;
+
+import org.apache.knox.gateway.shell.AbstractRequest;
+import org.apache.knox.gateway.shell.BasicResponse;
+import org.apache.knox.gateway.shell.KnoxSession;
+import org.apache.knox.gateway.shell.hbase.HBase;
+
+/**
+ * Puts the canary row, storing the current time, and writing to the RegionServer hosting it.
+ */
+class HbasePutAction extends AbstractHbaseRowAction {
+    static final String ACTION = "hbase_put";
+
+    HbasePutAction(KnoxCollector collector, String knoxUrl, String table, String column, String rowKey,
+                   String username, String password, int timeout) {
+        super(collector, ACTION, knoxUrl, table, column, rowKey, username, password, timeout);
+    }
+
+    @Override
+    protected AbstractRequest<? extends BasicResponse> createRequest(KnoxSession knoxSession) {
+        return HBase.session(knoxSession).table(table).row(rowKey).store()
+                .column(column[0], column[1], String.valueOf(System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,143 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.prometheus.client.Gauge;
+import org.apache.knox.gateway.shell.BasicResponse;
+import org.apache.knox.gateway.shell.KnoxSession;
+import org.apache.knox.gateway.shell.KnoxShellException;
+import org.apache.knox.gateway.shell.hbase.HBase;
+import org.apache.knox.gateway.shell.hbase.table.Table;
+import org.apache.knox.gateway.shell.hbase.table.scanner.CreateScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the canary row key range, up to the scan limit, using a stateful HBase REST scanner.
+ * <p>
+ * The scanner is always deleted, as it otherwise occupies RegionServer resources until its lease expires.
+ */
+class HbaseScanAction extends KnoxCollector.AbstractKnoxBaseAction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HbaseScanAction.class);
+
+    static final String ACTION = "hbase_scan";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private final KnoxCollector collector;
+    private final String table;
+    private final String startRow;
+    private final String endRow;
+    private final int scanLimit;
+    // Resolved on first scan
+    private Gauge.Child scanRowsPerSecond;
+
+    HbaseScanAction(KnoxCollector collector, String knoxUrl, String table, String startRow, String endRow,
+                    int scanLimit, String username, String password, int timeout) {
+        collector.super(ACTION, knoxUrl, username, password, table, timeout);
+        this.collector = collector;
+        this.table = table;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.scanLimit = scanLimit;
+    }
+
+    @Override
+    protected int execute(KnoxSession knoxSession) throws IOException {
+        final Table hbaseTable = HBase.session(knoxSession).table(table);
+        final long startNs = System.nanoTime();
+        final String scannerId;
+        try (CreateScanner.Response response = hbaseTable.scanner().create()
+                .startRow(startRow).endRow(endRow).batch(scanLimit).now()) {
+            if (response.getStatusCode() != 201) {
+                logFailedResponse(response);
+                return response.getStatusCode();
+            }
+            scannerId = response.getScannerId();
+        }
+
+        try {
+            int rows = 0;
+            String lastRowKey = null;
+            while (rows < scanLimit) {
+                try (BasicResponse response = hbaseTable.scanner(scannerId).getNext().now()) {
+                    if (response.getStatusCode() == 204) {
+                        break; // Exhausted
+                    }
+                    if (response.getStatusCode() != 200) {
+                        logFailedResponse(response);
+                        return response.getStatusCode();
+                    }
+                    final List<String> rowKeys = readRowKeys(response.getStream());
+                    if (rowKeys.isEmpty()) {
+                        break;
+                    }
+                    for (String rowKey : rowKeys) {
+                        // Batch is limited by cells, so a row can continue in next batch
+                        if (!rowKey.equals(lastRowKey)) {
+                            rows++;
+                            lastRowKey = rowKey;
+                        }
+                    }
+                }
+            }
+            observeScanRows(rows, System.nanoTime() - startNs);
+            return 200;
+        } finally {
+            deleteScanner(hbaseTable, scannerId);
+        }
+    }
+
+    private void deleteScanner(Table hbaseTable, String scannerId) {
+        try (BasicResponse response = hbaseTable.scanner(scannerId).delete().now()) {
+            LOGGER.debug("Deleted HBase scanner {} of {} : {}", scannerId, Arrays.toString(getLabels()),
+                    response.getStatusCode());
+        } catch (KnoxShellException e) {
+            LOGGER.warn("Failed to delete HBase scanner {} of {} : {}", scannerId, Arrays.toString(getLabels()),
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the (base64 encoded) row keys of a JSON cell set, without parsing the cells into a tree.
+     *
+     * @param inputStream the JSON cell set.
+     * @return the row keys, with a row occurring once per contained batch.
+     * @throws IOException on failure reading or parsing.
+     */
+    private static List<String> readRowKeys(InputStream inputStream) throws IOException {
+        final List<String> rowKeys = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            JsonToken token;
+            while (null != (token = parser.nextToken())) {
+                // Only rows have a key field, cells have column, timestamp and value fields
+                if (token == JsonToken.FIELD_NAME && "key".equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    rowKeys.add(parser.getText());
+                }
+            }
+        }
+        return rowKeys;
+    }
+
+    private void observeScanRows(int rows, long durationNs) {
+        if (null == scanRowsPerSecond) {
+            scanRowsPerSecond = collector.hbaseScanRowsPerSecond(getTargetLabels());
+        }
+        final double durationSeconds = KnoxCollector.toSeconds(durationNs);
+        if (durationSeconds > 0) {
+            scanRowsPerSecond.set(rows / durationSeconds);
+        }
+    }
+
+    @Override
+    void resetSeries() {
+        super.resetSeries();
+        scanRowsPerSecond = null;
+    }
+}
@@ -2,6 +2,7 @@ package de.m3y.prometheus.exporter.knox;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -67,6 +68,13 @@ public class HomePageServlet extends HttpServlet {
                     .append("<li>Queries : ").append(Arrays.toString(hiveService.getQueries())).append("</li>")
                     .append("</ul></li>");
         }
+        buf.append("</ul></li>")
+                .append("<li>Probe modules (/probe?module=&lt;name&gt;&amp;target=&lt;url&gt;)<ul>");
+        for (Map.Entry<String, Config.ProbeModule> entry : config.getModules().entrySet()) {
+            buf.append("<li>").append(entry.getKey()).append(" : ").append(entry.getValue().getProber())
+                    .append(", allowed targets ").append(entry.getValue().getAllowedTargets())
+                    .append("</li>");
+        }
         buf.append("</ul></li></html>");
         resp.setContentType("text/html");
         resp.getWriter().print(buf); // NOSONAR
@@ -0,0 +1,178 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+
+/**
+ * Authentication cookies of a Knox gateway and user, shared by all sessions of the gateway and user.
+ * <p>
+ * Knox sets a cookie (eg the hadoop-jwt token or the session id) when authenticating a request with credentials,
+ * which requires a LDAP or PAM bind. While holding a valid cookie, sessions send the cookie only.
+ * A cookie is valid until its expiry, the exp claim of a JWT value or the configured max age, whichever is first.
+ * <p>
+ * Thread safe, for sessions used concurrently.
+ */
+class KnoxAuthSession {
+    /**
+     * Reason for authenticating a request with credentials.
+     */
+    enum Reason {
+        /**
+         * No authentication cookie obtained yet, or Knox does not set any.
+         */
+        NO_COOKIE,
+        /**
+         * The authentication cookie expired.
+         */
+        EXPIRED,
+        /**
+         * Knox rejected the authentication cookie, eg due to a gateway restart.
+         */
+        REJECTED;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @return the reason label value.
+         */
+        String getLabel() {
+            return label;
+        }
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String SET_COOKIE = "Set-Cookie";
+
+    private final Set<String> cookieNames;
+    private final long maxAgeMs;
+    private final BasicCookieStore cookieStore = new BasicCookieStore();
+    // Guarded by this
+    private boolean authenticated;
+    private long expiresAtMs;
+
+    KnoxAuthSession(Config.AuthCookieConfig config) {
+        cookieNames = new HashSet<>(Arrays.asList(config.getCookieNames()));
+        maxAgeMs = config.getMaxAge();
+    }
+
+    /**
+     * @return the cookie store shared by the sessions.
+     */
+    CookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    /**
+     * Checks for a valid authentication cookie, dropping expired authentication cookies.
+     * Knox prefers a session cookie over credentials, so that expired cookies must not be sent.
+     *
+     * @param nowMs the current time in milliseconds.
+     * @return true, if holding an authentication cookie not yet expired.
+     */
+    synchronized boolean validateAuthCookie(long nowMs) {
+        if (authenticated && nowMs < expiresAtMs) {
+            final Date now = new Date(nowMs);
+            for (Cookie cookie : cookieStore.getCookies()) {
+                if (cookieNames.contains(cookie.getName()) && !cookie.isExpired(now)) {
+                    return true;
+                }
+            }
+        }
+        dropAuthCookies();
+        return false;
+    }
+
+    /**
+     * @return the reason for authenticating with credentials, if not holding a valid authentication cookie.
+     */
+    synchronized Reason getMissingReason() {
+        return authenticated ? Reason.EXPIRED : Reason.NO_COOKIE;
+    }
+
+    /**
+     * Tracks the authentication cookie set by the response of a request authenticated with credentials.
+     * The cookie itself is stored by the HTTP client.
+     *
+     * @param response the response.
+     * @param nowMs    the current time in milliseconds.
+     * @return true, if the response sets an authentication cookie.
+     */
+    synchronized boolean authenticated(HttpResponse response, long nowMs) {
+        boolean authCookie = false;
+        long newExpiresAtMs = nowMs + maxAgeMs;
+        for (Header header : response.getHeaders(SET_COOKIE)) {
+            final String value = header.getValue();
+            final int nameEnd = value.indexOf('=');
+            if (nameEnd > 0 && cookieNames.contains(value.substring(0, nameEnd).trim())) {
+                authCookie = true;
+                int valueEnd = value.indexOf(';', nameEnd);
+                if (valueEnd < 0) {
+                    valueEnd = value.length();
+                }
+                newExpiresAtMs = Math.min(newExpiresAtMs, getJwtExpiryMs(value.substring(nameEnd + 1, valueEnd)));
+            }
+        }
+        if (authCookie) {
+            authenticated = true;
+            expiresAtMs = newExpiresAtMs;
+        }
+        return authCookie;
+    }
+
+    /**
+     * Drops the authentication cookies, as rejected by Knox.
+     */
+    synchronized void rejected() {
+        expiresAtMs = 0;
+        dropAuthCookies();
+    }
+
+    private void dropAuthCookies() {
+        final List<Cookie> cookies = cookieStore.getCookies();
+        if (cookies.stream().anyMatch(cookie -> cookieNames.contains(cookie.getName()))) {
+            cookieStore.clear();
+            cookies.stream().filter(cookie -> !cookieNames.contains(cookie.getName())).forEach(cookieStore::addCookie);
+        }
+    }
+
+    /**
+     * @param value the cookie value.
+     * @return the expiry in milliseconds by the exp claim if the value is a JWT, or {@link Long#MAX_VALUE}.
+     */
+    static long getJwtExpiryMs(String value) {
+        final String[] parts = value.trim().split("\\.");
+        if (parts.length != 3) {
+            return Long.MAX_VALUE;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(Base64.getUrlDecoder().decode(parts[1]))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Long.MAX_VALUE;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.VALUE_NUMBER_INT && "exp".equals(field)) {
+                    return parser.getLongValue() * 1000L;
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Not a JWT
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -2,15 +2,25 @@ package de.m3y.prometheus.exporter.knox;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.DoubleConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.Supplier;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.Summary;
 import org.apache.hive.jdbc.HiveDriver;
 import org.apache.knox.gateway.shell.*;
@@ -26,6 +36,12 @@ public class KnoxCollector extends Collector {
     private static final Logger LOGGER = LoggerFactory.getLogger(KnoxCollector.class);
 
     static final String METRIC_PREFIX = "knox_exporter_";
+    // Executor label values, for probe cycles and for on demand probes
+    private static final String EXECUTOR_SCRAPE = "scrape";
+    private static final String EXECUTOR_PROBE = "probe";
+    private static final List<String> EXECUTOR_LABELS = Collections.singletonList("executor");
+    private static final List<String> EXECUTOR_SCRAPE_LABEL_VALUES = Collections.singletonList(EXECUTOR_SCRAPE);
+    private static final List<String> EXECUTOR_PROBE_LABEL_VALUES = Collections.singletonList(EXECUTOR_PROBE);
 
     private final Counter metricScapeRequests = Counter.build()
             .name(METRIC_PREFIX + "scrape_requests_total")
@@ -38,70 +54,603 @@ public class KnoxCollector extends Collector {
 
     private final Gauge metricScrapeDuration = Gauge.build()
             .name(METRIC_PREFIX + "scrape_duration_seconds")
-            .help("Scrape duration")
+            .help("Scrape duration (duration of last probe cycle, if probing in background)")
             .create();
     private final Counter metricConfigReloads = Counter.build()
             .name(METRIC_PREFIX + "config_reloads_total")
             .help("Number of configuration reloads")
             .create();
 
+    private final Counter metricKnoxSessionsOpened = Counter.build()
+            .name(METRIC_PREFIX + "knox_sessions_opened_total")
+            .help("Number of opened Knox sessions")
+            .create();
+
+    private final Summary metricHiveConnectionAcquireDuration = Summary.build()
+            .name(METRIC_PREFIX + "hive_connection_acquire_duration_seconds")
+            .help("Duration of acquiring a Hive JDBC connection, either pooled or newly opened")
+            .labelNames("uri", "user")
+            .create();
+    private final Summary metricHiveQueryDuration = Summary.build()
+            .name(METRIC_PREFIX + "hive_query_duration_seconds")
+            .help("Duration of executing a Hive query on an acquired connection")
+            .labelNames("uri", "user", "param")
+            .create();
+
+    private final Summary metricKnoxOpsPhaseDuration = Summary.build()
+            .name(METRIC_PREFIX + "ops_phase_duration_seconds")
+            .help("Duration of Knox request phases (resolve, connect, tls, auth, processing)")
+            .labelNames("action", "uri", "user", "param", "phase")
+            .create();
+
+    private final Counter metricKnoxAuthentications = Counter.build()
+            .name(METRIC_PREFIX + "knox_authentications_total")
+            .help("Knox requests authenticated with credentials instead of a reused authentication cookie")
+            .labelNames("uri", "user", "reason")
+            .create();
+
+    private final Counter metricOverlappingProbesSkipped = Counter.build()
+            .name(METRIC_PREFIX + "overlapping_probes_skipped_total")
+            .help("Number of probes skipped, as the previous probe of the target is still running")
+            .create();
+
+    private final Summary metricExecutorQueueWait = Summary.build()
+            .name(METRIC_PREFIX + "executor_queue_wait_seconds")
+            .help("Time actions waited for an executor thread before running")
+            .labelNames("executor")
+            .create();
+    private final Summary.Child metricExecutorQueueWaitScrape = metricExecutorQueueWait.labels(EXECUTOR_SCRAPE);
+    private final Summary.Child metricExecutorQueueWaitProbe = metricExecutorQueueWait.labels(EXECUTOR_PROBE);
+
+    private final Summary metricGatewayLimitWait = Summary.build()
+            .name(METRIC_PREFIX + "gateway_limit_wait_seconds")
+            .help("Time actions waited for the concurrency and rate limits of their gateway before running")
+            .labelNames("gateway")
+            .create();
+
+    private final Counter metricCircuitBreakerSkippedProbes = Counter.build()
+            .name(METRIC_PREFIX + "circuit_breaker_skipped_probes_total")
+            .help("Number of probes skipped due to an open circuit breaker")
+            .create();
+
+    private final Summary metricWebHdfsThroughputOperationDuration = Summary.build()
+            .name(METRIC_PREFIX + "webhdfs_throughput_operation_duration_seconds")
+            .help("Duration of WebHDFS data path operations (write, read, delete) of the throughput probe")
+            .labelNames("uri", "user", "param", "operation")
+            .create();
+    private final Gauge metricWebHdfsThroughput = Gauge.build()
+            .name(METRIC_PREFIX + "webhdfs_throughput_bytes_per_second")
+            .help("Throughput of the last WebHDFS write and read of the throughput probe payload")
+            .labelNames("uri", "user", "param", "operation")
+            .create();
+
+    private final Gauge metricHbaseScanRowsPerSecond = Gauge.build()
+            .name(METRIC_PREFIX + "hbase_scan_rows_per_second")
+            .help("Rows per second of the last HBase canary scan")
+            .labelNames("uri", "user", "param")
+            .create();
+
     private final Counter metricKnoxOpsErrors = Counter.build()
             .name(METRIC_PREFIX + "ops_errors_total")
             .help("Ops error counts.")
             .labelNames("action", "uri", "user", "param", "status")
             .create();
 
+    private static final String METRIC_OPS_DURATION = METRIC_PREFIX + "ops_duration_seconds";
+    private static final String METRIC_OPS_DURATION_HELP = "Duration of successful and failed operations";
+    private static final String[] METRIC_OPS_DURATION_LABELS = {"action", "uri", "user", "param", "status"};
     private final Summary metricKnoxOpsDuration = Summary.build()
-            .name(METRIC_PREFIX + "ops_duration_seconds")
-            .help("Duration of successful and failed operations")
-            .labelNames("action", "uri", "user", "param", "status")
+            .name(METRIC_OPS_DURATION)
+            .help(METRIC_OPS_DURATION_HELP)
+            .labelNames(METRIC_OPS_DURATION_LABELS)
             .quantile(0.5, 0.05)
             .quantile(0.95, 0.01)
             .quantile(0.99, 0.001)
             .create();
+    private static final String METRIC_OPS_RESULT_AGE = METRIC_PREFIX + "ops_result_age_seconds";
+    private static final List<String> METRIC_OPS_RESULT_AGE_LABELS = Arrays.asList("action", "uri", "user", "param");
+
+    private static final String METRIC_KNOX_SESSIONS_IDLE = METRIC_PREFIX + "knox_sessions_idle";
+    private static final String METRIC_SERIES = METRIC_PREFIX + "series";
+    private static final String METRIC_SHARD_OWNED_TARGETS = METRIC_PREFIX + "shard_owned_targets";
+    private static final String METRIC_SHARD_HEALTHY_PEERS = METRIC_PREFIX + "shard_healthy_peers";
+    private static final String METRIC_CIRCUIT_BREAKER_STATE = METRIC_PREFIX + "circuit_breaker_state";
+
+    private static final String METRIC_PROBE_SUCCESS = "probe_success";
+    private static final String METRIC_PROBE_DURATION = "probe_duration_seconds";
+    private static final String METRIC_PROBE_STATUS = METRIC_PREFIX + "probe_status";
+    private static final String METRIC_PROBE_PHASE_DURATION = METRIC_PREFIX + "probe_phase_duration_seconds";
+    private static final DoubleConsumer NO_OBSERVATION = value -> {
+    };
+    private static final ObjDoubleConsumer<TimedKnoxSession.Phase> NO_PHASE_OBSERVATION = (phase, value) -> {
+    };
+
     private static final String ACTION_HIVE_QUERY = "hive_query";
     private static final String ACTION_WEBHDFS_STATUS = "webhdfs_status";
     private static final String ACTION_HBASE_STATUS = "hbase_status";
 
     private final ConfigLoader configLoader;
-    private final ThreadPoolExecutor executorService;
-    private final List<AbstractBaseAction> actions = new ArrayList<>();
+    private final SeriesRegistry series = new SeriesRegistry();
+    private Config.OpsDurationConfig opsDurationConfig;
+    // Incremented on reconfiguration, invalidating resolved ops duration children of actions
+    private volatile int opsDurationGeneration;
+    // Histograms by action type, or null if using summary
+    private volatile ConcurrentMap<String, Histogram> metricKnoxOpsDurationHistograms;
+    private volatile CustomExecutor executorService;
+    private volatile CustomExecutor probeExecutorService;
+    private Config.ExecutorMode executorMode;
+    private final ConnectionPool<TimedKnoxSession> knoxSessionPool = new ConnectionPool<>("Knox session");
+    // Authentication cookies by Knox session pool key, shared by pooled and unpooled sessions
+    private final Map<String, KnoxAuthSession> knoxAuthSessions = new ConcurrentHashMap<>();
+    private volatile Config.AuthCookieConfig knoxAuthCookieConfig;
+    // Limiters of limited gateways, replaced on reconfiguration
+    private volatile Map<String, GatewayLimiter> gatewayLimiters = Collections.emptyMap();
+    private final ConnectionPool<Connection> hiveConnectionPool =
+            new ConnectionPool<>("Hive JDBC", this::isValidHiveConnection);
+    private volatile String hiveValidationQuery;
+    private final ScheduledExecutorService probeScheduler;
+    private ScheduledFuture<?> probeSchedule;
+    private volatile int probeInterval;
+    // Replaced on reconfiguration, so that collecting snapshots does not interfere with probing
+    private volatile List<AbstractBaseAction> actions = Collections.emptyList();
+    // Subset of actions owned by this instance, if sharding
+    private volatile List<AbstractBaseAction> ownedActions = Collections.emptyList();
+    private final ShardManager shardManager = new ShardManager();
+    private volatile Config.CircuitBreakerConfig circuitBreakerConfig;
+    // Incremented by probing only, which is synchronized
+    private volatile long snapshotGeneration;
+    // If false, probing on scrape request is triggered by requestSnapshot() instead of collect()
+    private volatile boolean probeOnCollect = true;
+    private final Object probeRequestLock = new Object();
+    // Probe cycle not yet started, shared by all scrape requests arriving until it starts
+    private CompletableFuture<Void> pendingProbe;
+    // Written while holding this
+    private volatile Config appliedConfig;
 
     KnoxCollector(ConfigLoader configLoader) {
         this.configLoader = configLoader;
 
-        // Initialize with a default size. Will be later reconfigured depending on
-        // exporter configuration.
-        executorService = new CustomExecutor();
+        probeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knox-probe-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         metricConfigReloads.labels(); // Init
+        metricKnoxSessionsOpened.labels(); // Init
+        metricCircuitBreakerSkippedProbes.labels(); // Init
+        metricOverlappingProbesSkipped.labels(); // Init
+
+        // Fail fast, instead of on each probe
+        TimedKnoxSession.checkSupported();
 
         // Initially load config
-        configureActions(configLoader.getCurrentConfig());
+        final Config config = configLoader.getCurrentConfig();
+        config.validate();
+        final Map<List<Object>, AbstractBaseAction> previousActions = new HashMap<>();
+        configure(config, resolveActions(config, previousActions), previousActions);
     }
 
-    public synchronized List<MetricFamilySamples> collect() {
-        try (Gauge.Timer timer = metricScrapeDuration.startTimer()) {
+    public List<MetricFamilySamples> collect() {
+        if (probeOnCollect) {
             metricScapeRequests.inc();
+            if (!isProbingInBackground()) {
+                probe();
+            }
+        }
+
+        List<MetricFamilySamples> metricFamilySamplesList = collectLive();
+        metricFamilySamplesList.addAll(collectProbeResults());
+        return metricFamilySamplesList;
+    }
+
+    /**
+     * Collects the metrics changing with probe cycles only, so they can be cached per snapshot generation.
+     *
+     * @return the probe result metric families.
+     */
+    List<MetricFamilySamples> collectProbeResults() {
+        List<MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+        metricFamilySamplesList.addAll(metricScrapeErrors.collect());
+        metricFamilySamplesList.addAll(metricScrapeDuration.collect());
+        metricFamilySamplesList.addAll(metricKnoxOpsErrors.collect());
+        final Map<String, Histogram> histograms = metricKnoxOpsDurationHistograms;
+        if (null == histograms) {
+            metricFamilySamplesList.addAll(metricKnoxOpsDuration.collect());
+        } else {
+            metricFamilySamplesList.add(collectOpsDurationHistograms(histograms.values()));
+        }
+        metricFamilySamplesList.addAll(metricCircuitBreakerSkippedProbes.collect());
+        metricFamilySamplesList.addAll(metricHiveQueryDuration.collect());
+        metricFamilySamplesList.addAll(metricKnoxOpsPhaseDuration.collect());
+        metricFamilySamplesList.addAll(metricWebHdfsThroughputOperationDuration.collect());
+        metricFamilySamplesList.addAll(metricWebHdfsThroughput.collect());
+        metricFamilySamplesList.addAll(metricHbaseScanRowsPerSecond.collect());
+        return metricFamilySamplesList;
+    }
+
+    /**
+     * Collects the metrics changing independently of probe cycles,
+     * such as result ages, executor stats or metrics also updated by on-demand probes.
+     *
+     * @return the live metric families.
+     */
+    List<MetricFamilySamples> collectLive() {
+        List<MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+        metricFamilySamplesList.addAll(metricScapeRequests.collect());
+        metricFamilySamplesList.addAll(metricConfigReloads.collect());
+        metricFamilySamplesList.add(new CounterMetricFamily(METRIC_PREFIX + "config_reload_failures",
+                "Total number of failed configuration reloads, each keeping the previous configuration",
+                configLoader.getReloadFailureCount()));
+        metricFamilySamplesList.add(collectResultAges());
+        if (circuitBreakerConfig.isEnabled()) {
+            metricFamilySamplesList.add(collectCircuitBreakerStates());
+        }
+        metricFamilySamplesList.addAll(metricOverlappingProbesSkipped.collect());
+        metricFamilySamplesList.addAll(metricExecutorQueueWait.collect());
+        collectExecutorStats(metricFamilySamplesList);
+        metricFamilySamplesList.addAll(metricHiveConnectionAcquireDuration.collect());
+        metricFamilySamplesList.addAll(metricKnoxAuthentications.collect());
+        metricFamilySamplesList.addAll(metricGatewayLimitWait.collect());
+        metricFamilySamplesList.addAll(metricKnoxSessionsOpened.collect());
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_KNOX_SESSIONS_IDLE,
+                "Number of idle pooled Knox sessions", knoxSessionPool.getIdleCount()));
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_SERIES,
+                "Number of live labeled series of probed targets", series.size()));
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_SHARD_OWNED_TARGETS,
+                "Number of targets probed by this instance, if sharding", ownedActions.size()));
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_SHARD_HEALTHY_PEERS,
+                "Number of healthy exporter instances sharing targets, including this instance",
+                shardManager.getHealthyPeerCount()));
+        return metricFamilySamplesList;
+    }
+
+    /**
+     * Gets a collector of the live metrics only, for registering when exposing
+     * the probe results of {@link #collectProbeResults()} separately.
+     *
+     * @return the collector of {@link #collectLive()}.
+     */
+    Collector liveCollector() {
+        return new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return collectLive();
+            }
+        };
+    }
+
+    /**
+     * Merges the histograms of all action types, each possibly using different buckets, into one metric family.
+     *
+     * @param histograms the histograms.
+     * @return the merged metric family.
+     */
+    private static MetricFamilySamples collectOpsDurationHistograms(Collection<Histogram> histograms) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Histogram histogram : histograms) {
+            for (MetricFamilySamples metricFamilySamples : histogram.collect()) {
+                samples.addAll(metricFamilySamples.samples);
+            }
+        }
+        return new MetricFamilySamples(METRIC_OPS_DURATION, Type.HISTOGRAM, METRIC_OPS_DURATION_HELP, samples);
+    }
+
+    /**
+     * Computes the age of each action's last completed result.
+     *
+     * @return the age metric family.
+     */
+    private MetricFamilySamples collectResultAges() {
+        GaugeMetricFamily resultAges = new GaugeMetricFamily(METRIC_OPS_RESULT_AGE,
+                "Age of last completed operation result", METRIC_OPS_RESULT_AGE_LABELS);
+        final long now = System.nanoTime();
+        for (AbstractBaseAction action : ownedActions) {
+            final long lastResultNs = action.getLastResultNs();
+            if (lastResultNs != AbstractBaseAction.NO_RESULT) {
+                resultAges.addMetric(action.getTargetLabels(),
+                        toSeconds(now - lastResultNs));
+            }
+        }
+        return resultAges;
+    }
+
+    /**
+     * Reports the thread and task stats of the executors, for detecting the exporter itself being saturated.
+     *
+     * @param metricFamilySamplesList the list to add the metric families to.
+     */
+    private void collectExecutorStats(List<MetricFamilySamples> metricFamilySamplesList) {
+        final GaugeMetricFamily activeThreads = new GaugeMetricFamily(METRIC_PREFIX + "executor_active_threads",
+                "Number of threads running actions", EXECUTOR_LABELS);
+        final GaugeMetricFamily poolThreads = new GaugeMetricFamily(METRIC_PREFIX + "executor_pool_threads",
+                "Number of executor threads", EXECUTOR_LABELS);
+        final GaugeMetricFamily largestPoolThreads = new GaugeMetricFamily(
+                METRIC_PREFIX + "executor_largest_pool_threads",
+                "Largest number of executor threads, since executor creation", EXECUTOR_LABELS);
+        final GaugeMetricFamily queuedTasks = new GaugeMetricFamily(METRIC_PREFIX + "executor_queued_tasks",
+                "Number of actions waiting for a thread", EXECUTOR_LABELS);
+        final GaugeMetricFamily cancelledRunningTasks = new GaugeMetricFamily(
+                METRIC_PREFIX + "executor_cancelled_running_tasks",
+                "Number of actions still running after cancellation, eg stuck in a blocking close", EXECUTOR_LABELS);
+        final CounterMetricFamily completedTasks = new CounterMetricFamily(
+                METRIC_PREFIX + "executor_completed_tasks",
+                "Number of completed actions, since executor creation", EXECUTOR_LABELS);
+        final CounterMetricFamily rejectedTasks = new CounterMetricFamily(METRIC_PREFIX + "executor_rejected_tasks",
+                "Number of rejected actions, since executor creation", EXECUTOR_LABELS);
+        final CounterMetricFamily abandonedTasks = new CounterMetricFamily(METRIC_PREFIX + "executor_abandoned_tasks",
+                "Number of actions still running after cancellation plus grace period, since executor creation",
+                EXECUTOR_LABELS);
+        for (int i = 0; i < 2; i++) {
+            final CustomExecutor executor = i == 0 ? executorService : probeExecutorService;
+            final List<String> labelValues = i == 0 ? EXECUTOR_SCRAPE_LABEL_VALUES : EXECUTOR_PROBE_LABEL_VALUES;
+            activeThreads.addMetric(labelValues, executor.getActiveCount());
+            poolThreads.addMetric(labelValues, executor.getPoolSize());
+            largestPoolThreads.addMetric(labelValues, executor.getLargestPoolSize());
+            queuedTasks.addMetric(labelValues, executor.getQueue().size());
+            cancelledRunningTasks.addMetric(labelValues, executor.getCancelledRunningTaskCount());
+            completedTasks.addMetric(labelValues, executor.getCompletedTaskCount());
+            rejectedTasks.addMetric(labelValues, executor.getRejectedTaskCount());
+            abandonedTasks.addMetric(labelValues, executor.getAbandonedTaskCount());
+        }
+        metricFamilySamplesList.add(activeThreads);
+        metricFamilySamplesList.add(poolThreads);
+        metricFamilySamplesList.add(largestPoolThreads);
+        metricFamilySamplesList.add(queuedTasks);
+        metricFamilySamplesList.add(cancelledRunningTasks);
+        metricFamilySamplesList.add(completedTasks);
+        metricFamilySamplesList.add(rejectedTasks);
+        metricFamilySamplesList.add(abandonedTasks);
+    }
+
+    /**
+     * Reports the circuit breaker state of each action.
+     *
+     * @return the state metric family.
+     */
+    private MetricFamilySamples collectCircuitBreakerStates() {
+        GaugeMetricFamily states = new GaugeMetricFamily(METRIC_CIRCUIT_BREAKER_STATE,
+                "Circuit breaker state of target: 0 closed, 1 open (probes skipped), 2 half open (trial probe)",
+                METRIC_OPS_RESULT_AGE_LABELS);
+        for (AbstractBaseAction action : ownedActions) {
+            states.addMetric(action.getTargetLabels(), action.getCircuitBreaker().getState().ordinal());
+        }
+        return states;
+    }
 
+    /**
+     * @return the currently configured actions.
+     */
+    List<AbstractBaseAction> getActions() {
+        return actions;
+    }
+
+    private boolean isProbingInBackground() {
+        return probeInterval > 0;
+    }
+
+    /**
+     * Performs a probe cycle, either on scrape request or scheduled in background.
+     */
+    private synchronized void probe() {
+        try (Gauge.Timer timer = metricScrapeDuration.startTimer()) {
             scrapeKnox();
         } catch (Exception e) {
             metricScrapeErrors.inc();
             LOGGER.error("Scrape failed", e);
+        } finally {
+            snapshotGeneration++;
         }
+    }
 
-        List<MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
-        metricFamilySamplesList.addAll(metricScapeRequests.collect());
-        metricFamilySamplesList.addAll(metricScrapeErrors.collect());
-        metricFamilySamplesList.addAll(metricScrapeDuration.collect());
-        metricFamilySamplesList.addAll(metricConfigReloads.collect());
-        metricFamilySamplesList.addAll(metricKnoxOpsErrors.collect());
-        metricFamilySamplesList.addAll(metricKnoxOpsDuration.collect());
-        return metricFamilySamplesList; // Directly registered counters
+    /**
+     * Gets the generation of the probe results snapshot, changing with each completed probe cycle.
+     *
+     * @return the generation, or {@link CachedMetricsServlet#NO_GENERATION} if collect() probes on each scrape.
+     */
+    long getSnapshotGeneration() {
+        return isProbingInBackground() || !probeOnCollect ? snapshotGeneration : CachedMetricsServlet.NO_GENERATION;
+    }
+
+    /**
+     * Gets the max time a scrape request waits for a probe cycle: the probe spreading window,
+     * plus twice the longest action timeout (waiting for a gateway limit, then probing),
+     * plus the hung task grace period.
+     *
+     * @return the timeout in milliseconds.
+     */
+    long getScrapeTimeoutMs() {
+        final Config config = appliedConfig;
+        long maxActionTimeout = config.getTimeout();
+        for (AbstractBaseAction action : actions) {
+            maxActionTimeout = Math.max(maxActionTimeout, action.getTimeoutMs());
+        }
+        return config.getProbeSpreading().getWindow() + 2 * maxActionTimeout + config.getHungTaskGracePeriod();
+    }
+
+    /**
+     * Disables probing on collect(), for scrapes requesting a snapshot via {@link #requestSnapshot()}.
+     *
+     * @param probeOnCollect false, if scrapes request a snapshot before collecting.
+     */
+    void setProbeOnCollect(boolean probeOnCollect) {
+        this.probeOnCollect = probeOnCollect;
+    }
+
+    /**
+     * Requests a snapshot of probe results for a scrape, without blocking the calling thread.
+     * <p>
+     * If probing on scrape request, a probe cycle starts on the probe scheduler thread.
+     * Concurrent scrape requests arriving before the cycle starts share it,
+     * while requests arriving during the cycle share the next cycle.
+     *
+     * @return completes with the snapshot, immediately if probing in background.
+     */
+    CompletableFuture<Void> requestSnapshot() {
+        metricScapeRequests.inc();
+        if (isProbingInBackground()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (probeRequestLock) {
+            if (null == pendingProbe) {
+                final CompletableFuture<Void> probeCycle = new CompletableFuture<>();
+                probeScheduler.execute(() -> {
+                    synchronized (probeRequestLock) {
+                        pendingProbe = null; // Started, so later requests get the next cycle
+                    }
+                    try {
+                        probe();
+                    } finally {
+                        probeCycle.complete(null);
+                    }
+                });
+                pendingProbe = probeCycle;
+            }
+            return pendingProbe;
+        }
+    }
+
+    /**
+     * (Re)schedules background probing, if probe interval changed.
+     *
+     * @param config the current config.
+     */
+    private synchronized void configureProbeSchedule(Config config) {
+        if (config.getProbeInterval() == probeInterval) {
+            return;
+        }
+        probeInterval = config.getProbeInterval();
+        if (null != probeSchedule) {
+            probeSchedule.cancel(false);
+            probeSchedule = null;
+        }
+        if (probeInterval > 0) {
+            LOGGER.info("Probing in background every {}ms", probeInterval);
+            probeSchedule = probeScheduler.scheduleAtFixedRate(this::probe, 0, probeInterval, TimeUnit.MILLISECONDS);
+        } else {
+            LOGGER.info("Probing on scrape request");
+        }
+    }
+
+    /**
+     * (Re)configures the operation duration metric type and buckets, if changed.
+     * <p>
+     * Changing the type or buckets resets the recorded durations.
+     *
+     * @param config the current config.
+     */
+    private synchronized void configureOpsDuration(Config config) {
+        final Config.OpsDurationConfig newOpsDurationConfig = config.getOpsDuration();
+        if (newOpsDurationConfig.equals(opsDurationConfig)) {
+            return;
+        }
+        opsDurationConfig = newOpsDurationConfig;
+        opsDurationGeneration++;
+
+        series.forget(metricKnoxOpsDuration);
+        metricKnoxOpsDuration.clear();
+        final Map<String, Histogram> previousHistograms = metricKnoxOpsDurationHistograms;
+        if (null != previousHistograms) {
+            for (Histogram histogram : previousHistograms.values()) {
+                series.forget(histogram);
+            }
+        }
+
+        if (newOpsDurationConfig.getType() == Config.MetricType.HISTOGRAM) {
+            metricKnoxOpsDurationHistograms = new ConcurrentHashMap<>(); // Created lazily per action type
+        } else {
+            metricKnoxOpsDurationHistograms = null;
+        }
+        LOGGER.info("Recording operation durations as {}", newOpsDurationConfig.getType());
+    }
+
+    private Histogram createOpsDurationHistogram(String actionType) {
+        final Config.OpsDurationConfig config = opsDurationConfig;
+        final Histogram.Builder builder = Histogram.build()
+                .name(METRIC_OPS_DURATION)
+                .help(METRIC_OPS_DURATION_HELP)
+                .labelNames(METRIC_OPS_DURATION_LABELS);
+        final double[] actionBuckets = config.getActionBuckets().get(actionType);
+        if (null != actionBuckets) {
+            builder.buckets(actionBuckets);
+        } else if (null != config.getBuckets()) {
+            builder.buckets(config.getBuckets());
+        } else {
+            final Config.ExponentialBuckets exponentialBuckets = null != config.getExponentialBuckets()
+                    ? config.getExponentialBuckets() : new Config.ExponentialBuckets();
+            builder.exponentialBuckets(exponentialBuckets.getStart(), exponentialBuckets.getFactor(),
+                    exponentialBuckets.getCount());
+        }
+        return builder.create();
+    }
+
+    private void observeOpsDuration(AbstractBaseAction action, AbstractBaseAction.Status status,
+                                    double durationSeconds) {
+        final int generation = opsDurationGeneration;
+        if (action.opsDurationGeneration != generation) {
+            // Reconfigured, drop children of previous metric
+            Arrays.fill(action.opsDurationByStatus, null);
+            action.opsDurationGeneration = generation;
+        }
+        DoubleConsumer child = action.opsDurationByStatus[status.ordinal()];
+        if (null == child) {
+            child = resolveOpsDuration(action, action.getLabels(status));
+            action.opsDurationByStatus[status.ordinal()] = child;
+        }
+        child.accept(durationSeconds);
+    }
+
+    private DoubleConsumer resolveOpsDuration(AbstractBaseAction action, String[] labels) {
+        final ConcurrentMap<String, Histogram> histograms = metricKnoxOpsDurationHistograms;
+        if (null == histograms) {
+            return series.labels(metricKnoxOpsDuration, action.getTargetLabels(), labels)::observe;
+        }
+        final Histogram histogram = histograms.computeIfAbsent(labels[0], this::createOpsDurationHistogram);
+        return series.labels(histogram, action.getTargetLabels(), labels)::observe;
+    }
+
+    /**
+     * (Re)creates the executor, if executor mode changed.
+     * <p>
+     * A replaced executor finishes its running tasks in background.
+     *
+     * @param config the current config.
+     */
+    private synchronized void configureExecutor(Config config) {
+        final CustomExecutor previousExecutorService = executorService;
+        final CustomExecutor previousProbeExecutorService = probeExecutorService;
+        if (null == previousExecutorService || config.getExecutorMode() != executorMode) {
+            executorMode = config.getExecutorMode();
+            // Initialize with a default size. Will be later resized depending on number of actions.
+            executorService = CustomExecutor.create(config.getExecutorMode());
+            // Separate executor, so that on demand probes do not queue behind a probe cycle
+            probeExecutorService = CustomExecutor.create(config.getExecutorMode());
+            LOGGER.info("Running actions on {} threads", executorService.isVirtual() ? "virtual" : "platform");
+            if (null != previousExecutorService) {
+                previousExecutorService.shutdown();
+                previousProbeExecutorService.shutdown();
+            }
+        }
+        probeExecutorService.ensureParallelism(Math.max(1, config.getMaxConcurrentProbes()));
+        // Actions queued behind stuck threads time out as well
+        final long gracePeriodNs = TimeUnit.MILLISECONDS.toNanos(config.getHungTaskGracePeriod());
+        executorService.setQueueGracePeriodNs(gracePeriodNs);
+        probeExecutorService.setQueueGracePeriodNs(gracePeriodNs);
     }
 
     synchronized void shutdown() {
         final int timeout = 5;
+        LOGGER.info("Shutting down probe scheduler ...");
+        probeScheduler.shutdownNow();
+        synchronized (probeRequestLock) {
+            if (null != pendingProbe) {
+                pendingProbe.cancel(false); // Never started
+            }
+        }
+        shardManager.shutdown();
+        knoxSessionPool.clear();
+        hiveConnectionPool.clear();
+        probeExecutorService.shutdownNow();
         LOGGER.info("Shutting down executor service ...");
         executorService.shutdown(); // Disable new tasks from being submitted
         try {
@@ -121,19 +670,119 @@ public class KnoxCollector extends Collector {
         }
     }
 
+    /**
+     * Probes a single target on demand, using a probe module of the current config.
+     * <p>
+     * Runs independently of probe cycles and does not record the shared ops metrics.
+     * Only targets allowed by the module get probed, using new unpooled sessions or connections.
+     *
+     * @param moduleName the probe module name.
+     * @param target     the target, a Knox URL or a Hive JDBC URL depending on the module prober.
+     * @return the metrics of the probed target.
+     * @throws IllegalArgumentException if the module is unknown or the target is not allowed.
+     * @throws InterruptedException     if interrupted while waiting for the probe.
+     */
+    List<MetricFamilySamples> probeTarget(String moduleName, String target) throws InterruptedException {
+        final Config config = configLoader.getCurrentConfig();
+        final Config.ProbeModule module = config.getModules().get(moduleName);
+        if (null == module || null == module.getProber()) {
+            throw new IllegalArgumentException("Unknown probe module " + moduleName);
+        }
+        if (!module.isAllowedTarget(target)) {
+            throw new IllegalArgumentException("Target not allowed for probe module " + moduleName);
+        }
+        final String username = handleDefaultValue(module.getUsername(), config.getDefaultUsername());
+        final String password = handleDefaultValue(module.getPassword(), config.getDefaultPassword());
+        final Map<String, Double> phaseDurations = new ConcurrentHashMap<>();
+        final AbstractBaseAction action;
+        switch (module.getProber()) {
+            case WEBHDFS_STATUS:
+                action = new WebHdfsStatusAction(target, module.getStatusPath(), username, password,
+                        module.resolveTimeout(module.getStatusPath(), config.getTimeout()))
+                        .withoutPooling()
+                        .withPhaseDurations((phase, v) -> phaseDurations.put(phase.getLabel(), v));
+                break;
+            case HBASE_STATUS:
+                action = new HbaseStatusAction(target, username, password,
+                        module.resolveTimeout("-", config.getTimeout()))
+                        .withoutPooling()
+                        .withPhaseDurations((phase, v) -> phaseDurations.put(phase.getLabel(), v));
+                break;
+            case HIVE_QUERY:
+                initHiveDriver(config.getJdbcLoginTimeout());
+                action = new HiveQueryAction(target, module.getQuery(), username, password,
+                        module.resolveTimeout(module.getQuery(), config.getTimeout()))
+                        .withoutPooling()
+                        .withPhaseDurations(v -> phaseDurations.put("acquire", v),
+                                v -> phaseDurations.put("query", v));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported prober " + module.getProber());
+        }
+
+        // Limits protect configured gateways only, not arbitrary targets
+        action.setGatewayLimiter(gatewayLimiters.get(action.getGateway()));
+        final CustomExecutor probeExecutorService = this.probeExecutorService;
+        final int abandonedTasks = probeExecutorService.updateAbandonedTasks(
+                TimeUnit.MILLISECONDS.toNanos(config.getHungTaskGracePeriod()));
+        // Threads of abandoned probes are occupied. Replacing at most as many threads as allowed probes,
+        // as probes of arbitrary targets may keep hanging.
+        final int maxConcurrentProbes = Math.max(1, config.getMaxConcurrentProbes());
+        probeExecutorService.ensureParallelism(maxConcurrentProbes
+                + (config.isReplaceHungThreads() ? Math.min(abandonedTasks, maxConcurrentProbes) : 0));
+        final List<Future<Boolean>> futures = probeExecutorService.invokeAll(
+                Collections.singletonList(action), config.getTimeout(), TimeUnit.MILLISECONDS);
+        final CustomExecutor.TimedFutureTask<Boolean> future = (CustomExecutor.TimedFutureTask<Boolean>) futures.get(0);
+        observeQueueWait(metricExecutorQueueWaitProbe, future);
+        AbstractBaseAction.Status status = AbstractBaseAction.Status.ERROR_TIMEOUT;
+        boolean success = false;
+        if (!future.isCancelled()) {
+            try {
+                success = future.get();
+                status = action.getStatus();
+            } catch (ExecutionException e) {
+                LOGGER.error("Can not get result for probe " + action, e);
+                status = AbstractBaseAction.Status.ERROR_OTHER;
+            }
+        }
+
+        List<MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_PROBE_SUCCESS,
+                "Displays whether or not the probe was a success", success ? 1 : 0));
+        metricFamilySamplesList.add(new GaugeMetricFamily(METRIC_PROBE_DURATION,
+                "Returns how long the probe took to complete in seconds", toSeconds(future.getDurationNs())));
+        final GaugeMetricFamily probeStatus = new GaugeMetricFamily(METRIC_PROBE_STATUS,
+                "Probe result status", Arrays.asList(METRIC_OPS_DURATION_LABELS));
+        probeStatus.addMetric(Arrays.asList(action.getLabels(status)), 1);
+        metricFamilySamplesList.add(probeStatus);
+        if (!phaseDurations.isEmpty()) {
+            final GaugeMetricFamily probePhaseDuration = new GaugeMetricFamily(METRIC_PROBE_PHASE_DURATION,
+                    "Duration of probe phases in seconds", Collections.singletonList("phase"));
+            for (Map.Entry<String, Double> entry : phaseDurations.entrySet()) {
+                probePhaseDuration.addMetric(Collections.singletonList(entry.getKey()), entry.getValue());
+            }
+            metricFamilySamplesList.add(probePhaseDuration);
+        }
+        return metricFamilySamplesList;
+    }
+
     private void scrapeKnox() {
         Config config = updateConfigureAndActions();
+        final List<AbstractBaseAction> actions = selectProbedActions(updateOwnedActions(this.actions));
+        knoxSessionPool.evictExpired();
+        hiveConnectionPool.evictExpired();
 
-        // Resize pool?
-        if (actions.size() != executorService.getMaximumPoolSize()) {
-            executorService.setCorePoolSize(actions.size());
-            executorService.setMaximumPoolSize(actions.size());
-        }
+        final CustomExecutor executorService = this.executorService;
+        final int abandonedTasks = executorService.updateAbandonedTasks(
+                TimeUnit.MILLISECONDS.toNanos(config.getHungTaskGracePeriod()));
+        // Threads of abandoned actions are occupied. Bounded, as actions do not overlap.
+        executorService.ensureParallelism(Math.max(1, actions.size()
+                + (config.isReplaceHungThreads() ? abandonedTasks : 0)));
 
         try {
-            final int timeout = config.getTimeout();
-            List<Future<Boolean>> futures = executorService.invokeAll(actions, timeout, TimeUnit.MILLISECONDS);
-            updateMetrics(futures, actions);
+            // Each action has its own deadline, and metrics get updated as soon as an action completes
+            executorService.invokeAll(actions, config.getTimeout(), TimeUnit.MILLISECONDS,
+                    (action, future) -> updateMetrics(future, (AbstractBaseAction) action));
         } catch (InterruptedException ex) {
             metricScrapeErrors.inc();
             LOGGER.error("Failed to invoke actions", ex);
@@ -141,54 +790,101 @@ public class KnoxCollector extends Collector {
         }
     }
 
+    /**
+     * Skips actions with an open circuit breaker or with a previous call still running, keeping their last result.
+     *
+     * @param actions the owned actions.
+     * @return the actions to probe.
+     */
+    private List<AbstractBaseAction> selectProbedActions(List<AbstractBaseAction> actions) {
+        final Config.CircuitBreakerConfig config = circuitBreakerConfig;
+        final long now = System.nanoTime();
+        final List<AbstractBaseAction> probed = new ArrayList<>(actions.size());
+        for (AbstractBaseAction action : actions) {
+            if (action.isRunning()) {
+                // Eg cancelled, but not unblocked by closing its connection
+                metricOverlappingProbesSkipped.inc();
+                LOGGER.warn("Skipping {}, as previous call is still running", action);
+            } else if (action.getCircuitBreaker().allowProbe(config, now)) {
+                probed.add(action);
+            } else {
+                metricCircuitBreakerSkippedProbes.inc();
+            }
+        }
+        return probed;
+    }
+
     /**
      * Must be synchronized, as the actions list is modified.
      *
      * @return the current config
      */
     private synchronized Config updateConfigureAndActions() {
+        final long reloadFailures = configLoader.getReloadFailureCount();
         final boolean modifiedConfig = configLoader.hasModifications();
         Config config = configLoader.getOrLoadIfModified();
-        if (modifiedConfig) {
-            configureActions(config);
+        // A failed reload keeps the current config
+        if (modifiedConfig && configLoader.getReloadFailureCount() == reloadFailures) {
+            // Validated and actions created before applying any part, as a partly applied config stays
+            // until modified again
+            final Map<List<Object>, AbstractBaseAction> previousActions = new HashMap<>();
+            for (AbstractBaseAction action : this.actions) {
+                previousActions.put(action.getIdentity(), action);
+            }
+            final List<AbstractBaseAction> actions;
+            try {
+                config.validate();
+                actions = resolveActions(config, previousActions);
+            } catch (RuntimeException e) {
+                LOGGER.error("Can not reconfigure, keeping previous config", e);
+                return appliedConfig;
+            }
+            configure(config, actions, previousActions);
             metricConfigReloads.inc();
             LOGGER.info("Reloaded and reconfigured.");
         }
         return config;
     }
 
-    private void updateMetrics(List<Future<Boolean>> futures, List<AbstractBaseAction> actions) {
-        for (int i = 0; i < futures.size(); i++) {
-            final Future<Boolean> future = futures.get(i);
-            final AbstractBaseAction action = actions.get(i);
-            updateMetrics(future, action);
+    private static void observeQueueWait(Summary.Child queueWait, CustomExecutor.TimedFutureTask<?> future) {
+        final long queueWaitNs = future.getQueueWaitNs();
+        if (queueWaitNs != CustomExecutor.TimedFutureTask.NOT_STARTED) {
+            queueWait.observe(toSeconds(queueWaitNs));
         }
     }
 
-    private void updateMetrics(Future<Boolean> future, AbstractBaseAction action) {
+    void updateMetrics(Future<Boolean> future, AbstractBaseAction action) {
         if (future instanceof CustomExecutor.TimedFutureTask) {
+            observeQueueWait(metricExecutorQueueWaitScrape, (CustomExecutor.TimedFutureTask<?>) future);
             // convert ns to seconds
-            double durationSeconds = ((CustomExecutor.TimedFutureTask) future).getDurationNs() / 1000.0 / 1000.0 / 1000.0;
+            double durationSeconds = toSeconds(((CustomExecutor.TimedFutureTask) future).getDurationNs());
 
+            action.markResult();
             if (future.isCancelled()) {
                 // Timed out => ops error
-                metricKnoxOpsErrors.labels(action.getLabels()).inc();
-                metricKnoxOpsDuration.labels(action.getLabels())
-                        .observe(durationSeconds);
+                // Notified before action gets cancelled, so status still reflects the ongoing action
+                opsErrors(action, AbstractBaseAction.Status.ERROR_TIMEOUT).inc();
+                observeOpsDuration(action, AbstractBaseAction.Status.ERROR_TIMEOUT, durationSeconds);
+                action.getCircuitBreaker().recordResult(circuitBreakerConfig, true, System.nanoTime());
             } else {
                 try {
                     Boolean result = future.get();
-                    metricKnoxOpsDuration.labels(action.getLabels())
-                            .observe(durationSeconds);
+                    final AbstractBaseAction.Status status = action.getStatus();
+                    observeOpsDuration(action, status, durationSeconds);
                     if (!result) {
                         // Not OK => ops error
-                        metricKnoxOpsErrors.labels(action.getLabels()).inc();
+                        opsErrors(action, status).inc();
                     }
+                    // Authentication errors prove the target is reachable
+                    action.getCircuitBreaker().recordResult(circuitBreakerConfig,
+                            status == AbstractBaseAction.Status.ERROR_TIMEOUT
+                                    || status == AbstractBaseAction.Status.ERROR_OTHER,
+                            System.nanoTime());
                 } catch (ExecutionException | InterruptedException | CancellationException e) {
                     // Should not happen ...
                     LOGGER.error("Can not get result for action " + action, e);
-                    metricKnoxOpsErrors.labels(action.getLabels()).inc();
-                    metricKnoxOpsDuration.labels(action.getLabels()).observe(durationSeconds);
+                    opsErrors(action, action.getStatus()).inc();
+                    observeOpsDuration(action, action.getStatus(), durationSeconds);
                     metricScrapeErrors.inc();
 
                     if (e instanceof InterruptedException) {
@@ -201,19 +897,207 @@ public class KnoxCollector extends Collector {
         }
     }
 
-    private void configureActions(Config config) {
-        actions.clear();
+    private Counter.Child opsErrors(AbstractBaseAction action, AbstractBaseAction.Status status) {
+        Counter.Child child = action.opsErrorsByStatus[status.ordinal()];
+        if (null == child) {
+            child = series.labels(metricKnoxOpsErrors, action.getTargetLabels(), action.getLabels(status));
+            action.opsErrorsByStatus[status.ordinal()] = child;
+        }
+        return child;
+    }
+
+    /**
+     * Applies a validated config, with its actions already created.
+     *
+     * @param config          the validated config.
+     * @param actions         the reused or created actions of the config.
+     * @param previousActions the previous actions no longer in use.
+     */
+    private void configure(Config config, List<AbstractBaseAction> actions,
+                           Map<List<Object>, AbstractBaseAction> previousActions) {
+        appliedConfig = config;
+        configureExecutor(config);
+        configureOpsDuration(config);
+        shardManager.configure(config.getSharding());
+        circuitBreakerConfig = config.getCircuitBreaker();
+        configureActions(config, actions, previousActions);
+        configureProbeSchedule(config);
+    }
+
+    /**
+     * Resolves the actions of the config, diffing by target identity.
+     * <p>
+     * Unchanged actions get reused including warm state such as pooled sessions.
+     * Only added or changed actions get created, without registering them yet,
+     * so that failing to create an action leaves the current actions untouched.
+     *
+     * @param config          the config.
+     * @param previousActions the current actions by identity. Reused actions get removed.
+     * @return the reused or created actions.
+     */
+    private List<AbstractBaseAction> resolveActions(Config config,
+                                                    Map<List<Object>, AbstractBaseAction> previousActions) {
+        return createActions(config, (identity, factory) -> {
+            AbstractBaseAction action = previousActions.remove(identity);
+            if (null == action) {
+                action = factory.get();
+                action.setIdentity(identity);
+            }
+            return action;
+        });
+    }
+
+    /**
+     * (Re)configures the actions, swapping in the created actions at once.
+     * <p>
+     * Created actions get registered, and removed actions get torn down
+     * by closing their idle sessions and removing their metric children.
+     *
+     * @param config          the current config.
+     * @param actions         the reused or created actions.
+     * @param previousActions the previous actions no longer in use, as removed or changed.
+     */
+    private void configureActions(Config config, List<AbstractBaseAction> actions,
+                                  Map<List<Object>, AbstractBaseAction> previousActions) {
+        knoxSessionPool.configure(config.getKnoxSessionPool());
+        configureKnoxAuthCookie(config.getKnoxAuthCookie());
+        hiveValidationQuery = config.getHiveConnectionPool().getValidationQuery();
+        hiveConnectionPool.configure(config.getHiveConnectionPool());
+
+        final Set<AbstractBaseAction> currentActions = Collections.newSetFromMap(new IdentityHashMap<>());
+        currentActions.addAll(this.actions);
+        for (AbstractBaseAction action : actions) {
+            if (!currentActions.contains(action)) {
+                registerSeries(action);
+            }
+        }
+        configureProbeSpreading(config, actions);
+        configureGatewayLimits(config.getGatewayLimits(), actions);
+        this.actions = Collections.unmodifiableList(actions);
+        // Remaining previous actions got removed or changed
+        removeActions(previousActions.values(), actions);
+        LOGGER.info("Configured {} actions, removed or replaced {} actions", actions.size(), previousActions.size());
+    }
+
+    /**
+     * Assigns the start offset within the probe cycle of each action, if spreading probe starts.
+     *
+     * @param config  the current config.
+     * @param actions the configured actions.
+     */
+    private void configureProbeSpreading(Config config, List<AbstractBaseAction> actions) {
+        final Config.ProbeSpreadingConfig spreadingConfig = config.getProbeSpreading();
+        final List<List<String>> targets = new ArrayList<>(actions.size());
+        for (AbstractBaseAction action : actions) {
+            targets.add(action.getTargetLabels());
+        }
+        final Map<List<String>, Long> offsets = ProbeSpreader.computeOffsets(targets, spreadingConfig);
+        for (AbstractBaseAction action : actions) {
+            action.setStartDelayMs(offsets.get(action.getTargetLabels()));
+        }
+        if (spreadingConfig.isEnabled()) {
+            LOGGER.info("Spreading probe starts across {}ms, with gateway stagger of {}ms",
+                    spreadingConfig.getWindow(), spreadingConfig.getGatewayStagger());
+            if (config.getProbeInterval() > 0 && spreadingConfig.getWindow() >= config.getProbeInterval()) {
+                LOGGER.warn("Probe spreading window of {}ms not below probe interval of {}ms, delaying probe cycles",
+                        spreadingConfig.getWindow(), config.getProbeInterval());
+            }
+        }
+    }
+
+    /**
+     * Assigns a limiter shared by all actions of each limited gateway.
+     * <p>
+     * Limiters get replaced on reconfiguration, so that actions running during reconfiguration
+     * are not accounted by the new limits.
+     *
+     * @param limitsConfig the gateway limits config.
+     * @param actions      the configured actions.
+     */
+    private void configureGatewayLimits(Config.GatewayLimitsConfig limitsConfig, List<AbstractBaseAction> actions) {
+        final Map<String, GatewayLimiter> limiters = new HashMap<>();
+        for (AbstractBaseAction action : actions) {
+            final String gateway = action.getGateway();
+            final Config.GatewayLimitConfig limitConfig = limitsConfig.resolve(gateway);
+            GatewayLimiter limiter = null;
+            if (limitConfig.isEnabled()) {
+                limiter = limiters.computeIfAbsent(gateway,
+                        g -> new GatewayLimiter(g, limitConfig, metricGatewayLimitWait.labels(g)::observe));
+            }
+            action.setGatewayLimiter(limiter);
+        }
+        for (String gateway : gatewayLimiters.keySet()) {
+            if (!limiters.containsKey(gateway)) {
+                metricGatewayLimitWait.remove(gateway);
+            }
+        }
+        gatewayLimiters = limiters;
+        for (GatewayLimiter limiter : limiters.values()) {
+            final Config.GatewayLimitConfig limitConfig = limitsConfig.resolve(limiter.getGateway());
+            LOGGER.info("Limiting gateway {} : maxConcurrent={}, rate={}/s, burst={}", limiter.getGateway(),
+                    limitConfig.getMaxConcurrent(), limitConfig.getRate(), limitConfig.getBurst());
+        }
+    }
+
+    /**
+     * (Re)configures reusing Knox authentication cookies, dropping all cookies and Knox sessions if changed.
+     *
+     * @param authCookieConfig the authentication cookie config.
+     */
+    private void configureKnoxAuthCookie(Config.AuthCookieConfig authCookieConfig) {
+        final Config.AuthCookieConfig previousConfig = knoxAuthCookieConfig;
+        if (null != previousConfig && previousConfig.isEnabled() == authCookieConfig.isEnabled()
+                && Arrays.equals(previousConfig.getCookieNames(), authCookieConfig.getCookieNames())
+                && previousConfig.getMaxAge() == authCookieConfig.getMaxAge()) {
+            return; // Unchanged, keep authentication cookies
+        }
+        knoxAuthCookieConfig = authCookieConfig;
+        knoxAuthSessions.clear();
+        if (null != previousConfig) {
+            knoxSessionPool.clear(); // Pooled sessions reference the dropped cookies
+        }
+        LOGGER.info("Configured Knox authentication cookie : enabled={}, cookieNames={}, maxAge={}ms",
+                authCookieConfig.isEnabled(), Arrays.toString(authCookieConfig.getCookieNames()),
+                authCookieConfig.getMaxAge());
+    }
+
+    /**
+     * Creates new actions for the configured targets, not used for probing by this collector.
+     * <p>
+     * Eg for generating load, with an action instance per concurrent caller.
+     *
+     * @param config the config.
+     * @return the new actions.
+     */
+    List<AbstractBaseAction> createActions(Config config) {
+        return createActions(config, (identity, factory) -> {
+            final AbstractBaseAction action = factory.get();
+            action.setIdentity(identity);
+            return action;
+        });
+    }
+
+    /**
+     * Creates or resolves the actions of the configured targets.
+     *
+     * @param config   the config.
+     * @param resolver resolves an action by identity, using the factory for creating a new action.
+     * @return the actions.
+     */
+    private List<AbstractBaseAction> createActions(Config config,
+            BiFunction<List<Object>, Supplier<AbstractBaseAction>, AbstractBaseAction> resolver) {
+        final List<AbstractBaseAction> actions = new ArrayList<>();
 
         for (Config.WebHdfsService webHdfsService : config.getWebHdfsServices()) {
             for (String statusPath : webHdfsService.getStatusPaths()) {
-                final WebHdfsStatusAction webHdfsStatusAction = new WebHdfsStatusAction(webHdfsService.getKnoxUrl(),
-                        statusPath,
-                        handleDefaultValue(webHdfsService.getUsername(), config.getDefaultUsername()),
-                        handleDefaultValue(webHdfsService.getPassword(), config.getDefaultPassword()),
-                        config.getTimeout());
-                actions.add(webHdfsStatusAction);
-                // https://www.robustperception.io/existential-issues-with-metrics
-                metricKnoxOpsErrors.labels(webHdfsStatusAction.getLabels());
+                final String username = handleDefaultValue(webHdfsService.getUsername(), config.getDefaultUsername());
+                final String password = handleDefaultValue(webHdfsService.getPassword(), config.getDefaultPassword());
+                final int timeout = webHdfsService.resolveTimeout(statusPath, config.getTimeout());
+                actions.add(resolver.apply(
+                        Arrays.asList(ACTION_WEBHDFS_STATUS, webHdfsService.getKnoxUrl(), username, password,
+                                statusPath, timeout),
+                        () -> new WebHdfsStatusAction(webHdfsService.getKnoxUrl(), statusPath, username, password,
+                                timeout)));
             }
         }
 
@@ -222,25 +1106,168 @@ public class KnoxCollector extends Collector {
             initHiveDriver(config.getJdbcLoginTimeout());
             for (Config.HiveService hiveService : hiveServices) {
                 for (String query : hiveService.getQueries()) {
-                    final HiveQueryAction hiveQueryAction = new HiveQueryAction(hiveService.getJdbcUrl(),
-                            query,
-                            handleDefaultValue(hiveService.getUsername(), config.getDefaultUsername()),
-                            handleDefaultValue(hiveService.getPassword(), config.getDefaultPassword()));
-                    actions.add(hiveQueryAction);
-                    // https://www.robustperception.io/existential-issues-with-metrics
-                    metricKnoxOpsErrors.labels(hiveQueryAction.getLabels());
+                    final String username = handleDefaultValue(hiveService.getUsername(), config.getDefaultUsername());
+                    final String password = handleDefaultValue(hiveService.getPassword(), config.getDefaultPassword());
+                    final int timeout = hiveService.resolveTimeout(query, config.getTimeout());
+                    actions.add(resolver.apply(
+                            Arrays.asList(ACTION_HIVE_QUERY, hiveService.getJdbcUrl(), username, password,
+                                    query, timeout),
+                            () -> new HiveQueryAction(hiveService.getJdbcUrl(), query, username, password,
+                                    timeout)));
                 }
             }
         }
 
         for (Config.HBaseService hBaseService : config.getHbaseServices()) {
-            final HbaseStatusAction hbaseStatusAction = new HbaseStatusAction(hBaseService.getKnoxUrl(),
-                    handleDefaultValue(hBaseService.getUsername(), config.getDefaultUsername()),
-                    handleDefaultValue(hBaseService.getPassword(), config.getDefaultPassword()),
-                    config.getTimeout());
-            actions.add(hbaseStatusAction);
-            // https://www.robustperception.io/existential-issues-with-metrics
-            metricKnoxOpsErrors.labels(hbaseStatusAction.getLabels());
+            final String username = handleDefaultValue(hBaseService.getUsername(), config.getDefaultUsername());
+            final String password = handleDefaultValue(hBaseService.getPassword(), config.getDefaultPassword());
+            final int timeout = hBaseService.resolveTimeout("-", config.getTimeout());
+            actions.add(resolver.apply(
+                    Arrays.asList(ACTION_HBASE_STATUS, hBaseService.getKnoxUrl(), username, password, "-", timeout),
+                    () -> new HbaseStatusAction(hBaseService.getKnoxUrl(), username, password, timeout)));
+        }
+
+        for (Config.WebHdfsThroughputService throughputService : config.getWebHdfsThroughputServices()) {
+            final String username = handleDefaultValue(throughputService.getUsername(), config.getDefaultUsername());
+            final String password = handleDefaultValue(throughputService.getPassword(), config.getDefaultPassword());
+            final int timeout = throughputService.resolveTimeout(throughputService.getPath(), config.getTimeout());
+            actions.add(resolver.apply(
+                    Arrays.asList(WebHdfsThroughputAction.ACTION, throughputService.getKnoxUrl(), username, password,
+                            throughputService.getPath(), throughputService.getPayloadSize(), timeout),
+                    () -> new WebHdfsThroughputAction(this, throughputService.getKnoxUrl(),
+                            throughputService.getPath(), throughputService.getPayloadSize(), username, password,
+                            timeout)));
+        }
+
+        for (Config.HBaseCanaryService canaryService : config.getHbaseCanaryServices()) {
+            final String username = handleDefaultValue(canaryService.getUsername(), config.getDefaultUsername());
+            final String password = handleDefaultValue(canaryService.getPassword(), config.getDefaultPassword());
+            final int timeout = canaryService.resolveTimeout(canaryService.getTable(), config.getTimeout());
+            for (Config.HBaseCanaryService.Operation operation : canaryService.getOperations()) {
+                actions.add(resolver.apply(
+                        Arrays.asList(operation, canaryService.getKnoxUrl(), username, password,
+                                canaryService.getTable(), canaryService.getColumn(), canaryService.getRowKey(),
+                                canaryService.getScanStartRow(), canaryService.getScanEndRow(),
+                                canaryService.getScanLimit(), timeout),
+                        () -> createHbaseCanaryAction(canaryService, operation, username, password, timeout)));
+            }
+        }
+
+        return actions;
+    }
+
+    private AbstractBaseAction createHbaseCanaryAction(Config.HBaseCanaryService canaryService,
+                                                       Config.HBaseCanaryService.Operation operation,
+                                                       String username, String password, int timeout) {
+        switch (operation) {
+            case GET:
+                return new HbaseGetAction(this, canaryService.getKnoxUrl(), canaryService.getTable(),
+                        canaryService.getColumn(), canaryService.getRowKey(), username, password, timeout);
+            case PUT:
+                return new HbasePutAction(this, canaryService.getKnoxUrl(), canaryService.getTable(),
+                        canaryService.getColumn(), canaryService.getRowKey(), username, password, timeout);
+            case SCAN:
+                final String startRow = handleDefaultValue(canaryService.getScanStartRow(), canaryService.getRowKey());
+                return new HbaseScanAction(this, canaryService.getKnoxUrl(), canaryService.getTable(), startRow,
+                        canaryService.getScanEndRow(), canaryService.getScanLimit(), username, password, timeout);
+            default:
+                throw new IllegalArgumentException("Unsupported HBase canary operation " + operation);
+        }
+    }
+
+    /**
+     * Replaces the configured actions, eg by stub actions for benchmarks.
+     * Actions get replaced again on config reload.
+     *
+     * @param newActions the new actions.
+     */
+    synchronized void setActions(List<AbstractBaseAction> newActions) {
+        final Set<AbstractBaseAction> previousActions = Collections.newSetFromMap(new IdentityHashMap<>());
+        previousActions.addAll(this.actions);
+        for (AbstractBaseAction action : newActions) {
+            if (!previousActions.remove(action)) {
+                registerSeries(action);
+            }
+        }
+        final List<AbstractBaseAction> actions = Collections.unmodifiableList(new ArrayList<>(newActions));
+        this.actions = actions;
+        removeActions(previousActions, actions);
+    }
+
+    private void registerSeries(AbstractBaseAction action) {
+        // https://www.robustperception.io/existential-issues-with-metrics
+        opsErrors(action, AbstractBaseAction.Status.UNKNOWN);
+        if (action instanceof HiveQueryAction) {
+            ((HiveQueryAction) action).withPhaseDurationMetrics();
+        } else if (action instanceof AbstractKnoxBaseAction) {
+            ((AbstractKnoxBaseAction) action).withPhaseDurationMetrics();
+        }
+    }
+
+    /**
+     * Selects the actions of targets owned by this instance, if sharding.
+     * <p>
+     * Series of targets no longer owned get removed, as now reported by another instance.
+     *
+     * @param actions the configured actions.
+     * @return the owned actions.
+     */
+    private List<AbstractBaseAction> updateOwnedActions(List<AbstractBaseAction> actions) {
+        final List<AbstractBaseAction> owned = new ArrayList<>(actions.size());
+        final Set<List<String>> ownedTargets = new HashSet<>();
+        boolean disowned = false;
+        for (AbstractBaseAction action : actions) {
+            if (shardManager.owns(action.getShardKey())) {
+                owned.add(action);
+                ownedTargets.add(action.getTargetLabels());
+                if (!action.isOwned()) {
+                    action.setOwned(true);
+                    registerSeries(action);
+                }
+            } else if (action.isOwned()) {
+                action.setOwned(false);
+                action.resetSeries();
+                disowned = true;
+            }
+        }
+        if (disowned) {
+            series.retainTargets(ownedTargets);
+        }
+        if (owned.size() != ownedActions.size()) {
+            LOGGER.info("Owning {} of {} targets", owned.size(), actions.size());
+        }
+        ownedActions = Collections.unmodifiableList(owned);
+        return ownedActions;
+    }
+
+    /**
+     * Tears down removed actions by closing idle connections and removing series no longer in use.
+     *
+     * @param removedActions the removed or changed actions.
+     * @param actions        the current actions.
+     */
+    private void removeActions(Collection<AbstractBaseAction> removedActions, List<AbstractBaseAction> actions) {
+        final Set<List<String>> targets = new HashSet<>();
+        final Set<String> knoxSessionPoolKeys = new HashSet<>();
+        final Set<String> knoxAuthSessionKeys = new HashSet<>();
+        final Set<String> hiveConnectionPoolKeys = new HashSet<>();
+        for (AbstractBaseAction action : actions) {
+            targets.add(action.getTargetLabels());
+            if (action instanceof AbstractKnoxBaseAction) {
+                final AbstractKnoxBaseAction knoxAction = (AbstractKnoxBaseAction) action;
+                knoxSessionPoolKeys.add(knoxAction.getSessionPoolKey());
+                knoxAuthSessionKeys.add(knoxAction.getAuthSessionKey());
+            } else if (action instanceof HiveQueryAction) {
+                hiveConnectionPoolKeys.add(((HiveQueryAction) action).getConnectionPoolKey());
+            }
+        }
+        knoxSessionPool.retainKeys(knoxSessionPoolKeys);
+        knoxAuthSessions.keySet().retainAll(knoxAuthSessionKeys);
+        hiveConnectionPool.retainKeys(hiveConnectionPoolKeys);
+
+        final int removedSeries = series.retainTargets(targets);
+        if (removedSeries > 0) {
+            LOGGER.info("Removed {} series of {} removed targets", removedSeries, removedActions.size());
         }
     }
 
@@ -251,7 +1278,9 @@ public class KnoxCollector extends Collector {
         return value;
     }
 
-    abstract static class AbstractBaseAction implements CustomExecutor.CancellableCallable<Boolean> {
+    abstract static class AbstractBaseAction
+            implements CustomExecutor.CancellableCallable<Boolean>, CustomExecutor.TimeLimited,
+            CustomExecutor.StartDelayed, CustomExecutor.Limited {
         enum Status {
             UNKNOWN,
             SUCCESS,
@@ -260,35 +1289,209 @@ public class KnoxCollector extends Collector {
             ERROR_OTHER,
         }
 
-        protected String[] labels;
+        static final long NO_RESULT = Long.MIN_VALUE;
+        private static final Status[] STATUSES = Status.values();
+
+        // Immutable labels per status, so that changing status does not copy labels
+        private final String[][] labelsByStatus = new String[STATUSES.length][];
+        private final List<String> targetLabels;
+        private volatile Status status = Status.UNKNOWN;
+        private final int timeout;
+        // Offset within the probe cycle, if spreading probe starts
+        private volatile long startDelayMs;
+        // Null if the gateway is not limited
+        private volatile GatewayLimiter gatewayLimiter;
+        private List<Object> identity = Collections.emptyList();
+        private volatile long lastResultNs = NO_RESULT;
+        // Metric children per status, resolved once on first use
+        private final Counter.Child[] opsErrorsByStatus = new Counter.Child[STATUSES.length];
+        private final DoubleConsumer[] opsDurationByStatus = new DoubleConsumer[STATUSES.length];
+        private int opsDurationGeneration;
+        private boolean owned = true;
+        // Kept on config reload, as long as the action is reused
+        private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        /**
+         * @param action  the action type label.
+         * @param uri     the uri label.
+         * @param user    the user label.
+         * @param param   the action parameter label.
+         * @param timeout the action timeout in milliseconds.
+         */
+        AbstractBaseAction(String action, String uri, String user, String param, int timeout) {
+            for (Status labelStatus : STATUSES) {
+                labelsByStatus[labelStatus.ordinal()] = new String[]{action, uri, user, param, labelStatus.name()};
+            }
+            targetLabels = Collections.unmodifiableList(Arrays.asList(action, uri, user, param));
+            this.timeout = timeout;
+        }
+
+        @Override
+        public long getTimeoutMs() {
+            return timeout;
+        }
+
+        @Override
+        public long getStartDelayMs() {
+            return startDelayMs;
+        }
+
+        void setStartDelayMs(long startDelayMs) {
+            this.startDelayMs = startDelayMs;
+        }
+
+        @Override
+        public Runnable acquireLimit(long timeoutNs) throws InterruptedException {
+            final GatewayLimiter limiter = gatewayLimiter;
+            return null == limiter ? GatewayLimiter.NO_RELEASE : limiter.acquire(timeoutNs);
+        }
+
+        /**
+         * @return the gateway (host and port) of the Knox URL or JDBC URL, for limiting requests per gateway.
+         */
+        String getGateway() {
+            return GatewayLimiter.gatewayOf(targetLabels.get(1));
+        }
+
+        void setGatewayLimiter(GatewayLimiter gatewayLimiter) {
+            this.gatewayLimiter = gatewayLimiter;
+        }
 
         @Override
         public Boolean call() {
-            setLabelStatus(Status.UNKNOWN); // Reset label state, as actions get reused
-            return perform();
+            if (!running.compareAndSet(false, true)) {
+                throw new IllegalStateException("Previous call of " + this + " still running");
+            }
+            try {
+                setLabelStatus(Status.UNKNOWN); // Reset label state, as actions get reused
+                return perform();
+            } finally {
+                running.set(false);
+            }
+        }
+
+        /**
+         * @return true, if a call is running, possibly after cancellation.
+         */
+        boolean isRunning() {
+            return running.get();
         }
 
         abstract boolean perform();
 
+        /**
+         * @return the labels including the current status. Must not be modified.
+         */
         String[] getLabels() {
-            return labels;
+            return getLabels(status);
+        }
+
+        /**
+         * @param labelStatus the status.
+         * @return the labels including given status. Must not be modified.
+         */
+        String[] getLabels(Status labelStatus) {
+            return labelsByStatus[labelStatus.ordinal()];
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the target labels, excluding the status label.
+         */
+        List<String> getTargetLabels() {
+            return targetLabels;
+        }
+
+        /**
+         * @return the identity including all settings, for reusing unchanged actions on reload.
+         */
+        List<Object> getIdentity() {
+            return identity;
+        }
+
+        void setIdentity(List<Object> identity) {
+            this.identity = identity;
+        }
+
+        /**
+         * @return the key for sharding, identical across exporter instances.
+         */
+        String getShardKey() {
+            return String.join("|", targetLabels);
+        }
+
+        /**
+         * @return true, if owned by this instance and registered its series.
+         */
+        boolean isOwned() {
+            return owned;
+        }
+
+        void setOwned(boolean owned) {
+            this.owned = owned;
+        }
+
+        CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        /**
+         * Drops resolved metric children, after the series got removed.
+         */
+        void resetSeries() {
+            Arrays.fill(opsErrorsByStatus, null);
+            Arrays.fill(opsDurationByStatus, null);
         }
 
         protected void setLabelStatus(Status status) {
-            labels = labels.clone();
-            labels[4] = status.name();
+            this.status = status;
+        }
+
+        /**
+         * Marks the completion time of the latest result.
+         */
+        void markResult() {
+            lastResultNs = System.nanoTime();
+        }
+
+        /**
+         * @return the completion time (ns) of the latest result, or {@link #NO_RESULT}.
+         */
+        long getLastResultNs() {
+            return lastResultNs;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + "-" + Arrays.toString(getLabels());
         }
     }
 
     abstract class AbstractKnoxBaseAction extends AbstractBaseAction {
         protected final String knoxUrl;
         protected final ClientContext clientContext;
-        protected KnoxSession knoxSession;
+        private final String authSessionKey;
+        // Includes the timeout, as configured as socket timeout of the pooled session
+        private final String sessionPoolKey;
+        // Tracks the session of the ongoing action for cancelling
+        private final AtomicReference<TimedKnoxSession> knoxSession = new AtomicReference<>();
+        private ObjDoubleConsumer<TimedKnoxSession.Phase> phaseDuration = NO_PHASE_OBSERVATION;
+        private boolean pooled = true;
+        // Phase duration children, resolved on first occurrence of a phase (eg no TLS for plain HTTP)
+        private final Summary.Child[] phaseDurationChildren = new Summary.Child[TimedKnoxSession.getPhases().length];
+        // Authentication children, resolved on first occurrence of a reason
+        private final Counter.Child[] authenticationChildren =
+                new Counter.Child[TimedKnoxSession.getAuthReasons().length];
 
         AbstractKnoxBaseAction(String action, String knoxUrl, String username, String password, String param, int timeout) {
-            super();
+            super(action, knoxUrl, username, param, timeout);
             this.knoxUrl = knoxUrl;
-            labels = new String[]{action, knoxUrl, username, param, Status.UNKNOWN.name()};
+            authSessionKey = knoxUrl + '|' + username + '|' + credentialFingerprint(password);
+            sessionPoolKey = authSessionKey + '|' + timeout;
             clientContext = ClientContext.with(username, password, knoxUrl);
             final ClientContext.SocketContext socketContext = clientContext.socket();
             if (LOGGER.isDebugEnabled()) {
@@ -298,49 +1501,121 @@ public class KnoxCollector extends Collector {
             socketContext.reuseAddress(true);
         }
 
+        String getSessionPoolKey() {
+            return sessionPoolKey;
+        }
+
+        String getAuthSessionKey() {
+            return authSessionKey;
+        }
+
+        /**
+         * Records the durations of the request phases occurred, such as connect for a new connection.
+         *
+         * @param phaseDuration records the phase duration in seconds.
+         * @return this action.
+         */
+        AbstractKnoxBaseAction withPhaseDurations(ObjDoubleConsumer<TimedKnoxSession.Phase> phaseDuration) {
+            this.phaseDuration = phaseDuration;
+            return this;
+        }
+
+        /**
+         * Uses a new session closed after the action, without pooled sessions or shared authentication cookies.
+         *
+         * @return this action.
+         */
+        AbstractKnoxBaseAction withoutPooling() {
+            pooled = false;
+            return this;
+        }
+
+        /**
+         * Records the phase durations in the shared ops phase metric.
+         *
+         * @return this action.
+         */
+        AbstractKnoxBaseAction withPhaseDurationMetrics() {
+            return withPhaseDurations(this::observePhaseDuration);
+        }
+
+        private void observePhaseDuration(TimedKnoxSession.Phase phase, double seconds) {
+            Summary.Child child = phaseDurationChildren[phase.ordinal()];
+            if (null == child) {
+                final List<String> targetLabels = getTargetLabels();
+                child = series.labels(metricKnoxOpsPhaseDuration, targetLabels, targetLabels.get(0),
+                        targetLabels.get(1), targetLabels.get(2), targetLabels.get(3), phase.getLabel());
+                phaseDurationChildren[phase.ordinal()] = child;
+            }
+            child.observe(seconds);
+        }
+
         @Override
-        public RunnableFuture<Boolean> newTask() {
-            return new CustomExecutor.TimedFutureTask<Boolean>(this) {
-                @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    try {
-                        AbstractKnoxBaseAction.this.cancel();
-                    } catch (Exception ex) {
-                        LOGGER.debug("Ignoring exception when cancelling", ex);
+        void resetSeries() {
+            super.resetSeries();
+            Arrays.fill(phaseDurationChildren, null);
+            Arrays.fill(authenticationChildren, null);
+            withPhaseDurations(NO_PHASE_OBSERVATION);
+        }
+
+        /**
+         * Opens a new session, eg for cleaning up after the session of the action got closed by cancelling.
+         *
+         * @return the new session, to be closed by the caller if not released to the pool.
+         * @throws URISyntaxException on an invalid Knox URL.
+         */
+        protected TimedKnoxSession openKnoxSession() throws URISyntaxException {
+            metricKnoxSessionsOpened.inc();
+            final Config.AuthCookieConfig authCookieConfig = knoxAuthCookieConfig;
+            final boolean sharedAuthCookies = pooled && null != authCookieConfig && authCookieConfig.isEnabled();
+            return new TimedKnoxSession(clientContext, sharedAuthCookies
+                    ? knoxAuthSessions.computeIfAbsent(authSessionKey, key -> new KnoxAuthSession(authCookieConfig))
+                    : null);
+        }
+
+        private void recordAuthentications(TimedKnoxSession session) {
+            for (KnoxAuthSession.Reason reason : TimedKnoxSession.getAuthReasons()) {
+                final int count = session.getAuthenticationCount(reason);
+                if (count > 0) {
+                    Counter.Child child = authenticationChildren[reason.ordinal()];
+                    if (null == child) {
+                        final List<String> targetLabels = getTargetLabels();
+                        child = series.labels(metricKnoxAuthentications, targetLabels, targetLabels.get(1),
+                                targetLabels.get(2), reason.getLabel());
+                        authenticationChildren[reason.ordinal()] = child;
                     }
-                    return super.cancel(mayInterruptIfRunning);
+                    child.inc(count);
                 }
+            }
+        }
 
-                @Override
-                public String toString() {
-                    return AbstractKnoxBaseAction.this.getClass().getName() + "-"
-                            + Arrays.toString(AbstractKnoxBaseAction.this.getLabels());
+        private void recordPhaseDurations(TimedKnoxSession session) {
+            for (TimedKnoxSession.Phase phase : TimedKnoxSession.getPhases()) {
+                final long durationNs = session.getPhaseDurationNs(phase);
+                if (durationNs != TimedKnoxSession.NOT_OCCURRED) {
+                    phaseDuration.accept(phase, toSeconds(durationNs));
                 }
-            };
+            }
         }
 
         @Override
         boolean perform() {
-            try (KnoxSession tmpHadoop = new KnoxSession(clientContext)) {
-                this.knoxSession = tmpHadoop; // Track for cancelling the action.
-                final AbstractRequest<? extends BasicResponse> request = createRequest(knoxSession);
-                try (BasicResponse basicResponse = request.now()) {
-                    if (basicResponse.getStatusCode() == 200) {
-                        setLabelStatus(Status.SUCCESS);
-                        return true;
-                    }
-
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Failed knox action using knox url {}. " +
-                                        " Response status code is {}, body is {}",
-                                knoxUrl,
-                                basicResponse.getStatusCode(), basicResponse.getString());
-                    }
-                    if (basicResponse.getStatusCode() == 401) {
-                        setLabelStatus(Status.ERROR_AUTH);
-                    } else {
-                        setLabelStatus(Status.ERROR_OTHER);
-                    }
+            TimedKnoxSession session = null;
+            boolean healthy = false; // Only reuse session if Knox responded properly
+            try {
+                session = pooled ? knoxSessionPool.borrow(sessionPoolKey, this::openKnoxSession) : openKnoxSession();
+                session.resetPhaseDurations();
+                knoxSession.set(session);
+                final int statusCode = execute(session);
+                healthy = statusCode < 500;
+                if (statusCode == 200) {
+                    setLabelStatus(Status.SUCCESS);
+                    return true;
+                }
+                if (statusCode == 401) {
+                    setLabelStatus(Status.ERROR_AUTH);
+                } else {
+                    setLabelStatus(Status.ERROR_OTHER);
                 }
             } catch (KnoxShellException e) {
                 // Trying to compensate error handling with heuristic
@@ -349,22 +1624,54 @@ public class KnoxCollector extends Collector {
                 } else {
                     setLabelStatus(Status.ERROR_OTHER);
                 }
-                LOGGER.warn("Failed to perform knox action {} : {}", Arrays.toString(labels), e.getMessage());
+                LOGGER.warn("Failed to perform knox action {} : {}", Arrays.toString(getLabels()), e.getMessage());
             } catch (IOException | URISyntaxException e) {
                 setLabelStatus(Status.ERROR_OTHER);
-                LOGGER.warn("Failed to perform knox action {} : {}", Arrays.toString(labels), e.getMessage());
+                LOGGER.warn("Failed to perform knox action {} : {}", Arrays.toString(getLabels()), e.getMessage());
+            } finally {
+                if (null != session) {
+                    // Cancelled session is closed and must not be reused
+                    final boolean cancelled = !knoxSession.compareAndSet(session, null);
+                    recordPhaseDurations(session);
+                    recordAuthentications(session);
+                    // Closes unpooled session
+                    knoxSessionPool.release(sessionPoolKey, session, pooled && healthy && !cancelled);
+                }
             }
             return false;
         }
 
-        protected abstract AbstractRequest<? extends BasicResponse> createRequest(KnoxSession knoxSession); //NOSONAR
+        /**
+         * Executes the Knox requests of this action.
+         *
+         * @param knoxSession the session.
+         * @return the HTTP status code, 200 if successful.
+         * @throws IOException on failure.
+         */
+        protected abstract int execute(KnoxSession knoxSession) throws IOException;
+
+        /**
+         * Logs the failed response at debug level.
+         *
+         * @param basicResponse the failed response.
+         * @throws IOException on failure reading the response body.
+         */
+        protected void logFailedResponse(BasicResponse basicResponse) throws IOException {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Failed knox action using knox url {}. " +
+                                " Response status code is {}, body is {}",
+                        knoxUrl,
+                        basicResponse.getStatusCode(), basicResponse.getString());
+            }
+        }
 
         @Override
         public void cancel() {
             setLabelStatus(Status.ERROR_TIMEOUT);
-            if (null != knoxSession) {
+            final TimedKnoxSession session = knoxSession.getAndSet(null);
+            if (null != session) {
                 try {
-                    knoxSession.close();
+                    session.close(); // Released as unhealthy by perform()
                 } catch (IOException e) {
                     LOGGER.warn("Failed to close knox session. Ignored for cancelling.", e);
                 }
@@ -372,7 +1679,29 @@ public class KnoxCollector extends Collector {
         }
     }
 
-    class HbaseStatusAction extends AbstractKnoxBaseAction {
+    /**
+     * Knox action performing a single request.
+     */
+    abstract class AbstractKnoxRequestAction extends AbstractKnoxBaseAction {
+        AbstractKnoxRequestAction(String action, String knoxUrl, String username, String password, String param,
+                                  int timeout) {
+            super(action, knoxUrl, username, password, param, timeout);
+        }
+
+        @Override
+        protected int execute(KnoxSession knoxSession) throws IOException {
+            try (BasicResponse basicResponse = createRequest(knoxSession).now()) {
+                if (basicResponse.getStatusCode() != 200) {
+                    logFailedResponse(basicResponse);
+                }
+                return basicResponse.getStatusCode();
+            }
+        }
+
+        protected abstract AbstractRequest<? extends BasicResponse> createRequest(KnoxSession knoxSession); //NOSONAR
+    }
+
+    class HbaseStatusAction extends AbstractKnoxRequestAction {
         HbaseStatusAction(String knoxUrl, String username, String password, int timeout) {
             super(ACTION_HBASE_STATUS, knoxUrl, username, password, "-", timeout);
         }
@@ -382,7 +1711,7 @@ public class KnoxCollector extends Collector {
         }
     }
 
-    class WebHdfsStatusAction extends AbstractKnoxBaseAction {
+    class WebHdfsStatusAction extends AbstractKnoxRequestAction {
         private final String statusPath;
 
         WebHdfsStatusAction(String knoxUrl, String statusPath, String username, String password, int timeout) {
@@ -396,6 +1725,91 @@ public class KnoxCollector extends Collector {
         }
     }
 
+    /**
+     * Resolves the operation duration child of a WebHDFS throughput action.
+     *
+     * @param targetLabels the action target labels.
+     * @param operation    the operation.
+     * @return the child.
+     */
+    Summary.Child webHdfsThroughputOperationDuration(List<String> targetLabels, String operation) {
+        return series.labels(metricWebHdfsThroughputOperationDuration, targetLabels,
+                targetLabels.get(1), targetLabels.get(2), targetLabels.get(3), operation);
+    }
+
+    /**
+     * Resolves the operation throughput child of a WebHDFS throughput action.
+     *
+     * @param targetLabels the action target labels.
+     * @param operation    the operation transferring the payload.
+     * @return the child.
+     */
+    Gauge.Child webHdfsThroughput(List<String> targetLabels, String operation) {
+        return series.labels(metricWebHdfsThroughput, targetLabels,
+                targetLabels.get(1), targetLabels.get(2), targetLabels.get(3), operation);
+    }
+
+    /**
+     * Resolves the scanned rows per second child of an HBase canary scan action.
+     *
+     * @param targetLabels the action target labels.
+     * @return the child.
+     */
+    Gauge.Child hbaseScanRowsPerSecond(List<String> targetLabels) {
+        return series.labels(metricHbaseScanRowsPerSecond, targetLabels,
+                targetLabels.get(1), targetLabels.get(2), targetLabels.get(3));
+    }
+
+    /**
+     * Validates an idle pooled Hive connection before reuse, using the optional validation query.
+     *
+     * @param connection the idle connection.
+     * @return true, if valid.
+     */
+    private boolean isValidHiveConnection(Connection connection) {
+        final String validationQuery = hiveValidationQuery;
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (null == validationQuery || validationQuery.isEmpty()) {
+                return true;
+            }
+            try (Statement stmt = connection.createStatement();
+                 ResultSet resultSet = stmt.executeQuery(validationQuery)) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to validate Hive connection using query {}", validationQuery, e);
+            return false;
+        }
+    }
+
+    /**
+     * Fingerprints a password for pool keys, so that changed credentials do not reuse pooled
+     * connections or authentication cookies, without keeping the password in the key.
+     *
+     * @param password the password, or null.
+     * @return the fingerprint.
+     */
+    static String credentialFingerprint(String password) {
+        if (null == password) {
+            return "";
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Required for every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static double toSeconds(long durationNs) {
+        return durationNs / 1000.0 / 1000.0 / 1000.0;
+    }
+
     static void initHiveDriver(int jdbcLoginTimeout) {
         if (jdbcLoginTimeout > 0) {
             if (LOGGER.isDebugEnabled()) {
@@ -415,47 +1829,94 @@ public class KnoxCollector extends Collector {
         private final String query;
         private final String username;
         private final String password;
-        private Connection con;
+        private final String connectionPoolKey;
+        // Tracks the connection of the ongoing action for cancelling
+        private final AtomicReference<Connection> con = new AtomicReference<>();
+        private DoubleConsumer acquireDuration = NO_OBSERVATION;
+        private DoubleConsumer queryDuration = NO_OBSERVATION;
+        private boolean pooled = true;
 
-        @Override
-        public RunnableFuture<Boolean> newTask() {
-            return new CustomExecutor.TimedFutureTask<Boolean>(this) {
-                @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    try {
-                        HiveQueryAction.this.cancel();
-                    } catch (Exception ex) {
-                        LOGGER.debug("Ignoring exception when cancelling", ex);
-                    }
-                    return super.cancel(mayInterruptIfRunning);
-                }
-
-                @Override
-                public String toString() {
-                    return HiveQueryAction.this.getClass().getName() + "-"
-                            + Arrays.toString(HiveQueryAction.this.getLabels());
-                }
-            };
-        }
-
-        HiveQueryAction(String jdbcUrl, String query, String username, String password) {
+        HiveQueryAction(String jdbcUrl, String query, String username, String password, int timeout) {
+            super(ACTION_HIVE_QUERY,
+                    // Filter out security critical info
+                    Config.HiveService.escapeJdbcUrl(jdbcUrl),
+                    username, query, timeout);
             this.jdbcUrl = jdbcUrl;
             this.query = query;
             this.username = username;
             this.password = password;
-            labels = new String[]{ACTION_HIVE_QUERY,
-                    // Filter out security critical info
-                    Config.HiveService.escapeJdbcUrl(jdbcUrl),
-                    username, query, Status.UNKNOWN.name()};
+            connectionPoolKey = jdbcUrl + '|' + username + '|' + credentialFingerprint(password);
+        }
+
+        /**
+         * Records the phase durations of connection acquisition and query execution.
+         *
+         * @param acquireDuration records the connection acquire duration in seconds.
+         * @param queryDuration   records the query duration in seconds.
+         * @return this action.
+         */
+        HiveQueryAction withPhaseDurations(DoubleConsumer acquireDuration, DoubleConsumer queryDuration) {
+            this.acquireDuration = acquireDuration;
+            this.queryDuration = queryDuration;
+            return this;
+        }
+
+        @Override
+        void resetSeries() {
+            super.resetSeries();
+            withPhaseDurations(NO_OBSERVATION, NO_OBSERVATION);
+        }
+
+        /**
+         * Uses a new connection closed after the action, without pooled connections.
+         *
+         * @return this action.
+         */
+        HiveQueryAction withoutPooling() {
+            pooled = false;
+            return this;
+        }
+
+        /**
+         * Records the phase durations in the shared Hive metrics.
+         *
+         * @return this action.
+         */
+        HiveQueryAction withPhaseDurationMetrics() {
+            final String escapedJdbcUrl = getTargetLabels().get(1);
+            return withPhaseDurations(
+                    series.labels(metricHiveConnectionAcquireDuration, getTargetLabels(), escapedJdbcUrl, username)
+                            ::observe,
+                    series.labels(metricHiveQueryDuration, getTargetLabels(), escapedJdbcUrl, username, query)
+                            ::observe);
+        }
+
+        String getConnectionPoolKey() {
+            return connectionPoolKey;
+        }
+
+        private Connection openConnection() throws SQLException {
+            return DriverManager.getConnection(jdbcUrl, username, password);
         }
 
         @Override
         boolean perform() {
-            try (Connection tmpCon = DriverManager.getConnection(jdbcUrl, username, password)) {
-                this.con = tmpCon;
-                try (Statement stmt = con.createStatement()) {
+            Connection connection = null;
+            boolean healthy = false; // Only reuse connection if query succeeded
+            try {
+                final long acquireStartNs = System.nanoTime();
+                connection = pooled ? hiveConnectionPool.borrow(connectionPoolKey, this::openConnection)
+                        : openConnection();
+                con.set(connection);
+                acquireDuration.accept(toSeconds(System.nanoTime() - acquireStartNs));
+
+                final long queryStartNs = System.nanoTime();
+                try (Statement stmt = connection.createStatement()) {
                     try (ResultSet resultSet = stmt.executeQuery(query)) {
-                        if (resultSet.next()) {
+                        final boolean hasResult = resultSet.next();
+                        queryDuration.accept(toSeconds(System.nanoTime() - queryStartNs));
+                        healthy = true;
+                        if (hasResult) {
                             setLabelStatus(Status.SUCCESS);
                             return true;
                         } else {
@@ -471,11 +1932,18 @@ public class KnoxCollector extends Collector {
                 LOGGER.debug("Exception while doing JDBC query {}", query, e);
                 LOGGER.warn("Could not perform jdbc action : {}", e.getMessage());
                 // Trying to compensate error handling with heuristic
-                if (e.getMessage().contains("HTTP Response code: 401")) {
+                if (null != e.getMessage() && e.getMessage().contains("HTTP Response code: 401")) {
                     setLabelStatus(Status.ERROR_AUTH);
                 } else {
                     setLabelStatus(Status.ERROR_OTHER);
                 }
+            } finally {
+                if (null != connection) {
+                    // Cancelled connection is closed and must not be reused
+                    final boolean cancelled = !con.compareAndSet(connection, null);
+                    // Closes unpooled connection
+                    hiveConnectionPool.release(connectionPoolKey, connection, pooled && healthy && !cancelled);
+                }
             }
             return false;
         }
@@ -483,9 +1951,10 @@ public class KnoxCollector extends Collector {
         @Override
         public void cancel() {
             setLabelStatus(Status.ERROR_TIMEOUT);
-            if (null != con) {
+            final Connection connection = con.getAndSet(null);
+            if (null != connection) {
                 try {
-                    con.close();
+                    connection.close(); // Released as unhealthy by perform()
                 } catch (SQLException e) {
                     LOGGER.warn("Failed to close connection. Ignoring.", e);
                 }
@@ -0,0 +1,415 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.RootLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates load on Knox by driving the configured actions at a target request rate, for capacity testing
+ * eg before gateway upgrades.
+ * <p>
+ * Requests are scheduled by warm up and ramp stages, and call the configured targets round robin.
+ * Latencies are measured from the intended start of a request according to the schedule, instead of the actual start.
+ * So a request delayed by a saturated gateway (or by all callers being busy) counts as slow,
+ * correcting coordinated omission. Only an unthrottled closed model measures from the actual start.
+ * A request exceeding its timeout gets cancelled (eg closing its session) and counts as error.
+ */
+class LoadGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    static final long NO_SLOT = Long.MIN_VALUE;
+
+    private final Config config;
+    private final Config.LoadConfig loadConfig;
+    private final Schedule schedule;
+    private final KnoxCollector knoxCollector;
+    private final List<List<String>> targets = new ArrayList<>();
+    // Actions per thread, as an action must not be called concurrently
+    private final ThreadLocal<List<KnoxCollector.AbstractBaseAction>> threadActions;
+    private final AtomicInteger nextTarget = new AtomicInteger();
+    private final LatencyHistogram[] stageLatencies;
+    private final AtomicLongArray stageErrors;
+    private final LatencyHistogram[] targetLatencies;
+    private final AtomicLongArray targetErrors;
+    private final ScheduledThreadPoolExecutor deadlineTimer;
+
+    LoadGenerator(Config loadedConfig) {
+        config = loadedConfig.copy();
+        config.setProbeInterval(0); // Only probing by load
+        loadConfig = config.getLoad();
+        schedule = new Schedule(loadConfig);
+        knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        for (KnoxCollector.AbstractBaseAction action : knoxCollector.createActions(config)) {
+            targets.add(action.getTargetLabels());
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No targets configured");
+        }
+        threadActions = ThreadLocal.withInitial(() -> knoxCollector.createActions(config));
+
+        stageLatencies = new LatencyHistogram[loadConfig.getStages().length];
+        for (int i = 0; i < stageLatencies.length; i++) {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+        stageErrors = new AtomicLongArray(stageLatencies.length);
+        targetLatencies = new LatencyHistogram[targets.size()];
+        for (int i = 0; i < targetLatencies.length; i++) {
+            targetLatencies[i] = new LatencyHistogram();
+        }
+        targetErrors = new AtomicLongArray(targetLatencies.length);
+
+        deadlineTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "knox-load-deadline-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        deadlineTimer.setRemoveOnCancelPolicy(true); // Most deadlines get cancelled, as requests complete in time
+    }
+
+    /**
+     * Runs all stages, and waits for the outstanding requests.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    void run() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(loadConfig.getConcurrency(), r -> {
+            Thread thread = new Thread(r, "knox-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            LOGGER.info("Generating {} load on {} targets using {} threads, for {}ms warm up and {}ms of {} stages",
+                    loadConfig.getModel(), targets.size(), loadConfig.getConcurrency(), loadConfig.getWarmup(),
+                    schedule.getMeasuredNs() / 1000L / 1000L, loadConfig.getStages().length);
+            schedule.start();
+            if (loadConfig.getModel() == Config.LoadConfig.Model.OPEN) {
+                // Dispatches at the intended start, independent of completion. Requests queue if all threads busy.
+                long slot;
+                while ((slot = schedule.nextSlot()) != NO_SLOT) {
+                    sleepUntil(slot);
+                    final long intendedStartNs = slot;
+                    executor.execute(() -> callNext(intendedStartNs));
+                }
+            } else {
+                for (int i = 0; i < loadConfig.getConcurrency(); i++) {
+                    executor.execute(() -> {
+                        long slot;
+                        while ((slot = schedule.nextSlot()) != NO_SLOT) {
+                            sleepUntil(slot);
+                            callNext(slot);
+                        }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdown();
+            // Closed model callers run until the schedule completes
+            if (!executor.awaitTermination(schedule.getRemainingNs() + TimeUnit.MILLISECONDS.toNanos(
+                    config.getTimeout()), TimeUnit.NANOSECONDS)) {
+                LOGGER.warn("Not all requests completed in time, ignoring outstanding requests");
+                executor.shutdownNow();
+            }
+            deadlineTimer.shutdownNow();
+            knoxCollector.shutdown();
+        }
+    }
+
+    private void sleepUntil(long nanoTime) {
+        long remainingNs;
+        while ((remainingNs = nanoTime - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remainingNs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void callNext(long intendedStartNs) {
+        final int target = Math.floorMod(nextTarget.getAndIncrement(), targets.size());
+        final KnoxCollector.AbstractBaseAction action = threadActions.get().get(target);
+        final long startNs = schedule.isThrottled() ? intendedStartNs : System.nanoTime();
+        final CustomExecutor.TimedFutureTask<Boolean> task = new CustomExecutor.TimedFutureTask<>(action);
+        final ScheduledFuture<?> deadline = deadlineTimer.schedule(() -> task.cancel(false),
+                action.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        boolean success;
+        try {
+            task.run(); // Cancelling closes the session of the action, aborting a blocking call
+            success = task.get();
+        } catch (CancellationException e) {
+            LOGGER.debug("Cancelled {} exceeding timeout of {}ms", action, action.getTimeoutMs());
+            success = false;
+        } catch (ExecutionException e) {
+            LOGGER.debug("Failed to call {}", action, e.getCause());
+            success = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        } finally {
+            deadline.cancel(false);
+        }
+        final long latencyUs = (System.nanoTime() - startNs) / 1000L;
+
+        final int stage = schedule.stageOf(intendedStartNs);
+        if (stage < 0) {
+            return; // Warm up
+        }
+        stageLatencies[stage].record(latencyUs);
+        targetLatencies[target].record(latencyUs);
+        if (!success) {
+            stageErrors.incrementAndGet(stage);
+            targetErrors.incrementAndGet(target);
+        }
+    }
+
+    /**
+     * @return the latencies of measured requests by stage.
+     */
+    LatencyHistogram[] getStageLatencies() {
+        return stageLatencies;
+    }
+
+    /**
+     * @return the latencies of measured requests by target, in order of configured targets.
+     */
+    LatencyHistogram[] getTargetLatencies() {
+        return targetLatencies;
+    }
+
+    /**
+     * @param stage the stage index.
+     * @return the number of failed requests, including timeouts.
+     */
+    long getStageErrors(int stage) {
+        return stageErrors.get(stage);
+    }
+
+    /**
+     * Writes the report, with latencies by stage and by target.
+     *
+     * @param writer the writer.
+     */
+    void writeReport(Writer writer) {
+        final PrintWriter out = new PrintWriter(writer);
+        out.println("# Knox load report");
+        out.printf(Locale.ROOT, "# model: %s, concurrency: %d, warmup: %dms, targets: %d%n",
+                loadConfig.getModel(), loadConfig.getConcurrency(), loadConfig.getWarmup(), targets.size());
+        out.println(schedule.isThrottled()
+                ? "# latencies in milliseconds, from intended start (corrected for coordinated omission)"
+                : "# latencies in milliseconds, from actual start (unthrottled, not corrected for coordinated omission)");
+        out.println();
+
+        final String header = "%-12s %10s %10s %10s %10s %10s %10s %10s %10s %10s %10s";
+        out.printf(Locale.ROOT, header + "%n", "stage", "rate", "requests", "errors", "throughput",
+                "mean", "p50", "p90", "p99", "p99.9", "max");
+        double previousRate = loadConfig.getStages()[0].getRate();
+        for (int i = 0; i < stageLatencies.length; i++) {
+            final Config.LoadStage stage = loadConfig.getStages()[i];
+            final String rate = previousRate == stage.getRate() ? format(stage.getRate())
+                    : format(previousRate) + "->" + format(stage.getRate());
+            printRow(out, String.valueOf(i + 1), rate, stageLatencies[i], stageErrors.get(i),
+                    stage.getDuration() / 1000.0);
+            out.println();
+            previousRate = stage.getRate();
+        }
+        out.println();
+
+        out.printf(Locale.ROOT, header + " %s%n", "target", "", "requests", "errors", "throughput",
+                "mean", "p50", "p90", "p99", "p99.9", "max", "labels");
+        final double measuredSeconds = schedule.getMeasuredNs() / 1000.0 / 1000.0 / 1000.0;
+        for (int i = 0; i < targetLatencies.length; i++) {
+            printRow(out, String.valueOf(i + 1), "", targetLatencies[i], targetErrors.get(i), measuredSeconds);
+            out.print(' ');
+            out.println(String.join(" ", targets.get(i))); // Labels might contain spaces, eg Hive query
+        }
+        out.flush();
+    }
+
+    private static void printRow(PrintWriter out, String name, String rate, LatencyHistogram latencies, long errors,
+                                 double seconds) {
+        out.printf(Locale.ROOT, "%-12s %10s %10d %10d %10s %10s", name, rate, latencies.getCount(), errors,
+                format(seconds > 0 ? latencies.getCount() / seconds : 0), format(latencies.getMean() / 1000.0));
+        for (double percentile : PERCENTILES) {
+            out.printf(Locale.ROOT, " %10s", format(latencies.getValueAtPercentile(percentile) / 1000.0));
+        }
+        out.printf(Locale.ROOT, " %10s", format(latencies.getMax() / 1000.0));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    /**
+     * Intended request start times, by warm up and ramp stages.
+     * <p>
+     * For a throttled model, the next start is spaced by the reciprocal of the current rate.
+     * For an unthrottled closed model, the next start is immediate until the end of the last stage.
+     */
+    static class Schedule {
+        private final long warmupNs;
+        private final long[] stageEndNs; // Relative to start
+        private final double[] stageStartRates;
+        private final double[] stageEndRates;
+        private final boolean throttled;
+        private final LongSupplier nanoClock;
+        private long startNs;
+        private long nextNs;
+
+        Schedule(Config.LoadConfig loadConfig) {
+            this(loadConfig, System::nanoTime);
+        }
+
+        /**
+         * @param loadConfig the load config.
+         * @param nanoClock  the clock, like {@link System#nanoTime()}.
+         */
+        Schedule(Config.LoadConfig loadConfig, LongSupplier nanoClock) {
+            this.nanoClock = nanoClock;
+            final Config.LoadStage[] stages = loadConfig.getStages();
+            if (stages.length == 0) {
+                throw new IllegalArgumentException("No load stages configured");
+            }
+            if (loadConfig.getConcurrency() <= 0) {
+                throw new IllegalArgumentException("Expected positive load concurrency but got "
+                        + loadConfig.getConcurrency());
+            }
+            warmupNs = TimeUnit.MILLISECONDS.toNanos(loadConfig.getWarmup());
+            stageEndNs = new long[stages.length];
+            stageStartRates = new double[stages.length];
+            stageEndRates = new double[stages.length];
+            long endNs = warmupNs;
+            double previousRate = stages[0].getRate();
+            boolean unthrottled = false;
+            for (int i = 0; i < stages.length; i++) {
+                endNs += TimeUnit.MILLISECONDS.toNanos(stages[i].getDuration());
+                stageEndNs[i] = endNs;
+                stageStartRates[i] = previousRate;
+                stageEndRates[i] = stages[i].getRate();
+                previousRate = stages[i].getRate();
+                unthrottled |= stages[i].getRate() <= 0;
+            }
+            if (unthrottled && (loadConfig.getModel() == Config.LoadConfig.Model.OPEN || stages.length > 1)) {
+                throw new IllegalArgumentException("Expected positive load stage rates, as only a closed model "
+                        + "with a single stage supports an unthrottled rate of 0");
+            }
+            throttled = !unthrottled;
+        }
+
+        synchronized void start() {
+            startNs = nanoClock.getAsLong();
+            nextNs = startNs;
+        }
+
+        /**
+         * Claims the next intended start.
+         *
+         * @return the intended start as {@link System#nanoTime()}, or {@link #NO_SLOT} if all stages completed.
+         */
+        synchronized long nextSlot() {
+            if (!throttled) {
+                final long nowNs = nanoClock.getAsLong();
+                return nowNs - startNs < stageEndNs[stageEndNs.length - 1] ? nowNs : NO_SLOT;
+            }
+            final long slotNs = nextNs;
+            final long offsetNs = slotNs - startNs;
+            if (offsetNs >= stageEndNs[stageEndNs.length - 1]) {
+                return NO_SLOT;
+            }
+            nextNs += (long) (TimeUnit.SECONDS.toNanos(1) / rateAt(offsetNs));
+            return slotNs;
+        }
+
+        private double rateAt(long offsetNs) {
+            final int stage = Math.max(0, stageAt(offsetNs));
+            final long stageStartNs = stage == 0 ? warmupNs : stageEndNs[stage - 1];
+            if (offsetNs < stageStartNs) {
+                return stageStartRates[0]; // Warm up
+            }
+            final double progress = (double) (offsetNs - stageStartNs) / (stageEndNs[stage] - stageStartNs);
+            return stageStartRates[stage] + (stageEndRates[stage] - stageStartRates[stage]) * progress;
+        }
+
+        private int stageAt(long offsetNs) {
+            if (offsetNs < warmupNs) {
+                return -1;
+            }
+            for (int i = 0; i < stageEndNs.length; i++) {
+                if (offsetNs < stageEndNs[i]) {
+                    return i;
+                }
+            }
+            return stageEndNs.length - 1;
+        }
+
+        /**
+         * @param nanoTime an intended start.
+         * @return the stage index, or -1 if warm up.
+         */
+        synchronized int stageOf(long nanoTime) {
+            return stageAt(nanoTime - startNs);
+        }
+
+        /**
+         * @return true, if requests start by rate (and latencies are measured from the intended start).
+         */
+        boolean isThrottled() {
+            return throttled;
+        }
+
+        /**
+         * @return the remaining duration of warm up and all stages, or 0 if completed.
+         */
+        synchronized long getRemainingNs() {
+            return Math.max(0L, startNs + stageEndNs[stageEndNs.length - 1] - nanoClock.getAsLong());
+        }
+
+        /**
+         * @return the duration of all stages, excluding warm up.
+         */
+        long getMeasuredNs() {
+            return stageEndNs[stageEndNs.length - 1] - warmupNs;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: LoadGenerator [-Dlog.level=[WARN|INFO|DEBUG]] <yml configuration file> <report file>"); // NOSONAR
+            System.out.println(); // NOSONAR
+            System.exit(1);
+        }
+
+        RootLogger.getRootLogger().setLevel(Level.toLevel(System.getProperty("log.level"), Level.INFO));
+
+        final Config config = ConfigLoader.forFile(new File(args[0])).getCurrentConfig();
+        final LoadGenerator loadGenerator = new LoadGenerator(config);
+        loadGenerator.run();
+        try (Writer writer = Files.newBufferedWriter(new File(args[1]).toPath(), StandardCharsets.UTF_8)) {
+            loadGenerator.writeReport(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not write report " + args[1], e);
+        }
+        LOGGER.info("Wrote load report {}", args[1]);
+    }
+}
@@ -0,0 +1,56 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Probes a single target on demand, in the style of the Prometheus blackbox exporter.
+ * <p>
+ * Example: /probe?module=webhdfs&amp;target=https://my-knox-server/gateway/default
+ */
+public class ProbeServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final transient KnoxCollector knoxCollector;
+
+    ProbeServlet(KnoxCollector knoxCollector) {
+        this.knoxCollector = knoxCollector;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final String module = req.getParameter("module");
+        final String target = req.getParameter("target");
+        if (null == module || module.isEmpty() || null == target || target.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameters module and target are required");
+            return;
+        }
+
+        final List<Collector.MetricFamilySamples> metricFamilySamples;
+        try {
+            metricFamilySamples = knoxCollector.probeTarget(module, target);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while probing");
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(TextFormat.CONTENT_TYPE_004);
+        try (Writer writer = resp.getWriter()) {
+            TextFormat.write004(writer, Collections.enumeration(metricFamilySamples));
+            writer.flush();
+        }
+    }
+}
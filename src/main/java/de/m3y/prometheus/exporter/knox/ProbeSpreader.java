@@ -0,0 +1,66 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.*;
+
+/**
+ * Spreads the probe starts of a probe cycle across a window, avoiding a burst of requests on each gateway.
+ * <p>
+ * Offsets are deterministic, derived from hashes of the target and gateway identical across restarts and instances,
+ * so that a target keeps its offset across reloads and its probe period stays constant.
+ * Without gateway stagger, adding targets does not move other targets.
+ * With a gateway stagger, the targets of each gateway start evenly spaced across the stagger,
+ * from a per gateway offset within the window.
+ */
+final class ProbeSpreader {
+    // Target label holding the gateway, as Knox URL or JDBC URL
+    private static final int GATEWAY_LABEL = 1;
+
+    private ProbeSpreader() {
+        // No instance
+    }
+
+    /**
+     * Computes the start offset of each target.
+     *
+     * @param targets the target labels of all targets.
+     * @param config  the spreading config.
+     * @return the start offset in milliseconds by target, 0 for all targets if disabled.
+     */
+    static Map<List<String>, Long> computeOffsets(Collection<List<String>> targets,
+                                                   Config.ProbeSpreadingConfig config) {
+        final Map<List<String>, Long> offsets = new HashMap<>();
+        final long window = config.getWindow();
+        final long stagger = Math.min(config.getGatewayStagger(), window);
+        if (window <= 0) {
+            for (List<String> target : targets) {
+                offsets.put(target, 0L);
+            }
+        } else if (stagger <= 0) {
+            for (List<String> target : targets) {
+                offsets.put(target, Math.floorMod(hash(target), window));
+            }
+        } else {
+            final Map<String, List<List<String>>> targetsByGateway = new HashMap<>();
+            for (List<String> target : new LinkedHashSet<>(targets)) {
+                targetsByGateway.computeIfAbsent(target.get(GATEWAY_LABEL), gateway -> new ArrayList<>())
+                        .add(target);
+            }
+            for (Map.Entry<String, List<List<String>>> entry : targetsByGateway.entrySet()) {
+                final long gatewayOffset = Math.floorMod(ShardManager.hash(entry.getKey()), window - stagger + 1);
+                final List<List<String>> gatewayTargets = entry.getValue();
+                // Ordered by hash, independent of config order
+                gatewayTargets.sort(Comparator.comparingLong(ProbeSpreader::hash)
+                        .thenComparing(target -> String.join("|", target)));
+                final int count = gatewayTargets.size();
+                for (int i = 0; i < count; i++) {
+                    offsets.put(gatewayTargets.get(i), gatewayOffset + i * stagger / count);
+                }
+            }
+        }
+        return offsets;
+    }
+
+    private static long hash(List<String> target) {
+        return ShardManager.hash(String.join("|", target));
+    }
+}
@@ -0,0 +1,117 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.*;
+
+import io.prometheus.client.SimpleCollector;
+
+/**
+ * Tracks the labeled series (metric children) created per target, for removing series of retired targets.
+ * <p>
+ * Without removal, series of targets removed from the config live until restart,
+ * including eg the quantile state of each summary child.
+ * A series shared by several targets (eg a per Hive connection metric) is kept as long as any target uses it.
+ */
+class SeriesRegistry {
+    private static final class Series {
+        private final SimpleCollector<?> collector;
+        private final List<String> labelValues;
+
+        Series(SimpleCollector<?> collector, String[] labelValues) {
+            this.collector = collector;
+            this.labelValues = Arrays.asList(labelValues);
+        }
+
+        void remove() {
+            collector.remove(labelValues.toArray(new String[0]));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Series series = (Series) o;
+            return collector == series.collector && labelValues.equals(series.labelValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(collector) + labelValues.hashCode();
+        }
+    }
+
+    private final Map<List<String>, Set<Series>> seriesByTarget = new HashMap<>();
+
+    /**
+     * Gets or creates the series of given collector and tracks it for the target.
+     *
+     * @param collector   the metric.
+     * @param target      the target owning the series.
+     * @param labelValues the label values of the series.
+     * @param <C>         the metric child type.
+     * @return the metric child.
+     */
+    <C> C labels(SimpleCollector<C> collector, List<String> target, String... labelValues) {
+        final Series series = new Series(collector, labelValues);
+        synchronized (this) {
+            seriesByTarget.computeIfAbsent(target, t -> new HashSet<>()).add(series);
+        }
+        return collector.labels(labelValues);
+    }
+
+    /**
+     * Removes all series of targets not retained, unless also used by a retained target.
+     *
+     * @param targets the targets to retain.
+     * @return the number of removed series.
+     */
+    int retainTargets(Collection<List<String>> targets) {
+        final Set<Series> retired = new HashSet<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<List<String>, Set<Series>>> iter = seriesByTarget.entrySet().iterator();
+                 iter.hasNext(); ) {
+                final Map.Entry<List<String>, Set<Series>> entry = iter.next();
+                if (!targets.contains(entry.getKey())) {
+                    retired.addAll(entry.getValue());
+                    iter.remove();
+                }
+            }
+            for (Set<Series> series : seriesByTarget.values()) {
+                retired.removeAll(series);
+            }
+        }
+        for (Series series : retired) {
+            series.remove();
+        }
+        return retired.size();
+    }
+
+    /**
+     * Stops tracking all series of a replaced collector.
+     *
+     * @param collector the replaced collector.
+     */
+    synchronized void forget(SimpleCollector<?> collector) {
+        for (Iterator<Set<Series>> iter = seriesByTarget.values().iterator(); iter.hasNext(); ) {
+            final Set<Series> series = iter.next();
+            series.removeIf(s -> s.collector == collector);
+            if (series.isEmpty()) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of live series.
+     */
+    synchronized int size() {
+        final Set<Series> live = new HashSet<>();
+        for (Set<Series> series : seriesByTarget.values()) {
+            live.addAll(series);
+        }
+        return live.size();
+    }
+}
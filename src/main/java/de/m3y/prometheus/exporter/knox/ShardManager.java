@@ -0,0 +1,234 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shards targets across exporter instances using rendezvous (highest random weight) hashing.
+ * <p>
+ * Every instance knows the same static peer list and computes the same owners per target,
+ * so no coordinator is required. Each target is owned by the healthy peers with the highest
+ * weights for the target, up to the replication factor.
+ * When a peer fails its health checks, only the targets of this peer move to other peers.
+ */
+class ShardManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardManager.class);
+    static final String HEALTH_PATH = "/health";
+
+    private final ScheduledExecutorService healthChecker;
+    private ScheduledFuture<?> healthCheckSchedule;
+    private volatile Config.ShardingConfig shardingConfig = new Config.ShardingConfig();
+    private volatile long[] peerSeeds = new long[0];
+    private volatile int[] consecutiveFailures = new int[0];
+    // Snapshot of peer health, replaced on change
+    private volatile boolean[] healthyPeers = new boolean[0];
+
+    ShardManager() {
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knox-peer-health-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * (Re)configures sharding, initially assuming all peers healthy.
+     *
+     * An invalid config (eg a shard index not a valid peer index) keeps the previous config.
+     *
+     * @param config the sharding config.
+     */
+    synchronized void configure(Config.ShardingConfig config) {
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Keeping previous sharding config", e);
+            return;
+        }
+        final String[] peers = config.getPeers();
+        final Config.ShardingConfig previousConfig = shardingConfig;
+        if (Arrays.equals(previousConfig.getPeers(), peers)
+                && previousConfig.getShardIndex() == config.getShardIndex()
+                && previousConfig.getReplicationFactor() == config.getReplicationFactor()
+                && previousConfig.getHealthCheckInterval() == config.getHealthCheckInterval()
+                && previousConfig.getHealthCheckTimeout() == config.getHealthCheckTimeout()
+                && previousConfig.getUnhealthyThreshold() == config.getUnhealthyThreshold()) {
+            return; // Unchanged, keep peer health
+        }
+
+        final long[] seeds = new long[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            seeds[i] = hash(peers[i]);
+        }
+        final boolean[] healthy = new boolean[peers.length];
+        Arrays.fill(healthy, true);
+        peerSeeds = seeds;
+        consecutiveFailures = new int[peers.length];
+        healthyPeers = healthy;
+        shardingConfig = config;
+
+        if (null != healthCheckSchedule) {
+            healthCheckSchedule.cancel(false);
+            healthCheckSchedule = null;
+        }
+        if (config.isEnabled()) {
+            LOGGER.info("Sharding targets as shard {} of peers {} with replication factor {}",
+                    config.getShardIndex(), Arrays.toString(peers), config.getReplicationFactor());
+            if (peers.length > 1 && config.getHealthCheckInterval() > 0) {
+                healthCheckSchedule = healthChecker.scheduleWithFixedDelay(this::checkPeers,
+                        config.getHealthCheckInterval(), config.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return true, if sharding targets.
+     */
+    boolean isEnabled() {
+        return shardingConfig.isEnabled();
+    }
+
+    /**
+     * Checks if this instance owns the target.
+     *
+     * @param target the target key, identical across instances.
+     * @return true, if owned or not sharding.
+     */
+    boolean owns(String target) {
+        final Config.ShardingConfig config = shardingConfig;
+        if (!config.isEnabled()) {
+            return true;
+        }
+        final long[] seeds = peerSeeds;
+        final boolean[] healthy = healthyPeers;
+        final long targetHash = hash(target);
+        final long selfWeight = weight(seeds[config.getShardIndex()], targetHash);
+        // Owned, if less than replication factor healthy peers have a higher weight
+        int higherWeights = 0;
+        for (int i = 0; i < seeds.length; i++) {
+            if (i != config.getShardIndex() && healthy[i]) {
+                final long peerWeight = weight(seeds[i], targetHash);
+                if (Long.compareUnsigned(peerWeight, selfWeight) > 0
+                        || (peerWeight == selfWeight && i < config.getShardIndex())) {
+                    higherWeights++;
+                    if (higherWeights >= config.getReplicationFactor()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of healthy peers, including this instance.
+     */
+    int getHealthyPeerCount() {
+        if (!isEnabled()) {
+            return 1;
+        }
+        int count = 0;
+        for (boolean healthy : healthyPeers) {
+            if (healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks the health of a peer, eg after a health check.
+     *
+     * @param peerIndex the peer index.
+     * @param healthy   true, if the health check succeeded.
+     */
+    synchronized void markPeerHealth(int peerIndex, boolean healthy) {
+        final Config.ShardingConfig config = shardingConfig;
+        if (peerIndex == config.getShardIndex() || peerIndex >= consecutiveFailures.length) {
+            return; // Self is always healthy
+        }
+        consecutiveFailures[peerIndex] = healthy ? 0 : consecutiveFailures[peerIndex] + 1;
+        final boolean peerHealthy = consecutiveFailures[peerIndex] < config.getUnhealthyThreshold();
+        if (peerHealthy != healthyPeers[peerIndex]) {
+            final boolean[] newHealthyPeers = healthyPeers.clone();
+            newHealthyPeers[peerIndex] = peerHealthy;
+            healthyPeers = newHealthyPeers;
+            LOGGER.warn("Peer {} is {}, rebalancing targets", config.getPeers()[peerIndex],
+                    peerHealthy ? "up" : "down");
+        }
+    }
+
+    /**
+     * Checks the health endpoint of each peer.
+     */
+    void checkPeers() {
+        final Config.ShardingConfig config = shardingConfig;
+        final String[] peers = config.getPeers();
+        for (int i = 0; i < peers.length; i++) {
+            if (i != config.getShardIndex()) {
+                markPeerHealth(i, isHealthy(peers[i], config.getHealthCheckTimeout()));
+            }
+        }
+    }
+
+    private static boolean isHealthy(String peer, int timeout) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(peer + HEALTH_PATH).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            final int responseCode = connection.getResponseCode();
+            return responseCode >= 200 && responseCode < 300;
+        } catch (IOException e) {
+            LOGGER.debug("Health check of peer {} failed", peer, e);
+            return false;
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    void shutdown() {
+        healthChecker.shutdownNow();
+    }
+
+    private static long weight(long peerSeed, long targetHash) {
+        return mix(peerSeed ^ targetHash);
+    }
+
+    /**
+     * FNV-1a 64 bit hash, identical across JVMs.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalization mix of MurmurHash3, for well distributed weights.
+     */
+    private static long mix(long value) {
+        long k = value;
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,470 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.knox.gateway.shell.ClientContext;
+import org.apache.knox.gateway.shell.KnoxSession;
+import org.apache.knox.gateway.shell.KnoxShellException;
+
+/**
+ * Knox session recording the duration of request phases, similar to the blackbox exporter HTTP probe phases.
+ * <p>
+ * Phases only occur for a new HTTP connection (resolve, connect, tls) or for each request (auth or processing).
+ * Processing covers the time from the request being sent until the response headers are received,
+ * and includes the Knox authentication (eg LDAP or PAM) as well as the proxied backend service.
+ * <p>
+ * If sharing a {@link KnoxAuthSession}, requests send the authentication cookie instead of credentials while valid.
+ * A request authenticating with credentials and obtaining a cookie is timed as auth phase instead of processing,
+ * and counted by the reason for authenticating.
+ * Knox rejecting the cookie challenges for credentials, which the HTTP client answers by retrying the request.
+ * <p>
+ * A session must be used by one thread at a time, eg borrowed from a pool.
+ */
+class TimedKnoxSession extends KnoxSession {
+    enum Phase {
+        RESOLVE,
+        CONNECT,
+        TLS,
+        AUTH,
+        PROCESSING;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @return the phase label value.
+         */
+        String getLabel() {
+            return label;
+        }
+    }
+
+    static final long NOT_OCCURRED = -1L;
+    private static final Phase[] PHASES = Phase.values();
+    private static final KnoxAuthSession.Reason[] AUTH_REASONS = KnoxAuthSession.Reason.values();
+    // Context attributes of the ongoing request
+    private static final String CONTEXT_AUTH_COOKIE_SENT = "knox-exporter.auth-cookie-sent";
+    private static final String CONTEXT_AUTH_REASON = "knox-exporter.auth-reason";
+
+    /**
+     * Execution state of KnoxSession, package private as of gateway-shell 1.2.0.
+     * Resolved on first use rather than when loading this class, so that {@link #checkSupported()} reports
+     * an unsupported version as is.
+     */
+    private static final class SessionFields {
+        private static final Field HOST = getSessionField("host", HttpHost.class);
+        private static final Field CONTEXT = getSessionField("context", BasicHttpContext.class);
+    }
+
+    // Assigned by createClient(), as invoked by the super constructor before field initializers run
+    private long[] phaseDurationsNs;
+    private int[] authentications;
+    private CookieStore sessionCookieStore;
+    // Null if not reusing authentication cookies
+    private KnoxAuthSession authSession;
+
+    TimedKnoxSession(ClientContext clientContext) throws URISyntaxException {
+        this(clientContext, null);
+    }
+
+    /**
+     * @param clientContext the client context.
+     * @param authSession   the authentication cookies shared by sessions of the same gateway and user,
+     *                      or null if authenticating each request with credentials.
+     * @throws URISyntaxException on invalid gateway URL.
+     */
+    TimedKnoxSession(ClientContext clientContext, KnoxAuthSession authSession) throws URISyntaxException {
+        super(clientContext);
+        this.authSession = authSession;
+    }
+
+    /**
+     * Resets the phase durations and authentication counts, before a request.
+     */
+    void resetPhaseDurations() {
+        Arrays.fill(phaseDurationsNs, NOT_OCCURRED);
+        Arrays.fill(authentications, 0);
+    }
+
+    /**
+     * @param reason the reason for authenticating.
+     * @return the number of requests authenticated with credentials since last reset, if reusing cookies.
+     */
+    int getAuthenticationCount(KnoxAuthSession.Reason reason) {
+        return authentications[reason.ordinal()];
+    }
+
+    /**
+     * @return all authentication reasons.
+     */
+    static KnoxAuthSession.Reason[] getAuthReasons() {
+        return AUTH_REASONS;
+    }
+
+    /**
+     * @param phase the phase.
+     * @return the duration in nanoseconds since last reset, or {@link #NOT_OCCURRED}.
+     */
+    long getPhaseDurationNs(Phase phase) {
+        return phaseDurationsNs[phase.ordinal()];
+    }
+
+    /**
+     * @return all phases.
+     */
+    static Phase[] getPhases() {
+        return PHASES;
+    }
+
+    /**
+     * Checks that the gateway-shell version is supported, as setting package private fields of {@link KnoxSession}.
+     * <p>
+     * Invoked on startup, so that an unsupported version fails right away instead of on each probe.
+     *
+     * @throws IllegalStateException if the gateway-shell version is not supported.
+     */
+    static void checkSupported() {
+        getSessionField("host", HttpHost.class);
+        getSessionField("context", BasicHttpContext.class);
+    }
+
+    /**
+     * @param name the field name.
+     * @param type the type of the values to set.
+     * @return the accessible field of {@link KnoxSession}.
+     * @throws IllegalStateException if there is no such field accepting the type.
+     */
+    static Field getSessionField(String name, Class<?> type) {
+        try {
+            final Field field = KnoxSession.class.getDeclaredField(name);
+            if (!field.getType().isAssignableFrom(type)) {
+                throw new IllegalStateException("Unsupported gateway-shell version, expected field KnoxSession."
+                        + name + " of type " + type.getName() + " but got " + field.getType().getName());
+            }
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unsupported gateway-shell version, expected field KnoxSession."
+                    + name, e);
+        }
+    }
+
+    private void setSessionField(Field field, Object value) {
+        try {
+            field.set(this, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can not set field KnoxSession." + field.getName(), e);
+        }
+    }
+
+    private void addPhaseDuration(Phase phase, long durationNs) {
+        final long previousNs = phaseDurationsNs[phase.ordinal()];
+        phaseDurationsNs[phase.ordinal()] = previousNs == NOT_OCCURRED ? durationNs : previousNs + durationNs;
+    }
+
+    /**
+     * Creates the HTTP client like {@link KnoxSession}, but with timed DNS resolution, sockets and request execution.
+     * <p>
+     * Also sets up the HTTP host and the preemptive authentication context of the session
+     * like {@link KnoxSession} 1.2.0, as used when executing requests.
+     */
+    @Override
+    protected CloseableHttpClient createClient(ClientContext clientContext) throws GeneralSecurityException {
+        phaseDurationsNs = new long[PHASES.length];
+        authentications = new int[AUTH_REASONS.length];
+        resetPhaseDurations();
+        sessionCookieStore = new BasicCookieStore();
+
+        final boolean secure = clientContext.connection().secure();
+        final HostnameVerifier hostnameVerifier = secure
+                ? SSLConnectionSocketFactory.getDefaultHostnameVerifier() : NoopHostnameVerifier.INSTANCE;
+        final SSLContext sslContext = SSLContexts.custom()
+                .loadTrustMaterial(loadTrustStore(clientContext), secure ? null : TrustSelfSignedStrategy.INSTANCE)
+                .build();
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedPlainConnectionSocketFactory())
+                .register("https", new TimedSSLConnectionSocketFactory(sslContext, hostnameVerifier))
+                .build();
+
+        final PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(registry, this::resolve);
+        connectionManager.setMaxTotal(clientContext.pool().maxTotal());
+        connectionManager.setDefaultMaxPerRoute(clientContext.pool().defaultMaxPerRoute());
+        connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setBufferSize(clientContext.connection().bufferSize())
+                .build());
+        final ClientContext.SocketContext socketContext = clientContext.socket();
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoKeepAlive(socketContext.keepalive())
+                .setSoLinger(socketContext.linger())
+                .setSoReuseAddress(socketContext.reuseAddress())
+                .setSoTimeout(socketContext.timeout())
+                .setTcpNoDelay(socketContext.tcpNoDelay())
+                .build());
+
+        final URI uri = URI.create(clientContext.url());
+        final HttpHost host = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        CredentialsProvider credentialsProvider = null;
+        BasicHttpContext sessionContext = null;
+        if (null != clientContext.username() && null != clientContext.password()) {
+            credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(new AuthScope(host.getHostName(), host.getPort()),
+                    new UsernamePasswordCredentials(clientContext.username(), clientContext.password()));
+            final AuthCache authCache = new BasicAuthCache();
+            authCache.put(host, new BasicScheme()); // Preemptive
+            sessionContext = new BasicHttpContext();
+            sessionContext.setAttribute(HttpClientContext.AUTH_CACHE, authCache);
+        }
+        setSessionField(SessionFields.HOST, host);
+        setSessionField(SessionFields.CONTEXT, sessionContext);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultCredentialsProvider(credentialsProvider)
+                .setDefaultCookieStore(new SharedCookieStore())
+                .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> validateAuthCookie(context))
+                .addInterceptorLast((HttpRequestInterceptor) (request, context) -> skipCredentials(context))
+                .setRequestExecutor(new TimedHttpRequestExecutor())
+                .build();
+    }
+
+    /**
+     * Decides on sending the authentication cookie or credentials.
+     * Runs before the client adds the cookies, so that expired authentication cookies are not sent.
+     */
+    private void validateAuthCookie(HttpContext context) {
+        if (null == authSession) {
+            return;
+        }
+        final boolean authCookieSent = authSession.validateAuthCookie(System.currentTimeMillis());
+        context.setAttribute(CONTEXT_AUTH_COOKIE_SENT, authCookieSent);
+        if (authCookieSent) {
+            context.removeAttribute(CONTEXT_AUTH_REASON);
+        } else {
+            context.setAttribute(CONTEXT_AUTH_REASON, authSession.getMissingReason());
+        }
+    }
+
+    /**
+     * Skips the preemptive credentials of the session context if sending the authentication cookie.
+     * Runs after the client set up the preemptive authentication state.
+     */
+    private void skipCredentials(HttpContext context) {
+        if (Boolean.TRUE.equals(context.getAttribute(CONTEXT_AUTH_COOKIE_SENT))) {
+            HttpClientContext.adapt(context).getTargetAuthState().reset();
+        }
+    }
+
+    /**
+     * Tracks the authentication of a received response, if reusing cookies.
+     *
+     * @return true, if the request authenticated with credentials and obtained an authentication cookie.
+     */
+    private boolean trackAuthentication(HttpRequest request, HttpResponse response, HttpContext context) {
+        if (null == authSession || null == response) {
+            return false;
+        }
+        if (!request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED
+                    && Boolean.TRUE.equals(context.getAttribute(CONTEXT_AUTH_COOKIE_SENT))) {
+                // Credentials are sent when retrying the challenged request
+                authSession.rejected();
+                context.setAttribute(CONTEXT_AUTH_REASON, KnoxAuthSession.Reason.REJECTED);
+            }
+            return false;
+        }
+        final Object reason = context.getAttribute(CONTEXT_AUTH_REASON);
+        if (reason instanceof KnoxAuthSession.Reason) {
+            authentications[((KnoxAuthSession.Reason) reason).ordinal()]++;
+        }
+        return authSession.authenticated(response, System.currentTimeMillis());
+    }
+
+    /**
+     * Uses the cookie store of the shared authentication session if available, or a cookie store of this session.
+     * The authentication session is only assigned after the client got created.
+     */
+    private class SharedCookieStore implements CookieStore {
+        private CookieStore delegate() {
+            return null == authSession ? sessionCookieStore : authSession.getCookieStore();
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            delegate().addCookie(cookie);
+        }
+
+        @Override
+        public List<Cookie> getCookies() {
+            return delegate().getCookies();
+        }
+
+        @Override
+        public boolean clearExpired(Date date) {
+            return delegate().clearExpired(date);
+        }
+
+        @Override
+        public void clear() {
+            delegate().clear();
+        }
+    }
+
+    /**
+     * Loads the trust store like {@link KnoxSession}: The Knox client trust store if available, or the JVM trust store.
+     */
+    private KeyStore loadTrustStore(ClientContext clientContext) throws GeneralSecurityException {
+        discoverTruststoreDetails(clientContext);
+        File trustStoreFile = new File(clientContext.connection().truststoreLocation());
+        String trustStorePass = clientContext.connection().truststorePass();
+        if (!trustStoreFile.exists()) {
+            String trustStoreLocation = System.getProperty("javax.net.ssl.trustStore");
+            if (null == trustStoreLocation) {
+                trustStoreLocation = System.getProperty("java.home") + File.separator + "lib"
+                        + File.separator + "security" + File.separator + "cacerts";
+                trustStorePass = System.getProperty("javax.net.ssl.trustStorePassword", "changeit");
+            }
+            trustStoreFile = new File(trustStoreLocation);
+        }
+        if (!trustStoreFile.exists()) {
+            throw new KnoxShellException("Unable to find a truststore for secure login. Please import the "
+                    + "gateway-identity certificate into the JVM truststore or set the truststore location ENV variables.");
+        }
+
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream inputStream = new FileInputStream(trustStoreFile)) {
+            keyStore.load(inputStream, null == trustStorePass ? null : trustStorePass.toCharArray());
+        } catch (IOException e) {
+            throw new KnoxShellException("Unable to load truststore " + trustStoreFile, e);
+        }
+        return keyStore;
+    }
+
+    private InetAddress[] resolve(String host) throws UnknownHostException {
+        final long startNs = System.nanoTime();
+        try {
+            return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+        } finally {
+            addPhaseDuration(Phase.RESOLVE, System.nanoTime() - startNs);
+        }
+    }
+
+    private class TimedPlainConnectionSocketFactory extends PlainConnectionSocketFactory {
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long startNs = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                addPhaseDuration(Phase.CONNECT, System.nanoTime() - startNs);
+            }
+        }
+    }
+
+    /**
+     * Times TCP connect and TLS handshake (including hostname verification) separately.
+     */
+    private class TimedSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+        private long tlsStartNs;
+
+        TimedSSLConnectionSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+            super(sslContext, hostnameVerifier);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long startNs = System.nanoTime();
+            tlsStartNs = NOT_OCCURRED;
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                final long endNs = System.nanoTime();
+                if (tlsStartNs == NOT_OCCURRED) {
+                    addPhaseDuration(Phase.CONNECT, endNs - startNs);
+                } else {
+                    addPhaseDuration(Phase.CONNECT, tlsStartNs - startNs);
+                    addPhaseDuration(Phase.TLS, endNs - tlsStartNs);
+                }
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            tlsStartNs = System.nanoTime();
+            return super.createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    private class TimedHttpRequestExecutor extends HttpRequestExecutor {
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws HttpException, IOException {
+            final long startNs = System.nanoTime();
+            HttpResponse response = null;
+            try {
+                response = super.doReceiveResponse(request, conn, context);
+                return response;
+            } finally {
+                final long durationNs = System.nanoTime() - startNs;
+                addPhaseDuration(trackAuthentication(request, response, context) ? Phase.AUTH : Phase.PROCESSING,
+                        durationNs);
+            }
+        }
+    }
+}
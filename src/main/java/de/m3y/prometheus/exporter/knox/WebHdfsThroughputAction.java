@@ -0,0 +1,178 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import org.apache.knox.gateway.shell.BasicResponse;
+import org.apache.knox.gateway.shell.KnoxSession;
+import org.apache.knox.gateway.shell.KnoxShellException;
+import org.apache.knox.gateway.shell.hdfs.Hdfs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes the WebHDFS data path, by writing, reading back and deleting a test file.
+ * <p>
+ * Unlike a status request, the data is transferred via the DataNodes (redirected by Knox).
+ * The payload is generated, and verified while streaming on read back.
+ */
+class WebHdfsThroughputAction extends KnoxCollector.AbstractKnoxBaseAction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebHdfsThroughputAction.class);
+
+    static final String ACTION = "webhdfs_throughput";
+    static final String[] OPERATIONS = {"write", "read", "delete"};
+    private static final String PAYLOAD_PATTERN = "0123456789abcdefghijklmnopqrstuvwxyz\n";
+    private static final int WRITE = 0;
+    private static final int READ = 1;
+    private static final int DELETE = 2;
+    private final KnoxCollector collector;
+    private final String file;
+    private final String payload;
+    // Operation metric children, resolved on first use
+    private final Summary.Child[] operationDurations = new Summary.Child[OPERATIONS.length];
+    private final Gauge.Child[] operationThroughputs = new Gauge.Child[OPERATIONS.length];
+
+    WebHdfsThroughputAction(KnoxCollector collector, String knoxUrl, String path, int payloadSize, String username,
+                            String password, int timeout) {
+        collector.super(ACTION, knoxUrl, username, password, path, timeout);
+        this.collector = collector;
+        // Unique per action, so that exporter instances probing same path do not interfere
+        file = (path.endsWith("/") ? path : path + '/') + "knox-exporter-" + UUID.randomUUID();
+        final StringBuilder buf = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            buf.append(PAYLOAD_PATTERN.charAt(i % PAYLOAD_PATTERN.length()));
+        }
+        payload = buf.toString();
+    }
+
+    /**
+     * @return the test file path.
+     */
+    String getFile() {
+        return file;
+    }
+
+    @Override
+    protected int execute(KnoxSession knoxSession) throws IOException {
+        int statusCode = 0;
+        try {
+            statusCode = write(knoxSession);
+            if (statusCode == 200) {
+                statusCode = read(knoxSession);
+            }
+        } finally {
+            // Also if write or read fails, as the file got possibly written
+            final int deleteStatusCode = delete(knoxSession);
+            if (statusCode == 200) {
+                statusCode = deleteStatusCode;
+            }
+        }
+        return statusCode;
+    }
+
+    private int write(KnoxSession knoxSession) throws IOException {
+        final long startNs = System.nanoTime();
+        try (BasicResponse response = Hdfs.put(knoxSession).text(payload).to(file).overwrite(true).now()) {
+            if (response.getStatusCode() / 100 != 2) { // 201 Created
+                logFailedResponse(response);
+                return response.getStatusCode();
+            }
+        }
+        observe(WRITE, System.nanoTime() - startNs, true);
+        return 200;
+    }
+
+    private int read(KnoxSession knoxSession) throws IOException {
+        final long startNs = System.nanoTime();
+        try (BasicResponse response = Hdfs.get(knoxSession).from(file).now()) {
+            if (response.getStatusCode() != 200) {
+                logFailedResponse(response);
+                return response.getStatusCode();
+            }
+            verify(response.getStream());
+        }
+        observe(READ, System.nanoTime() - startNs, true);
+        return 200;
+    }
+
+    private int delete(KnoxSession knoxSession) throws IOException {
+        final long startNs = System.nanoTime();
+        try (BasicResponse response = Hdfs.rm(knoxSession).file(file).now()) {
+            if (response.getStatusCode() != 200) {
+                logFailedResponse(response);
+                return response.getStatusCode();
+            }
+        } catch (KnoxShellException e) {
+            // Eg the session got closed by cancelling the action
+            deleteUsingNewSession();
+            throw e;
+        }
+        observe(DELETE, System.nanoTime() - startNs, false);
+        return 200;
+    }
+
+    /**
+     * Deletes the file on a best effort basis using a new session, as otherwise left behind in HDFS.
+     */
+    private void deleteUsingNewSession() {
+        try (KnoxSession knoxSession = openKnoxSession();
+             BasicResponse response = Hdfs.rm(knoxSession).file(file).now()) {
+            LOGGER.debug("Deleted {} of {} using a new session : {}", file, Arrays.toString(getLabels()),
+                    response.getStatusCode());
+        } catch (IOException | URISyntaxException | KnoxShellException e) {
+            LOGGER.warn("Failed to delete {} of {} : {}", file, Arrays.toString(getLabels()), e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the streamed content with the payload, without buffering the content.
+     *
+     * @param inputStream the content.
+     * @throws IOException if the content differs, or on failure reading.
+     */
+    private void verify(InputStream inputStream) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int offset = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++, offset++) {
+                if (offset >= payload.length() || buffer[i] != payload.charAt(offset)) {
+                    throw new IOException("Read back content of " + file + " differs from payload at offset "
+                            + offset);
+                }
+            }
+        }
+        if (offset != payload.length()) {
+            throw new IOException("Read back " + offset + " bytes of " + file + ", expected "
+                    + payload.length());
+        }
+    }
+
+    private void observe(int operation, long durationNs, boolean transfer) {
+        if (null == operationDurations[operation]) {
+            operationDurations[operation] = collector.webHdfsThroughputOperationDuration(getTargetLabels(),
+                    OPERATIONS[operation]);
+            if (transfer) {
+                operationThroughputs[operation] = collector.webHdfsThroughput(getTargetLabels(),
+                        OPERATIONS[operation]);
+            }
+        }
+        final double durationSeconds = KnoxCollector.toSeconds(durationNs);
+        operationDurations[operation].observe(durationSeconds);
+        if (transfer && durationSeconds > 0) {
+            operationThroughputs[operation].set(payload.length() / durationSeconds);
+        }
+    }
+
+    @Override
+    void resetSeries() {
+        super.resetSeries();
+        Arrays.fill(operationDurations, null);
+        Arrays.fill(operationThroughputs, null);
+    }
+}
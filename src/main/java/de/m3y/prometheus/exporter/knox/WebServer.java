@@ -1,15 +1,16 @@
 package de.m3y.prometheus.exporter.knox;
 
 import java.io.File;
-import java.net.InetSocketAddress;
 
-import io.prometheus.client.exporter.MetricsServlet;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.hotspot.DefaultExports;
 import org.apache.log4j.Level;
 import org.apache.log4j.spi.RootLogger;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 public class WebServer {
 
@@ -19,7 +20,8 @@ public class WebServer {
     WebServer configure(ConfigLoader configLoader, String address, int port) {
         // Metrics
         knoxCollector = new KnoxCollector(configLoader);
-        knoxCollector.register();
+        knoxCollector.setProbeOnCollect(false); // Probing via async metrics servlet
+        knoxCollector.liveCollector().register(); // Probe results exposed via metrics servlet
 
         DefaultExports.initialize();
 
@@ -27,12 +29,28 @@ public class WebServer {
                 "knox_exporter").register();
 
         // Jetty
-        InetSocketAddress inetAddress = new InetSocketAddress(address, port);
-        server = new Server(inetAddress);
+        final Config.ServerConfig serverConfig = configLoader.getCurrentConfig().getServer();
+        final QueuedThreadPool threadPool = new QueuedThreadPool(serverConfig.getMaxThreads(),
+                serverConfig.getMinThreads(), serverConfig.getThreadIdleTimeout());
+        threadPool.setName("knox-exporter-http");
+        server = new Server(threadPool);
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost(address);
+        connector.setPort(port);
+        connector.setAcceptQueueSize(serverConfig.getAcceptQueueSize());
+        connector.setIdleTimeout(serverConfig.getIdleTimeout());
+        server.addConnector(connector);
         ServletContextHandler context = new ServletContextHandler();
         context.setContextPath("/");
         server.setHandler(context);
-        context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        final ServletHolder metricsServletHolder = new ServletHolder(new CachedMetricsServlet(
+                CollectorRegistry.defaultRegistry, knoxCollector::collectProbeResults,
+                knoxCollector::getSnapshotGeneration, knoxCollector::requestSnapshot,
+                knoxCollector::getScrapeTimeoutMs));
+        metricsServletHolder.setAsyncSupported(true);
+        context.addServlet(metricsServletHolder, "/metrics");
+        context.addServlet(new ServletHolder(new ProbeServlet(knoxCollector)), "/probe");
+        context.addServlet(new ServletHolder(new HealthServlet()), ShardManager.HEALTH_PATH);
         context.addServlet(new ServletHolder(new HomePageServlet(configLoader, buildInfo)), "/");
 
         return this;
@@ -0,0 +1,230 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.exporter.common.TextFormat;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachedMetricsServletTest {
+    private final AtomicInteger collects = new AtomicInteger();
+    private final AtomicLong liveValue = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger snapshotRequests = new AtomicInteger();
+    private volatile CompletableFuture<Void> snapshotRequest = CompletableFuture.completedFuture(null);
+    private volatile long scrapeTimeoutMs = 30000L;
+    private final OkHttpClient client = new OkHttpClient();
+    private Server server;
+    private String metricsUrl;
+
+    private class LiveCollector extends Collector {
+        @Override
+        public List<MetricFamilySamples> collect() {
+            return Collections.singletonList(new GaugeMetricFamily("test_live",
+                    "Value changing independently of snapshots", liveValue.get()));
+        }
+    }
+
+    private List<Collector.MetricFamilySamples> collectProbeResults() {
+        return Collections.singletonList(new GaugeMetricFamily("test_collects",
+                "Number of collects", collects.incrementAndGet()));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        new LiveCollector().register(registry);
+
+        // Few request threads, to verify suspended scrapes do not occupy them
+        server = new Server(new QueuedThreadPool(8, 2));
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        ServletHolder servletHolder = new ServletHolder(new CachedMetricsServlet(registry,
+                this::collectProbeResults, generation::get, () -> {
+            snapshotRequests.incrementAndGet();
+            return snapshotRequest;
+        }, () -> scrapeTimeoutMs));
+        servletHolder.setAsyncSupported(true);
+        context.addServlet(servletHolder, "/metrics");
+        server.setHandler(context);
+        server.start();
+        metricsUrl = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/metrics";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private Response get(String url, String accept, String acceptEncoding) throws IOException {
+        Request.Builder request = new Request.Builder().url(url);
+        if (null != accept) {
+            request.header("Accept", accept);
+        }
+        if (null != acceptEncoding) {
+            request.header("Accept-Encoding", acceptEncoding); // Disables transparent gzip of client
+        }
+        return client.newCall(request.build()).execute();
+    }
+
+    @Test
+    public void testSameGenerationServesCachedExposition() throws IOException {
+        String body = get(metricsUrl, null, null).body().string();
+        assertThat(body).contains("test_collects 1.0");
+        assertThat(get(metricsUrl, null, null).body().string()).isEqualTo(body);
+
+        // Other variants of same generation
+        Response response = get(metricsUrl, "application/openmetrics-text; version=1.0.0; charset=utf-8", null);
+        assertThat(response.header("Content-Type")).startsWith("application/openmetrics-text");
+        String openMetricsBody = response.body().string();
+        assertThat(openMetricsBody).contains("test_live 0.0", "test_collects 1.0").endsWith("# EOF\n");
+        assertThat(openMetricsBody.indexOf("# EOF")).isEqualTo(openMetricsBody.length() - "# EOF\n".length());
+
+        response = get(metricsUrl, null, "gzip");
+        assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+        try (InputStream inputStream = new GZIPInputStream(response.body().byteStream())) {
+            assertThat(new String(readAll(inputStream), StandardCharsets.UTF_8)).isEqualTo(body);
+        }
+        assertThat(collects.get()).isEqualTo(1);
+
+        // Next generation
+        generation.incrementAndGet();
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_collects 2.0");
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_collects 2.0");
+        assertThat(collects.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLiveMetricsCollectedOnEachRequest() throws IOException {
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_live 0.0", "test_collects 1.0");
+
+        // Same generation, eg result age grows between background probe cycles
+        liveValue.set(1);
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_live 1.0", "test_collects 1.0");
+        liveValue.set(2);
+        Response response = get(metricsUrl, null, "gzip");
+        try (InputStream inputStream = new GZIPInputStream(response.body().byteStream())) {
+            assertThat(new String(readAll(inputStream), StandardCharsets.UTF_8))
+                    .contains("test_live 2.0", "test_collects 1.0");
+        }
+        assertThat(collects.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNoGenerationCollectsOnEachRequest() throws IOException {
+        generation.set(CachedMetricsServlet.NO_GENERATION);
+        Response response = get(metricsUrl, null, null);
+        assertThat(response.header("Content-Type")).isEqualTo(TextFormat.CONTENT_TYPE_004);
+        assertThat(response.body().string()).contains("test_collects 1.0");
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_collects 2.0");
+    }
+
+    @Test
+    public void testNameSelectionBypassesCache() throws IOException {
+        get(metricsUrl, null, null).close();
+        assertThat(get(metricsUrl + "?name[]=test_collects", null, null).body().string())
+                .contains("test_collects 2.0");
+        assertThat(get(metricsUrl + "?name[]=test_live", null, null).body().string())
+                .contains("test_live 0.0").doesNotContain("test_collects");
+        assertThat(get(metricsUrl + "?name[]=other", null, null).body().string()).isEmpty();
+    }
+
+    @Test
+    public void testSuspendedUntilSnapshotCompletes() throws Exception {
+        snapshotRequest = new CompletableFuture<>();
+        final int scrapes = 20; // More than request threads
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(scrapes);
+        final OkHttpClient concurrentClient = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+        final List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < scrapes; i++) {
+            final CompletableFuture<String> response = new CompletableFuture<>();
+            concurrentClient.newCall(new Request.Builder().url(metricsUrl).build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    response.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response r) throws IOException {
+                    response.complete(r.body().string());
+                }
+            });
+            responses.add(response);
+        }
+
+        // All scrapes got suspended, none blocks a request thread
+        for (int i = 0; i < 100 && snapshotRequests.get() < scrapes; i++) {
+            Thread.sleep(50);
+        }
+        assertThat(snapshotRequests.get()).isEqualTo(scrapes);
+        assertThat(responses).noneMatch(CompletableFuture::isDone);
+
+        // Completed probe cycle resumes all scrapes, sharing one collect
+        snapshotRequest.complete(null);
+        for (CompletableFuture<String> response : responses) {
+            assertThat(response.get(10, TimeUnit.SECONDS)).contains("test_collects 1.0");
+        }
+        assertThat(collects.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailedSnapshot() throws IOException {
+        snapshotRequest = new CompletableFuture<>();
+        snapshotRequest.cancel(false);
+        assertThat(get(metricsUrl, null, null).code()).isEqualTo(503);
+    }
+
+    @Test
+    public void testScrapeTimeout() throws Exception {
+        snapshotRequest = new CompletableFuture<>();
+        scrapeTimeoutMs = 200L;
+        long start = System.nanoTime();
+        assertThat(get(metricsUrl, null, null).code()).isEqualTo(503);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(200L, 10000L);
+
+        // Late completion of timed out scrape is ignored
+        snapshotRequest.complete(null);
+        assertThat(get(metricsUrl, null, null).body().string()).contains("test_collects 1.0");
+        assertThat(collects.get()).isEqualTo(1);
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
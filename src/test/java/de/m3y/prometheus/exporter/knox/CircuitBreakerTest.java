@@ -0,0 +1,82 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private static Config.CircuitBreakerConfig config() {
+        Config.CircuitBreakerConfig config = new Config.CircuitBreakerConfig();
+        config.setFailureThreshold(3);
+        config.setInitialBackoff(10000);
+        config.setMaxBackoff(30000);
+        config.setBackoffMultiplier(2);
+        return config;
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        final Config.CircuitBreakerConfig config = config();
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        long now = 0;
+        for (int i = 0; i < 2; i++) {
+            assertThat(circuitBreaker.allowProbe(config, now)).isTrue();
+            circuitBreaker.recordResult(config, true, now);
+        }
+        // Success resets failures
+        circuitBreaker.recordResult(config, false, now);
+        for (int i = 0; i < 3; i++) {
+            assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+            assertThat(circuitBreaker.allowProbe(config, now)).isTrue();
+            circuitBreaker.recordResult(config, true, now);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.getBackoffMs()).isEqualTo(10000);
+        assertThat(circuitBreaker.allowProbe(config, now + 9 * SECOND_NS)).isFalse();
+    }
+
+    @Test
+    public void testBackoffIncreasesUntilTrialSucceeds() {
+        final Config.CircuitBreakerConfig config = config();
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.recordResult(config, true, now);
+        }
+
+        // Failed trial probes double the backoff, up to max backoff
+        for (long expectedBackoffMs : new long[]{20000, 30000, 30000}) {
+            now += circuitBreaker.getBackoffMs() * 1000L * 1000L;
+            assertThat(circuitBreaker.allowProbe(config, now)).isTrue();
+            assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+            circuitBreaker.recordResult(config, true, now);
+            assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+            assertThat(circuitBreaker.getBackoffMs()).isEqualTo(expectedBackoffMs);
+            assertThat(circuitBreaker.allowProbe(config, now + SECOND_NS)).isFalse();
+        }
+
+        // Successful trial probe closes
+        now += circuitBreaker.getBackoffMs() * 1000L * 1000L;
+        assertThat(circuitBreaker.allowProbe(config, now)).isTrue();
+        circuitBreaker.recordResult(config, false, now);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(circuitBreaker.getConsecutiveFailures()).isZero();
+        assertThat(circuitBreaker.allowProbe(config, now)).isTrue();
+    }
+
+    @Test
+    public void testDisabled() {
+        final Config.CircuitBreakerConfig config = new Config.CircuitBreakerConfig();
+        assertThat(config.isEnabled()).isFalse();
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        for (int i = 0; i < 100; i++) {
+            assertThat(circuitBreaker.allowProbe(config, 0)).isTrue();
+            circuitBreaker.recordResult(config, true, 0);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+}
@@ -1,16 +1,25 @@
 package de.m3y.prometheus.exporter.knox;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ConfigLoaderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testLoader() {
         final File configFile = new File("src/test/resources/" + ConfigTest.CONFIG_TEST_YML);
-        ConfigLoader loader = ConfigLoader.forFile(configFile);
+        ConfigLoader loader = new ConfigLoader.FileConfigLoader(configFile, 0);
         Config config = loader.getCurrentConfig();
         ConfigTest.validateConfig(config);
 
@@ -26,4 +35,65 @@ public class ConfigLoaderTest {
         assertThat(config != relodedConfig).isTrue();
         ConfigTest.validateConfig(config);
     }
+
+    @Test
+    public void testFailedReloadKeepsConfig() throws IOException {
+        final File configFile = temporaryFolder.newFile("config.yml");
+        writeConfig(configFile, "timeout: 1000", 1000L);
+        ConfigLoader loader = new ConfigLoader.FileConfigLoader(configFile, 0);
+        Config config = loader.getCurrentConfig();
+        assertThat(config.getTimeout()).isEqualTo(1000);
+
+        // Unparseable
+        writeConfig(configFile, "timeout: [", 2000L);
+        assertThat(loader.hasModifications()).isTrue();
+        assertThat(loader.getOrLoadIfModified()).isSameAs(config);
+        assertThat(loader.getReloadFailureCount()).isEqualTo(1);
+        // Not retried until modified again
+        assertThat(loader.hasModifications()).isFalse();
+        assertThat(loader.getOrLoadIfModified()).isSameAs(config);
+        assertThat(loader.getReloadFailureCount()).isEqualTo(1);
+
+        // Invalid
+        writeConfig(configFile, "timeout: 0", 3000L);
+        assertThat(loader.getOrLoadIfModified()).isSameAs(config);
+        assertThat(loader.getReloadFailureCount()).isEqualTo(2);
+
+        // Fixed
+        writeConfig(configFile, "timeout: 2000", 4000L);
+        Config reloadedConfig = loader.getOrLoadIfModified();
+        assertThat(reloadedConfig).isNotSameAs(config);
+        assertThat(reloadedConfig.getTimeout()).isEqualTo(2000);
+        assertThat(loader.getCurrentConfig()).isSameAs(reloadedConfig);
+        assertThat(loader.getReloadFailureCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCheckInterval() throws IOException {
+        final File configFile = temporaryFolder.newFile("config.yml");
+        writeConfig(configFile, "timeout: 1000", 1000L);
+        ConfigLoader loader = new ConfigLoader.FileConfigLoader(configFile, 60000L);
+        Config config = loader.getCurrentConfig();
+
+        // Not checked again within check interval
+        writeConfig(configFile, "timeout: 2000", 2000L);
+        assertThat(loader.hasModifications()).isFalse();
+        assertThat(loader.getOrLoadIfModified()).isSameAs(config);
+    }
+
+    @Test
+    public void testFailedInitialLoad() throws IOException {
+        final File configFile = temporaryFolder.newFile("config.yml");
+        writeConfig(configFile, "webHdfsServices:\n  - statusPaths: ['/']", 1000L);
+        ConfigLoader loader = new ConfigLoader.FileConfigLoader(configFile, 0);
+        // No previous config to keep
+        assertThatThrownBy(loader::getCurrentConfig)
+                .isInstanceOf(IllegalStateException.class)
+                .hasRootCauseInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static void writeConfig(File configFile, String yaml, long lastModified) throws IOException {
+        Files.write(configFile.toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+        assertThat(configFile.setLastModified(lastModified)).isTrue();
+    }
 }
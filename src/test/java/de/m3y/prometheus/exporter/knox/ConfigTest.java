@@ -2,11 +2,13 @@ package de.m3y.prometheus.exporter.knox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ConfigTest {
 
@@ -19,6 +21,7 @@ public class ConfigTest {
             Config config = new Yaml().loadAs(is, Config.class);
 
             validateConfig(config);
+            config.validate();
         }
     }
 
@@ -29,6 +32,14 @@ public class ConfigTest {
         assertThat(config.getTimeout()).isEqualTo(59000);
         assertThat(config.getJdbcLoginTimeout()).isEqualTo(10);
 
+        assertThat(config.getOpsDuration().getType()).isEqualTo(Config.MetricType.HISTOGRAM);
+        assertThat(config.getOpsDuration().getBuckets()).isNull();
+        assertThat(config.getOpsDuration().getExponentialBuckets().getStart()).isEqualTo(0.01);
+        assertThat(config.getOpsDuration().getExponentialBuckets().getFactor()).isEqualTo(2.0);
+        assertThat(config.getOpsDuration().getExponentialBuckets().getCount()).isEqualTo(12);
+        assertThat(config.getOpsDuration().getActionBuckets().get("hive_query"))
+                .containsExactly(0.5, 1.0, 5.0, 30.0);
+
         Config.HiveService[] hiveServices = config.getHiveServices();
         assertThat(hiveServices.length).isEqualTo(2);
         assertThat(hiveServices[0].getUsername()).isEqualTo("foo-2");
@@ -36,6 +47,7 @@ public class ConfigTest {
         assertThat(hiveServices[0].getJdbcUrl()).isEqualTo("jdbc:hive2://knox-hive-server:10000/default");
         assertThat(hiveServices[0].getQueries()).isEqualTo(
                 new String[]{"SELECT current_database()", "something more complex"});
+        assertThat(hiveServices[0].getQueryTimeouts()).containsEntry("something more complex", 120000);
 
         assertThat(hiveServices[1].getJdbcUrl()).isEqualTo("jdbc:hive2://knox-hive-server:10000/other-database");
         assertThat(hiveServices[1].getQueries()).isEqualTo(new String[]{"SELECT current_database()"});
@@ -46,12 +58,92 @@ public class ConfigTest {
         assertThat(webHdfsServices[0].getStatusPaths()).isEqualTo(new String[]{"/", "/datalake"});
         assertThat(webHdfsServices[1].getKnoxUrl()).isEqualTo("https://my-knox-server/gateway/another-cluster");
         assertThat(webHdfsServices[1].getStatusPaths()).isEqualTo(new String[]{"/"});
+        assertThat(webHdfsServices[1].getTimeout()).isEqualTo(30000);
 
         Config.HBaseService[] hBaseServices = config.getHbaseServices();
         assertThat(hBaseServices.length).isEqualTo(1);
         assertThat(hBaseServices[0].getKnoxUrl()).isEqualTo("https://localhost:8443/gateway/default");
     }
 
+    @Test
+    public void testResolveTimeout() {
+        Config.HiveService hiveService = Config.HiveService.of("foo", "bar", "jdbc:hive2://localhost:10000",
+                "SELECT 1", "SELECT 2");
+        assertThat(hiveService.resolveTimeout("SELECT 1", 1000)).isEqualTo(1000);
+
+        hiveService.setTimeout(2000);
+        assertThat(hiveService.resolveTimeout("SELECT 1", 1000)).isEqualTo(2000);
+
+        hiveService.getQueryTimeouts().put("SELECT 2", 3000);
+        assertThat(hiveService.resolveTimeout("SELECT 1", 1000)).isEqualTo(2000);
+        assertThat(hiveService.resolveTimeout("SELECT 2", 1000)).isEqualTo(3000);
+    }
+
+    @Test
+    public void testValidate() {
+        new Config().validate();
+
+        assertInvalid(config -> config.getOpsDuration().setBuckets(new double[]{1, 0.5}));
+        assertInvalid(config -> config.getOpsDuration().getActionBuckets().put("hive_query", new double[0]));
+        assertInvalid(config -> {
+            final Config.ExponentialBuckets exponentialBuckets = new Config.ExponentialBuckets();
+            exponentialBuckets.setFactor(1);
+            config.getOpsDuration().setExponentialBuckets(exponentialBuckets);
+        });
+        assertInvalid(config -> {
+            config.getSharding().setPeers(new String[]{"http://exporter-0:9092"});
+            config.getSharding().setShardIndex(1);
+        });
+        assertInvalid(config -> {
+            config.getSharding().setPeers(new String[]{"http://exporter-0:9092", "http://exporter-1:9092"});
+            config.getSharding().setHealthCheckInterval(-1);
+        });
+        assertInvalid(config -> {
+            config.getSharding().setPeers(new String[]{"http://exporter-0:9092", "http://exporter-1:9092"});
+            config.getSharding().setUnhealthyThreshold(0);
+        });
+        assertInvalid(config -> {
+            config.getCircuitBreaker().setFailureThreshold(1);
+            config.getCircuitBreaker().setMaxBackoff(1);
+        });
+        assertInvalid(config -> config.getGatewayLimits().setBurst(0));
+        assertInvalid(config -> config.getGatewayLimits().getGateways().put("my-knox-server:8443",
+                Config.GatewayLimitConfig.of(-1, 0, 1)));
+        assertInvalid(config -> config.getProbeSpreading().setWindow(-1));
+        assertInvalid(config -> config.setHiveServices(new Config.HiveService[]{
+                Config.HiveService.of("foo", "bar", null, "SELECT 1")}));
+        assertInvalid(config -> config.setWebHdfsThroughputServices(new Config.WebHdfsThroughputService[]{
+                Config.WebHdfsThroughputService.of("foo", "bar", "https://my-knox-server:8443/gateway/default",
+                        null, 1024)}));
+        assertInvalid(config -> config.setWebHdfsThroughputServices(new Config.WebHdfsThroughputService[]{
+                Config.WebHdfsThroughputService.of("foo", "bar", "https://my-knox-server:8443/gateway/default",
+                        "/tmp", -1)}));
+        assertInvalid(config -> config.setHbaseCanaryServices(new Config.HBaseCanaryService[]{
+                Config.HBaseCanaryService.of("foo", "bar", "https://my-knox-server:8443/gateway/default", null)}));
+        assertInvalid(config -> {
+            final Config.HBaseCanaryService canaryService = Config.HBaseCanaryService.of("foo", "bar",
+                    "https://my-knox-server:8443/gateway/default", "knox_exporter");
+            canaryService.setColumn(null);
+            config.setHbaseCanaryServices(new Config.HBaseCanaryService[]{canaryService});
+        });
+        assertInvalid(config -> {
+            final Config.HBaseCanaryService canaryService = Config.HBaseCanaryService.of("foo", "bar",
+                    "https://my-knox-server:8443/gateway/default", "knox_exporter");
+            canaryService.setScanLimit(0);
+            config.setHbaseCanaryServices(new Config.HBaseCanaryService[]{canaryService});
+        });
+        assertInvalid(config -> config.getModules().put("webhdfs",
+                Config.ProbeModule.of(Config.Prober.WEBHDFS_STATUS, null)));
+        assertInvalid(config -> config.getModules().put("webhdfs",
+                Config.ProbeModule.of(Config.Prober.WEBHDFS_STATUS, "https://(unclosed")));
+    }
+
+    private static void assertInvalid(Consumer<Config> invalidation) {
+        final Config config = new Config();
+        invalidation.accept(config);
+        assertThatThrownBy(config::validate).isInstanceOf(IllegalArgumentException.class);
+    }
+
     @Test
     public void testEscacpeJdbcUrl() {
         assertThat(Config.HiveService.escapeJdbcUrl("jdbc:hive2://sandbox-hdp.hortonworks.com:8443/;" +
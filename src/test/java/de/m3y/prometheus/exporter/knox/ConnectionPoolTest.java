@@ -0,0 +1,143 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConnectionPoolTest {
+    private static final String KEY = "https://localhost:8443/gateway/default|foo";
+
+    static class TestConnection implements AutoCloseable {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private TestConnection open() {
+        opened.incrementAndGet();
+        return new TestConnection();
+    }
+
+    private static Config.PoolConfig poolConfig(boolean enabled, int idleTimeout, int maxLifetime) {
+        Config.PoolConfig poolConfig = new Config.PoolConfig();
+        poolConfig.setEnabled(enabled);
+        poolConfig.setIdleTimeout(idleTimeout);
+        poolConfig.setMaxLifetime(maxLifetime);
+        return poolConfig;
+    }
+
+    @Test
+    public void testReuse() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(true, 60000, 60000));
+
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, true);
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        assertThat(connection.closed).isFalse();
+
+        // Reuse idle connection
+        assertThat(pool.borrow(KEY, this::open)).isSameAs(connection);
+        assertThat(opened.get()).isEqualTo(1);
+
+        // Other key or concurrently borrowed opens a new connection
+        TestConnection other = pool.borrow("other", this::open);
+        TestConnection concurrent = pool.borrow(KEY, this::open);
+        assertThat(other).isNotSameAs(connection);
+        assertThat(concurrent).isNotSameAs(connection);
+        assertThat(opened.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testUnhealthyConnectionGetsClosed() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(true, 60000, 60000));
+
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, false);
+        assertThat(connection.closed).isTrue();
+        assertThat(pool.getIdleCount()).isZero();
+        assertThat(pool.borrow(KEY, this::open)).isNotSameAs(connection);
+    }
+
+    @Test
+    public void testDisabled() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(false, 60000, 60000));
+
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, true);
+        assertThat(connection.closed).isTrue();
+        assertThat(pool.getIdleCount()).isZero();
+    }
+
+    @Test
+    public void testEvictExpired() throws InterruptedException {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(true, 10, 60000));
+
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, true);
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+
+        Thread.sleep(20);
+        pool.evictExpired();
+        assertThat(pool.getIdleCount()).isZero();
+        assertThat(connection.closed).isTrue();
+    }
+
+    @Test
+    public void testConfigureClearsIdleConnections() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(true, 60000, 60000));
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, true);
+
+        // Unchanged config keeps idle connections
+        pool.configure(poolConfig(true, 60000, 60000));
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        assertThat(connection.closed).isFalse();
+
+        pool.configure(poolConfig(true, 30000, 60000));
+        assertThat(pool.getIdleCount()).isZero();
+        assertThat(connection.closed).isTrue();
+    }
+
+    @Test
+    public void testRetainKeys() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test");
+        pool.configure(poolConfig(true, 60000, 60000));
+        TestConnection connection = pool.borrow(KEY, this::open);
+        TestConnection other = pool.borrow("other", this::open);
+        pool.release(KEY, connection, true);
+        pool.release("other", other, true);
+
+        pool.retainKeys(Collections.singleton(KEY));
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        assertThat(connection.closed).isFalse();
+        assertThat(other.closed).isTrue();
+    }
+
+    @Test
+    public void testValidation() {
+        ConnectionPool<TestConnection> pool = new ConnectionPool<>("test", connection -> !connection.closed);
+        pool.configure(poolConfig(true, 60000, 60000));
+
+        TestConnection connection = pool.borrow(KEY, this::open);
+        pool.release(KEY, connection, true);
+        connection.closed = true; // Eg closed by server
+
+        // Invalid idle connection gets discarded
+        assertThat(pool.borrow(KEY, this::open)).isNotSameAs(connection);
+        assertThat(opened.get()).isEqualTo(2);
+        assertThat(pool.getIdleCount()).isZero();
+    }
+}
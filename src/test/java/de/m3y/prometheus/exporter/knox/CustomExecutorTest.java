@@ -3,19 +3,26 @@ package de.m3y.prometheus.exporter.knox;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class CustomExecutorTest {
     private static final Logger LOG = LoggerFactory.getLogger(CustomExecutorTest.class);
@@ -44,7 +51,7 @@ public class CustomExecutorTest {
         final ServerSocket serverSocket;
 
         BlockingTestCallable() throws IOException {
-            serverSocket = new ServerSocket(9999, 1, InetAddress.getLocalHost());
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLocalHost()); // Any free port
         }
 
         @Override
@@ -57,21 +64,6 @@ public class CustomExecutorTest {
             }
         }
 
-        @Override
-        public RunnableFuture newTask() {
-            return new CustomExecutor.TimedFutureTask(this) {
-                @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    try {
-                        BlockingTestCallable.this.cancel();
-                    } catch (Exception ex) {
-                        LOG.error("Ignoring exception", ex);
-                    }
-                    return super.cancel(mayInterruptIfRunning);
-                }
-            };
-        }
-
         @Override
         public Object call() throws Exception {
             LOG.info("Blocking ...");
@@ -95,4 +87,332 @@ public class CustomExecutorTest {
 
         executor.shutdownNow();
     }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException, IOException {
+        CustomExecutor executor = CustomExecutor.create(Config.ExecutorMode.VIRTUAL);
+        // Falls back to platform threads, if not supported by JVM
+        assertThat(executor.isVirtual()).isEqualTo(null != CustomExecutor.createVirtualThreadFactory());
+        executor.ensureParallelism(2);
+
+        Collection<? extends Callable<Object>> actions = Arrays.<Callable<Object>>asList(
+                () -> {
+                    Thread.sleep(100);
+                    return null;
+                },
+                new BlockingTestCallable());
+        final List<Future<Object>> futures = executor.invokeAll(actions, 200, TimeUnit.MILLISECONDS);
+        assertThat(futures.size()).isEqualTo(2);
+
+        CustomExecutor.TimedFutureTask<?> completed = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(completed.isCancelled()).isFalse();
+        assertThat(completed.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(100).isLessThan(120 /*20% tolerance*/);
+
+        CustomExecutor.TimedFutureTask<?> cancelled = (CustomExecutor.TimedFutureTask<?>) futures.get(1);
+        assertThat(cancelled.isCancelled()).isTrue();
+        assertThat(cancelled.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(190).isLessThan(240 /*20% tolerance*/);
+
+        executor.shutdownNow();
+    }
+
+    class TimeLimitedTestCallable extends BlockingTestCallable implements CustomExecutor.TimeLimited {
+        final long timeoutMs;
+
+        TimeLimitedTestCallable(long timeoutMs) throws IOException {
+            this.timeoutMs = timeoutMs;
+        }
+
+        @Override
+        public long getTimeoutMs() {
+            return timeoutMs;
+        }
+    }
+
+    @Test
+    public void testPerTaskTimeout() throws InterruptedException, IOException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.ensureParallelism(2);
+
+        final BlockingTestCallable fast = new TimeLimitedTestCallable(100);
+        final BlockingTestCallable slow = new TimeLimitedTestCallable(300);
+        final Map<Callable<Object>, Long> completedAtNs = new ConcurrentHashMap<>();
+        final long startNs = System.nanoTime();
+        final List<Future<Object>> futures = executor.invokeAll(Arrays.<Callable<Object>>asList(slow, fast),
+                60, TimeUnit.SECONDS, (task, future) -> completedAtNs.put(task, System.nanoTime()));
+        assertThat(futures.size()).isEqualTo(2);
+
+        CustomExecutor.TimedFutureTask<?> slowTask = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(slowTask.isCancelled()).isTrue();
+        assertThat(slowTask.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(300).isLessThan(360 /*20% tolerance*/);
+
+        CustomExecutor.TimedFutureTask<?> fastTask = (CustomExecutor.TimedFutureTask<?>) futures.get(1);
+        assertThat(fastTask.isCancelled()).isTrue();
+        assertThat(fastTask.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(100).isLessThan(120 /*20% tolerance*/);
+
+        // Fast task got notified without waiting for slow task
+        assertThat(completedAtNs).containsKeys(slow, fast);
+        assertThat((completedAtNs.get(fast) - startNs) / 1000.0 / 1000.0).isLessThan(200);
+
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testQueueWait() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor(); // Single thread
+
+        final Callable<Object> sleeping = () -> {
+            Thread.sleep(100);
+            return null;
+        };
+        final List<Future<Object>> futures = executor.invokeAll(Arrays.asList(sleeping, sleeping),
+                1, TimeUnit.SECONDS);
+        CustomExecutor.TimedFutureTask<?> first = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(first.getQueueWaitNs() / 1000.0 / 1000.0).isLessThan(50);
+        CustomExecutor.TimedFutureTask<?> second = (CustomExecutor.TimedFutureTask<?>) futures.get(1);
+        assertThat(second.getQueueWaitNs() / 1000.0 / 1000.0).isGreaterThan(95).isLessThan(150);
+        assertThat(second.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(100).isLessThan(120 /*20% tolerance*/);
+
+        executor.shutdownNow();
+    }
+
+    static class StartDelayedTestCallable implements Callable<Object>, CustomExecutor.StartDelayed {
+        private final long startDelayMs;
+        private volatile long startedAtNs;
+
+        StartDelayedTestCallable(long startDelayMs) {
+            this.startDelayMs = startDelayMs;
+        }
+
+        @Override
+        public long getStartDelayMs() {
+            return startDelayMs;
+        }
+
+        @Override
+        public Object call() {
+            startedAtNs = System.nanoTime();
+            return null;
+        }
+    }
+
+    @Test
+    public void testStartDelay() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.ensureParallelism(2);
+
+        final StartDelayedTestCallable immediate = new StartDelayedTestCallable(0);
+        final StartDelayedTestCallable delayed = new StartDelayedTestCallable(200);
+        final long startNs = System.nanoTime();
+        final List<Future<Object>> futures = executor.invokeAll(Arrays.<Callable<Object>>asList(delayed, immediate),
+                1, TimeUnit.SECONDS);
+        assertThat(futures).allMatch(future -> future.isDone() && !future.isCancelled());
+        assertThat((immediate.startedAtNs - startNs) / 1000.0 / 1000.0).isLessThan(100);
+        assertThat((delayed.startedAtNs - startNs) / 1000.0 / 1000.0).isGreaterThanOrEqualTo(200).isLessThan(300);
+        // Delay is not queue wait
+        CustomExecutor.TimedFutureTask<?> delayedTask = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(delayedTask.getQueueWaitNs() / 1000.0 / 1000.0).isLessThan(50);
+
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLimitWait() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.ensureParallelism(2);
+
+        // Limited to one task at a time
+        final Semaphore limit = new Semaphore(1);
+        class LimitedTestCallable implements Callable<Object>, CustomExecutor.Limited {
+            @Override
+            public Runnable acquireLimit(long timeoutNs) throws InterruptedException {
+                limit.acquire();
+                return limit::release;
+            }
+
+            @Override
+            public Object call() throws InterruptedException {
+                Thread.sleep(100);
+                return null;
+            }
+        }
+        final List<Future<Object>> futures = executor.invokeAll(
+                Arrays.<Callable<Object>>asList(new LimitedTestCallable(), new LimitedTestCallable()),
+                150, TimeUnit.MILLISECONDS);
+        for (Future<Object> future : futures) {
+            // Waiting for the limit counts neither as duration, queue wait nor against the timeout
+            CustomExecutor.TimedFutureTask<?> task = (CustomExecutor.TimedFutureTask<?>) future;
+            assertThat(task.isCancelled()).isFalse();
+            assertThat(task.getDurationNs() / 1000.0 / 1000.0).isGreaterThan(100).isLessThan(140);
+            assertThat(task.getQueueWaitNs() / 1000.0 / 1000.0).isLessThan(50);
+        }
+        // Released after the task returns
+        for (int i = 0; i < 100 && limit.availablePermits() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(limit.availablePermits()).isEqualTo(1);
+
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLimitTimeout() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.ensureParallelism(2);
+
+        final GatewayLimiter limiter = new GatewayLimiter("knox", Config.GatewayLimitConfig.of(1, 0, 1),
+                wait -> {
+                });
+        final AtomicBoolean released = new AtomicBoolean();
+        class HungLimitedCallable implements Callable<Object>, CustomExecutor.Limited {
+            @Override
+            public Runnable acquireLimit(long timeoutNs) throws InterruptedException {
+                return limiter.acquire(timeoutNs);
+            }
+
+            @Override
+            public Object call() {
+                // Not cancellable, ignoring interrupts like a thread stuck in a blocking close
+                while (!released.get()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        LOG.info("Ignoring interrupt");
+                    }
+                }
+                return null;
+            }
+        }
+        // Keeps holding the only permit after cancellation
+        List<Future<Object>> futures = executor.invokeAll(Collections.singletonList(new HungLimitedCallable()),
+                100, TimeUnit.MILLISECONDS);
+        assertThat(futures.get(0).isCancelled()).isTrue();
+
+        // Waits for the permit at most for its timeout, and gets cancelled without starting
+        final long startNs = System.nanoTime();
+        futures = executor.invokeAll(Collections.singletonList(new HungLimitedCallable()),
+                100, TimeUnit.MILLISECONDS);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isBetween(90L, 1000L);
+        final CustomExecutor.TimedFutureTask<?> task = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(task.isCancelled()).isTrue();
+        assertThat(task.getDurationNs()).isZero();
+
+        released.set(true);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testQueueTimeout() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.setQueueGracePeriodNs(TimeUnit.MILLISECONDS.toNanos(50));
+
+        // Not cancellable, occupying the only thread
+        final AtomicBoolean released = new AtomicBoolean();
+        final Callable<Object> stuck = () -> {
+            while (!released.get()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    LOG.info("Ignoring interrupt");
+                }
+            }
+            return null;
+        };
+        assertThat(executor.invokeAll(Collections.singletonList(stuck), 100, TimeUnit.MILLISECONDS)
+                .get(0).isCancelled()).isTrue();
+
+        // Queued task gets cancelled after timeout plus grace period, without starting
+        final long startNs = System.nanoTime();
+        final List<Future<Object>> futures = executor.invokeAll(Collections.singletonList(() -> null),
+                100, TimeUnit.MILLISECONDS);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isBetween(140L, 1000L);
+        final CustomExecutor.TimedFutureTask<?> task = (CustomExecutor.TimedFutureTask<?>) futures.get(0);
+        assertThat(task.isCancelled()).isTrue();
+        assertThat(task.getQueueWaitNs()).isEqualTo(CustomExecutor.TimedFutureTask.NOT_STARTED);
+
+        released.set(true);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testQueueTimeoutLimited() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+        executor.setQueueGracePeriodNs(TimeUnit.MILLISECONDS.toNanos(50));
+
+        // Not cancellable, occupying the only thread
+        final AtomicBoolean released = new AtomicBoolean();
+        final Callable<Object> stuck = () -> {
+            while (!released.get()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    LOG.info("Ignoring interrupt");
+                }
+            }
+            return null;
+        };
+        assertThat(executor.invokeAll(Collections.singletonList(stuck), 100, TimeUnit.MILLISECONDS)
+                .get(0).isCancelled()).isTrue();
+
+        final AtomicInteger limitWaits = new AtomicInteger();
+        class LimitedTestCallable implements Callable<Object>, CustomExecutor.Limited {
+            @Override
+            public Runnable acquireLimit(long timeoutNs) throws InterruptedException {
+                limitWaits.incrementAndGet();
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeoutNs));
+                return null;
+            }
+
+            @Override
+            public Object call() {
+                return null;
+            }
+        }
+        // Cancelled while queued
+        assertThat(executor.invokeAll(Collections.singletonList(new LimitedTestCallable()),
+                100, TimeUnit.MILLISECONDS).get(0).isCancelled()).isTrue();
+
+        // Picked up when the thread gets free, but not waiting for the limit
+        released.set(true);
+        final long startNs = System.nanoTime();
+        assertThat(executor.invokeAll(Collections.singletonList(() -> null), 1000, TimeUnit.MILLISECONDS)
+                .get(0).isCancelled()).isFalse();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isLessThan(90L);
+        assertThat(limitWaits).hasValue(0);
+
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCancelledRunningAndRejectedTasks() throws InterruptedException {
+        CustomExecutor executor = new CustomExecutor();
+
+        // Not cancellable, ignoring interrupts like a thread stuck in a blocking close
+        final AtomicBoolean released = new AtomicBoolean();
+        final Callable<Object> stuck = () -> {
+            while (!released.get()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    LOG.info("Ignoring interrupt");
+                }
+            }
+            return null;
+        };
+        final List<Future<Object>> futures = executor.invokeAll(Collections.singletonList(stuck),
+                100, TimeUnit.MILLISECONDS);
+        assertThat(futures.get(0).isCancelled()).isTrue();
+        assertThat(executor.getActiveCount()).isEqualTo(1);
+        assertThat(executor.getCancelledRunningTaskCount()).isEqualTo(1);
+
+        released.set(true);
+        for (int i = 0; i < 100 && executor.getActiveCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(executor.getCancelledRunningTaskCount()).isZero();
+
+        executor.shutdown();
+        assertThatThrownBy(() -> executor.invokeAll(Collections.singletonList(stuck)))
+                .isInstanceOf(RejectedExecutionException.class);
+        assertThat(executor.getRejectedTaskCount()).isEqualTo(1);
+    }
 }
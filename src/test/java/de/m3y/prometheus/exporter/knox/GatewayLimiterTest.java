@@ -0,0 +1,93 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GatewayLimiterTest {
+    @Test
+    public void testGatewayOf() {
+        assertThat(GatewayLimiter.gatewayOf("https://my-knox-server:8443/gateway/default"))
+                .isEqualTo("my-knox-server:8443");
+        assertThat(GatewayLimiter.gatewayOf("https://my-knox-server/gateway/default")).isEqualTo("my-knox-server");
+        assertThat(GatewayLimiter.gatewayOf(
+                "jdbc:hive2://knox-hive-server:10000/default;ssl=true;trustStorePassword=***;"))
+                .isEqualTo("knox-hive-server:10000");
+        assertThat(GatewayLimiter.gatewayOf("jdbc:hive2://zk1:2181,zk2:2181/;serviceDiscoveryMode=zooKeeper"))
+                .isEqualTo("zk1:2181,zk2:2181");
+    }
+
+    @Test
+    public void testRate() throws InterruptedException {
+        final List<Double> waits = new ArrayList<>();
+        final GatewayLimiter limiter = new GatewayLimiter("knox", Config.GatewayLimitConfig.of(0, 10, 2),
+                waits::add);
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(0).run();
+        }
+        // Burst of 2, then spaced by 100ms
+        final long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        assertThat(durationMs).isGreaterThanOrEqualTo(190).isLessThan(350);
+        assertThat(waits).hasSize(4);
+        assertThat(waits.get(0)).isLessThan(0.05);
+        assertThat(waits.get(1)).isLessThan(0.05);
+        assertThat(waits.get(2)).isGreaterThan(0.05);
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        final List<Double> waits = new ArrayList<>();
+        final GatewayLimiter concurrencyLimiter = new GatewayLimiter("knox", Config.GatewayLimitConfig.of(1, 0, 1),
+                waits::add);
+        assertThat(concurrencyLimiter.acquire(0)).isNotNull(); // Not released, eg hung request
+        assertThat(concurrencyLimiter.acquire(TimeUnit.MILLISECONDS.toNanos(100))).isNull();
+        assertThat(waits.get(1)).isGreaterThanOrEqualTo(0.09);
+
+        // Token not available within timeout is not reserved
+        final GatewayLimiter rateLimiter = new GatewayLimiter("knox", Config.GatewayLimitConfig.of(0, 5, 1),
+                wait -> {
+                });
+        rateLimiter.acquire(0).run();
+        assertThat(rateLimiter.acquire(TimeUnit.MILLISECONDS.toNanos(50))).isNull();
+        final long startNs = System.nanoTime();
+        rateLimiter.acquire(0).run();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isLessThan(300);
+    }
+
+    @Test
+    public void testMaxConcurrent() throws InterruptedException {
+        final GatewayLimiter limiter = new GatewayLimiter("knox", Config.GatewayLimitConfig.of(2, 0, 1),
+                wait -> {
+                });
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            new Thread(() -> {
+                try {
+                    final Runnable release = limiter.acquire(0);
+                    try {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(50);
+                        running.decrementAndGet();
+                    } finally {
+                        release.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+}
@@ -1,14 +1,30 @@
 package de.m3y.prometheus.exporter.knox;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.prometheus.client.Collector;
 
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
 import static de.m3y.prometheus.assertj.MetricFamilySamplesUtils.getMetricFamilySamples;
 
 public class KnoxCollectorTest {
+    private static final Logger LOG = LoggerFactory.getLogger(KnoxCollectorTest.class);
     private static final File CONFIG_FILE = new File("src/test/resources/config-it.yml");
 
     @Test
@@ -47,5 +63,724 @@ public class KnoxCollectorTest {
         assertThat(getMetricFamilySamples(knoxCollector.collect(),"knox_exporter_config_reloads"))
                 .hasTypeOfCounter()
                 .hasSampleValue(2.0); // No increment
+        assertThat(getMetricFamilySamples(knoxCollector.collect(), "knox_exporter_config_reload_failures"))
+                .hasTypeOfCounter()
+                .hasSampleValue(0.0);
+    }
+
+    @Test
+    public void testProbingInBackground() throws InterruptedException {
+        ConfigLoader configLoader = new ConfigLoader.FileConfigLoader(CONFIG_FILE) {
+            @Override
+            public synchronized Config getOrLoadIfModified() {
+                final Config config = super.getOrLoadIfModified();
+                config.setProbeInterval(100);
+                return config;
+            }
+        };
+        KnoxCollector knoxCollector = new KnoxCollector(configLoader);
+        try {
+            // Wait for first completed background probe cycle
+            List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            for (int i = 0; i < 100 && getMetricFamilySamples(samples, "knox_exporter_ops_result_age_seconds")
+                    .samples.size() < 3; i++) {
+                Thread.sleep(100);
+                samples = knoxCollector.collect();
+            }
+
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_result_age_seconds"))
+                    .hasTypeOfGauge()
+                    .hasSampleSize(3)
+                    .hasSampleValue(
+                            labelValues("hbase_status", "https://localhost:8443/gateway/default", "foo", "-"),
+                            v -> v.isGreaterThanOrEqualTo(0.0).isLessThan(60.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("hbase_status", "https://localhost:8443/gateway/default", "foo", "-", "ERROR_OTHER"),
+                            v -> v.isGreaterThanOrEqualTo(1.0));
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testIncrementalConfigReload() {
+        final Config config = new Config();
+        config.setDefaultUsername("foo");
+        config.setWebHdfsServices(new Config.WebHdfsService[]{
+                Config.WebHdfsService.of(null, null, "https://localhost:8443/gateway/default", "/")});
+        final AtomicBoolean modified = new AtomicBoolean();
+        ConfigLoader configLoader = new ConfigLoader.FixedConfigLoader(config) {
+            @Override
+            public Config getOrLoadIfModified() {
+                modified.set(false);
+                return super.getOrLoadIfModified();
+            }
+
+            @Override
+            public boolean hasModifications() {
+                return modified.get();
+            }
+        };
+        KnoxCollector knoxCollector = new KnoxCollector(configLoader);
+        try {
+            knoxCollector.collect();
+            final KnoxCollector.AbstractBaseAction rootAction = knoxCollector.getActions().get(0);
+
+            // Add status path
+            config.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of(null, null, "https://localhost:8443/gateway/default", "/", "/tmp")});
+            modified.set(true);
+            knoxCollector.collect();
+            assertThat(knoxCollector.getActions()).hasSize(2);
+            assertThat(knoxCollector.getActions().get(0)).isSameAs(rootAction); // Unchanged
+
+            // Change timeout of root path and remove other path
+            final Config.WebHdfsService webHdfsService =
+                    Config.WebHdfsService.of(null, null, "https://localhost:8443/gateway/default", "/");
+            webHdfsService.setTimeout(1000);
+            config.setWebHdfsServices(new Config.WebHdfsService[]{webHdfsService});
+            modified.set(true);
+            List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            assertThat(knoxCollector.getActions()).hasSize(1);
+            assertThat(knoxCollector.getActions().get(0)).isNotSameAs(rootAction); // Changed
+            assertThat(knoxCollector.getActions().get(0).getTimeoutMs()).isEqualTo(1000);
+
+            // Removed path has no metrics
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors").samples)
+                    .noneMatch(sample -> sample.labelValues.contains("/tmp"));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds").samples)
+                    .noneMatch(sample -> sample.labelValues.contains("/tmp"));
+            // Series of errors and duration, for initial UNKNOWN and ERROR_OTHER status,
+            // and of resolve and connect phase of refused connections
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_series"))
+                    .hasTypeOfGauge()
+                    .hasSampleValue(5.0);
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_phase_duration_seconds").samples)
+                    .noneMatch(sample -> sample.labelValues.contains("/tmp"))
+                    .anyMatch(sample -> sample.labelValues.contains("connect"));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/",
+                                    "ERROR_OTHER"),
+                            v -> v.isEqualTo(3.0));
+
+            // Invalid config is not applied at all
+            config.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of(null, null, "https://localhost:8443/gateway/default", "/", "/tmp")});
+            config.getOpsDuration().setType(Config.MetricType.HISTOGRAM);
+            config.getSharding().setPeers(new String[]{"http://localhost:9092"});
+            config.getSharding().setShardIndex(1);
+            modified.set(true);
+            samples = knoxCollector.collect();
+            assertThat(knoxCollector.getActions()).hasSize(1);
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds")).hasTypeOfSummary();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_config_reloads"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(2.0);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testConfigReloadFailingActions() {
+        final Config config = new Config();
+        config.setWebHdfsServices(new Config.WebHdfsService[]{
+                Config.WebHdfsService.of("foo", "bar", "https://localhost:8443/gateway/default", "/")});
+        final AtomicReference<Config> currentConfig = new AtomicReference<>(config);
+        final AtomicBoolean modified = new AtomicBoolean();
+        ConfigLoader configLoader = new ConfigLoader.FixedConfigLoader(config) {
+            @Override
+            public Config getCurrentConfig() {
+                return currentConfig.get();
+            }
+
+            @Override
+            public Config getOrLoadIfModified() {
+                modified.set(false);
+                return currentConfig.get();
+            }
+
+            @Override
+            public boolean hasModifications() {
+                return modified.get();
+            }
+        };
+        KnoxCollector knoxCollector = new KnoxCollector(configLoader);
+        try {
+            knoxCollector.collect();
+            final List<KnoxCollector.AbstractBaseAction> actions = knoxCollector.getActions();
+
+            // Valid config, but failing to create the actions after some got created
+            final Config failingConfig = new Config() {
+                @Override
+                public HBaseService[] getHbaseServices() {
+                    throw new IllegalStateException("Failing to create actions");
+                }
+            };
+            failingConfig.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of("foo", "bar", "https://localhost:8443/gateway/default", "/", "/tmp")});
+            failingConfig.getOpsDuration().setType(Config.MetricType.HISTOGRAM);
+            failingConfig.getKnoxAuthCookie().setEnabled(false);
+            currentConfig.set(failingConfig);
+            modified.set(true);
+
+            // Not applied at all
+            final List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            assertThat(knoxCollector.getActions()).isSameAs(actions);
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds")).hasTypeOfSummary();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors").samples)
+                    .noneMatch(sample -> sample.labelValues.contains("/tmp"));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_config_reloads"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(0.0);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testOpsDurationHistogram() {
+        ConfigLoader configLoader = new ConfigLoader.FileConfigLoader(CONFIG_FILE) {
+            @Override
+            public synchronized Config getOrLoadIfModified() {
+                final Config config = super.getOrLoadIfModified();
+                config.getOpsDuration().setType(Config.MetricType.HISTOGRAM);
+                config.getOpsDuration().getActionBuckets().put("hbase_status", new double[]{0.5, 1.0});
+                return config;
+            }
+        };
+        KnoxCollector knoxCollector = new KnoxCollector(configLoader);
+        try {
+            List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                    .hasTypeOfHistogram()
+                    // Action type buckets
+                    .hasSampleBucketValue(
+                            labelValues("hbase_status", "https://localhost:8443/gateway/default", "foo", "-",
+                                    "ERROR_OTHER"),
+                            1.0, v -> v.isEqualTo(1.0))
+                    .hasSampleCountValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/",
+                                    "ERROR_OTHER"),
+                            1.0);
+            // Default exponential buckets, plus +Inf bucket
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds").samples.stream()
+                    .filter(sample -> sample.name.endsWith("_bucket") && sample.labelValues.contains("/"))
+                    .count()).isEqualTo(15);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testStubActions() {
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(new Config()));
+        try {
+            knoxCollector.setActions(Arrays.asList(
+                    new StubAction("/ok", KnoxCollector.AbstractBaseAction.Status.SUCCESS),
+                    new StubAction("/failed", KnoxCollector.AbstractBaseAction.Status.ERROR_OTHER)));
+            List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/failed",
+                                    "ERROR_OTHER"),
+                            v -> v.isEqualTo(1.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                    .hasTypeOfSummary()
+                    .hasSampleCountValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/ok",
+                                    "SUCCESS"),
+                            1.0);
+
+            // Replaced stub action drops its series
+            knoxCollector.setActions(Collections.singletonList(knoxCollector.getActions().get(0)));
+            samples = knoxCollector.collect();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors").samples)
+                    .noneMatch(sample -> sample.labelValues.contains("/failed"));
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        final Config config = new Config();
+        config.getCircuitBreaker().setFailureThreshold(2);
+        config.getCircuitBreaker().setInitialBackoff(60000);
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        try {
+            knoxCollector.setActions(Arrays.asList(
+                    new StubAction("/ok", KnoxCollector.AbstractBaseAction.Status.SUCCESS),
+                    new StubAction("/failed", KnoxCollector.AbstractBaseAction.Status.ERROR_OTHER)));
+            List<Collector.MetricFamilySamples> samples = null;
+            for (int i = 0; i < 4; i++) {
+                samples = knoxCollector.collect();
+            }
+
+            // Failing target skipped after reaching threshold, keeping its last result
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/failed",
+                                    "ERROR_OTHER"),
+                            v -> v.isEqualTo(2.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                    .hasTypeOfSummary()
+                    .hasSampleCountValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/ok",
+                                    "SUCCESS"),
+                            4.0);
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_circuit_breaker_state"))
+                    .hasTypeOfGauge()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/failed"),
+                            v -> v.isEqualTo(1.0))
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/ok"),
+                            v -> v.isEqualTo(0.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_circuit_breaker_skipped_probes"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(2.0);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testHungAction() throws InterruptedException {
+        final Config config = new Config();
+        config.setHungTaskGracePeriod(0);
+        ConfigLoader configLoader = ConfigLoader.of(config);
+        // Not unblocked by cancelling, like a stuck connection close
+        final AtomicBoolean released = new AtomicBoolean();
+        final StubAction hungAction = new StubAction("/hung", KnoxCollector.AbstractBaseAction.Status.SUCCESS) {
+            @Override
+            boolean perform() {
+                while (!released.get()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        LOG.info("Ignoring interrupt");
+                    }
+                }
+                return super.perform();
+            }
+        };
+        KnoxCollector knoxCollector = new KnoxCollector(configLoader);
+        try {
+            knoxCollector.setActions(Arrays.asList(
+                    new StubAction("/ok", KnoxCollector.AbstractBaseAction.Status.SUCCESS), hungAction));
+            knoxCollector.collect(); // Times out after 1s
+            assertThat(hungAction.isRunning()).isTrue();
+
+            // Skips hung action, and abandons its thread
+            List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_overlapping_probes_skipped"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(1.0);
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_executor_abandoned_tasks"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(labelValues("scrape"), v -> v.isEqualTo(1.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/hung",
+                                    "ERROR_TIMEOUT"),
+                            v -> v.isEqualTo(1.0));
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                    .hasTypeOfSummary()
+                    .hasSampleCountValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/ok",
+                                    "SUCCESS"),
+                            2.0);
+
+            // Probed again when returned
+            released.set(true);
+            for (int i = 0; i < 100 && hungAction.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+            samples = knoxCollector.collect();
+            assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                    .hasTypeOfSummary()
+                    .hasSampleCountValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/hung",
+                                    "SUCCESS"),
+                            1.0);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testWebHdfsThroughput() throws Exception {
+        try (StubWebHdfsServer webHdfsServer = new StubWebHdfsServer()) {
+            final String knoxUrl = webHdfsServer.getKnoxUrl();
+            final Config config = new Config();
+            config.setDefaultUsername("foo");
+            config.setWebHdfsThroughputServices(new Config.WebHdfsThroughputService[]{
+                    Config.WebHdfsThroughputService.of(null, null, knoxUrl, "/tmp", 100000)});
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                        .hasTypeOfSummary()
+                        .hasSampleCountValue(labelValues("webhdfs_throughput", knoxUrl, "foo", "/tmp", "SUCCESS"),
+                                1.0);
+                for (String operation : Arrays.asList("write", "read", "delete")) {
+                    assertThat(getMetricFamilySamples(samples,
+                            "knox_exporter_webhdfs_throughput_operation_duration_seconds"))
+                            .hasTypeOfSummary()
+                            .hasSampleCountValue(labelValues(knoxUrl, "foo", "/tmp", operation), 1.0);
+                }
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_webhdfs_throughput_bytes_per_second"))
+                        .hasTypeOfGauge()
+                        .hasSampleValue(labelValues(knoxUrl, "foo", "/tmp", "read"), v -> v.isPositive());
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_webhdfs_throughput_bytes_per_second")
+                        .samples).noneMatch(sample -> sample.labelValues.contains("delete"));
+                assertThat(webHdfsServer.getFiles()).isEmpty(); // Deleted
+
+                // Content read back differs, but file still gets deleted
+                webHdfsServer.setCorruptReads(true);
+                samples = knoxCollector.collect();
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                        .hasTypeOfCounter()
+                        .hasSampleValue(labelValues("webhdfs_throughput", knoxUrl, "foo", "/tmp", "ERROR_OTHER"),
+                                v -> v.isEqualTo(1.0));
+                assertThat(webHdfsServer.getFiles()).isEmpty();
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testWebHdfsThroughputCancelledDeletesFile() throws Exception {
+        try (StubWebHdfsServer webHdfsServer = new StubWebHdfsServer()) {
+            final String knoxUrl = webHdfsServer.getKnoxUrl();
+            final Config config = new Config();
+            config.setDefaultUsername("foo");
+            config.setTimeout(2000);
+            config.setWebHdfsThroughputServices(new Config.WebHdfsThroughputService[]{
+                    Config.WebHdfsThroughputService.of(null, null, knoxUrl, "/tmp", 100000)});
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                knoxCollector.collect(); // Warm up, so that the next probe gets cancelled while reading
+
+                webHdfsServer.setTrickleReadMs(5000);
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                        .hasTypeOfCounter()
+                        .hasSampleValue(labelValues("webhdfs_throughput", knoxUrl, "foo", "/tmp", "ERROR_TIMEOUT"),
+                                v -> v.isEqualTo(1.0));
+
+                // Session of the cancelled read got closed, so deleted using a new session
+                for (int i = 0; i < 100 && !webHdfsServer.getFiles().isEmpty(); i++) {
+                    Thread.sleep(50);
+                }
+                assertThat(webHdfsServer.getFiles()).isEmpty();
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testKnoxAuthCookieReuse() throws Exception {
+        try (StubWebHdfsServer webHdfsServer = new StubWebHdfsServer()) {
+            webHdfsServer.setSessionAuth(true);
+            final String knoxUrl = webHdfsServer.getKnoxUrl();
+            final Config config = new Config();
+            config.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of("foo", "bar", knoxUrl, "/", "/tmp")});
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                knoxCollector.collect();
+                final int logins = webHdfsServer.getLogins();
+                assertThat(logins).isBetween(1, 2); // Concurrent first probes may both authenticate
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                assertThat(webHdfsServer.getLogins()).isEqualTo(logins);
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_knox_authentications"))
+                        .hasTypeOfCounter()
+                        .hasSampleValue(labelValues(knoxUrl, "foo", "no_cookie"), v -> v.isEqualTo(logins));
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors").samples)
+                        .noneMatch(sample -> sample.labelValues.contains("ERROR_AUTH"));
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testProbeSpreading() throws Exception {
+        try (StubWebHdfsServer webHdfsServer = new StubWebHdfsServer()) {
+            final String knoxUrl = webHdfsServer.getKnoxUrl();
+            final Config config = new Config();
+            config.setDefaultUsername("foo");
+            config.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of(null, null, knoxUrl, "/", "/tmp", "/user")});
+            config.setProbeSpreading(Config.ProbeSpreadingConfig.of(300, 300));
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                // Evenly spaced across the gateway stagger
+                final List<Long> startDelays = new ArrayList<>();
+                for (KnoxCollector.AbstractBaseAction action : knoxCollector.getActions()) {
+                    startDelays.add(action.getStartDelayMs());
+                }
+                assertThat(startDelays).containsExactlyInAnyOrder(0L, 100L, 200L);
+
+                final long startNs = System.nanoTime();
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isGreaterThanOrEqualTo(200);
+                for (String path : Arrays.asList("/", "/tmp", "/user")) {
+                    assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                            .hasTypeOfSummary()
+                            .hasSampleCountValue(labelValues("webhdfs_status", knoxUrl, "foo", path, "SUCCESS"),
+                                    1.0);
+                }
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testGatewayLimits() throws Exception {
+        try (StubWebHdfsServer webHdfsServer = new StubWebHdfsServer();
+             StubWebHdfsServer otherWebHdfsServer = new StubWebHdfsServer()) {
+            final String knoxUrl = webHdfsServer.getKnoxUrl();
+            final String gateway = GatewayLimiter.gatewayOf(knoxUrl);
+            final Config config = new Config();
+            config.setDefaultUsername("foo");
+            config.setWebHdfsServices(new Config.WebHdfsService[]{
+                    Config.WebHdfsService.of(null, null, knoxUrl, "/", "/tmp", "/user"),
+                    Config.WebHdfsService.of(null, null, otherWebHdfsServer.getKnoxUrl(), "/")});
+            // Only limits the first gateway
+            config.getGatewayLimits().getGateways().put(gateway, Config.GatewayLimitConfig.of(1, 0, 1));
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_gateway_limit_wait_seconds"))
+                        .hasTypeOfSummary()
+                        .hasSampleCountValue(labelValues(gateway), 3.0);
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_gateway_limit_wait_seconds").samples)
+                        .allMatch(sample -> sample.labelValues.contains(gateway));
+                for (String path : Arrays.asList("/", "/tmp", "/user")) {
+                    assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                            .hasTypeOfSummary()
+                            .hasSampleCountValue(labelValues("webhdfs_status", knoxUrl, "foo", path, "SUCCESS"),
+                                    1.0);
+                }
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testHbaseCanary() throws Exception {
+        try (StubHBaseRestServer hbaseServer = new StubHBaseRestServer()) {
+            final String knoxUrl = hbaseServer.getKnoxUrl();
+            hbaseServer.getRows().put("knox-exporter-canary", "0");
+            for (int i = 1; i <= 5; i++) {
+                hbaseServer.getRows().put("scan-" + i, String.valueOf(i));
+            }
+            final Config.HBaseCanaryService canaryService = Config.HBaseCanaryService.of(null, null, knoxUrl,
+                    "canary");
+            canaryService.setScanStartRow("scan-");
+            canaryService.setScanEndRow("scan-z");
+            canaryService.setScanLimit(3);
+            final Config.HBaseCanaryService missingRowService = Config.HBaseCanaryService.of("bar", null, knoxUrl,
+                    "canary");
+            missingRowService.setRowKey("missing");
+            missingRowService.setOperations(new Config.HBaseCanaryService.Operation[]{
+                    Config.HBaseCanaryService.Operation.GET});
+            final Config config = new Config();
+            config.setDefaultUsername("foo");
+            config.setHbaseCanaryServices(new Config.HBaseCanaryService[]{canaryService, missingRowService});
+            KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+            try {
+                List<Collector.MetricFamilySamples> samples = knoxCollector.collect();
+                for (String action : Arrays.asList("hbase_get", "hbase_put", "hbase_scan")) {
+                    assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_duration_seconds"))
+                            .hasTypeOfSummary()
+                            .hasSampleCountValue(labelValues(action, knoxUrl, "foo", "canary", "SUCCESS"), 1.0);
+                }
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_ops_errors"))
+                        .hasTypeOfCounter()
+                        .hasSampleValue(labelValues("hbase_get", knoxUrl, "bar", "canary", "ERROR_OTHER"),
+                                v -> v.isEqualTo(1.0));
+                assertThat(getMetricFamilySamples(samples, "knox_exporter_hbase_scan_rows_per_second"))
+                        .hasTypeOfGauge()
+                        .hasSampleValue(labelValues(knoxUrl, "foo", "canary"), v -> v.isPositive());
+                assertThat(hbaseServer.getRows().get("knox-exporter-canary")).isNotEqualTo("0"); // Put time
+                assertThat(hbaseServer.getScannerIds()).isEmpty(); // Deleted
+            } finally {
+                knoxCollector.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestSnapshot() throws Exception {
+        final Config config = new Config();
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        try {
+            knoxCollector.setProbeOnCollect(false);
+            knoxCollector.setActions(Collections.singletonList(
+                    new StubAction("/failed", KnoxCollector.AbstractBaseAction.Status.ERROR_OTHER)));
+            final long generation = knoxCollector.getSnapshotGeneration();
+
+            // Collecting does not probe
+            assertThat(getMetricFamilySamples(knoxCollector.collect(), "knox_exporter_ops_duration_seconds")
+                    .samples).isEmpty();
+
+            // Concurrent requests share a probe cycle, or queue one next cycle
+            final CompletableFuture<Void> first = knoxCollector.requestSnapshot();
+            final CompletableFuture<Void> second = knoxCollector.requestSnapshot();
+            CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+            assertThat(knoxCollector.getSnapshotGeneration()).isBetween(generation + 1, generation + 2);
+            assertThat(getMetricFamilySamples(knoxCollector.collect(), "knox_exporter_ops_errors"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(
+                            labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo", "/failed",
+                                    "ERROR_OTHER"),
+                            v -> v.isBetween(1.0, 2.0));
+            assertThat(getMetricFamilySamples(knoxCollector.collect(), "knox_exporter_scrape_requests"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(2.0);
+
+            // Result age grows within a snapshot generation, so it is not part of the cacheable probe results
+            final List<String> target = labelValues("webhdfs_status", "https://localhost:8443/gateway/default", "foo",
+                    "/failed");
+            final double resultAge = getMetricFamilySamples(knoxCollector.collectLive(),
+                    "knox_exporter_ops_result_age_seconds").samples.get(0).value;
+            Thread.sleep(50);
+            assertThat(getMetricFamilySamples(knoxCollector.collectLive(), "knox_exporter_ops_result_age_seconds"))
+                    .hasTypeOfGauge()
+                    .hasSampleValue(target, v -> v.isGreaterThan(resultAge));
+            assertThat(knoxCollector.collectProbeResults())
+                    .extracting(metricFamilySamples -> metricFamilySamples.name)
+                    .contains("knox_exporter_ops_errors")
+                    .doesNotContain("knox_exporter_ops_result_age_seconds", "knox_exporter_executor_active_threads");
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbeTargetAllowList() throws InterruptedException {
+        final Config config = new Config();
+        config.getModules().put("webhdfs",
+                Config.ProbeModule.of(Config.Prober.WEBHDFS_STATUS, "https://localhost:8443/gateway/.*"));
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        try {
+            assertThatThrownBy(() -> knoxCollector.probeTarget("webhdfs", "https://other-host:8443/gateway/default"))
+                    .isInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> knoxCollector.probeTarget("webhdfs",
+                    "https://other-host/?https://localhost:8443/gateway/default"))
+                    .isInstanceOf(IllegalArgumentException.class);
+
+            // Allowed target, using an unpooled session
+            assertThat(getMetricFamilySamples(
+                    knoxCollector.probeTarget("webhdfs", "https://localhost:8443/gateway/default"), "probe_success"))
+                    .hasTypeOfGauge()
+                    .hasSampleValue(0.0);
+            assertThat(getMetricFamilySamples(knoxCollector.collectLive(), "knox_exporter_knox_sessions_opened"))
+                    .hasTypeOfCounter()
+                    .hasSampleValue(1.0);
+            assertThat(getMetricFamilySamples(knoxCollector.collectLive(), "knox_exporter_knox_sessions_idle"))
+                    .hasTypeOfGauge()
+                    .hasSampleValue(0.0);
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    @Test
+    public void testKnoxSessionPoolKey() {
+        final Config config = new Config();
+        final Config.WebHdfsService webHdfsService = Config.WebHdfsService.of("foo", "bar",
+                "https://localhost:8443/gateway/default", "/");
+        final Config.WebHdfsService slowWebHdfsService = Config.WebHdfsService.of("foo", "bar",
+                "https://localhost:8443/gateway/default", "/datalake");
+        slowWebHdfsService.setTimeout(120000);
+        final Config.WebHdfsService changedWebHdfsService = Config.WebHdfsService.of("foo", "changed",
+                "https://localhost:8443/gateway/default", "/tmp");
+        config.setWebHdfsServices(new Config.WebHdfsService[]{webHdfsService, slowWebHdfsService,
+                changedWebHdfsService});
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        try {
+            final List<KnoxCollector.AbstractBaseAction> actions = knoxCollector.getActions();
+            final KnoxCollector.AbstractKnoxBaseAction action = (KnoxCollector.AbstractKnoxBaseAction) actions.get(0);
+            final KnoxCollector.AbstractKnoxBaseAction slowAction =
+                    (KnoxCollector.AbstractKnoxBaseAction) actions.get(1);
+
+            // Pooled sessions differ by socket timeout, authentication cookies are shared
+            assertThat(action.getSessionPoolKey()).isNotEqualTo(slowAction.getSessionPoolKey());
+            assertThat(action.getAuthSessionKey()).isEqualTo(slowAction.getAuthSessionKey());
+
+            // Changed credentials neither reuse sessions nor cookies, and do not expose the password
+            final KnoxCollector.AbstractKnoxBaseAction changedAction =
+                    (KnoxCollector.AbstractKnoxBaseAction) actions.get(2);
+            assertThat(action.getSessionPoolKey()).isNotEqualTo(changedAction.getSessionPoolKey());
+            assertThat(action.getAuthSessionKey()).isNotEqualTo(changedAction.getAuthSessionKey())
+                    .doesNotContain("bar");
+            assertThat(changedAction.getAuthSessionKey()).doesNotContain("changed");
+        } finally {
+            knoxCollector.shutdown();
+        }
+    }
+
+    /**
+     * Benchmarks allocations of recording results per probe cycle, for 1k targets.
+     */
+    @Test
+    public void testUpdateMetricsAllocation() {
+        final int targets = 1000;
+        final Config config = new Config();
+        config.getOpsDuration().setType(Config.MetricType.HISTOGRAM);
+        final String[] statusPaths = new String[targets];
+        for (int i = 0; i < targets; i++) {
+            statusPaths[i] = "/path-" + i;
+        }
+        config.setWebHdfsServices(new Config.WebHdfsService[]{
+                Config.WebHdfsService.of("foo", "bar", "https://localhost:8443/gateway/default", statusPaths)});
+        KnoxCollector knoxCollector = new KnoxCollector(ConfigLoader.of(config));
+        try {
+            final List<KnoxCollector.AbstractBaseAction> actions = knoxCollector.getActions();
+            final List<CustomExecutor.TimedFutureTask<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < targets; i++) {
+                final CustomExecutor.TimedFutureTask<Boolean> future = new CustomExecutor.TimedFutureTask<>(() -> true);
+                future.run();
+                futures.add(future);
+            }
+
+            final com.sun.management.ThreadMXBean threadMXBean =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long threadId = Thread.currentThread().getId();
+            final int warmupCycles = 100;
+            final int cycles = 100;
+            long allocatedBytes = 0;
+            for (int cycle = 0; cycle < warmupCycles + cycles; cycle++) {
+                final long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < targets; i++) {
+                    knoxCollector.updateMetrics(futures.get(i), actions.get(i));
+                }
+                if (cycle >= warmupCycles) {
+                    allocatedBytes += threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+                }
+            }
+            final long bytesPerCycle = allocatedBytes / cycles;
+            LOG.info("Allocated {} bytes per probe cycle of {} targets", bytesPerCycle, targets);
+            // Mostly no allocations, except eg for the current time
+            assertThat(bytesPerCycle / targets).isLessThan(64);
+        } finally {
+            knoxCollector.shutdown();
+        }
     }
 }
@@ -0,0 +1,41 @@
+package de.m3y.prometheus.exporter.knox;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value * 1000L); // 1ms to 10s
+        }
+        assertThat(histogram.getCount()).isEqualTo(10000);
+        assertThat(histogram.getMax()).isEqualTo(10000L * 1000L);
+        assertThat(histogram.getMean()).isCloseTo(5000.5 * 1000, within(0.1));
+        // Relative error below 1/64
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(5000L * 1000L, within(5000L * 1000L / 64));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(9900L * 1000L, within(9900L * 1000L / 64));
+        assertThat(histogram.getValueAtPercentile(99.9)).isCloseTo(9990L * 1000L, within(9990L * 1000L / 64));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10000L * 1000L);
+    }
+
+    @Test
+    public void testBuckets() {
+        // Exact for small values
+        for (long value = 0; value < 128; value++) {
+            assertThat(LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value))).isEqualTo(value);
+        }
+        long previousHighest = -1;
+        for (int index = 0; index < LatencyHistogram.indexOf(Long.MAX_VALUE >>> 2); index++) {
+            final long highest = LatencyHistogram.highestValueOf(index);
+            assertThat(LatencyHistogram.indexOf(highest)).isEqualTo(index);
+            assertThat(LatencyHistogram.indexOf(previousHighest + 1)).isEqualTo(index);
+            previousHighest = highest;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LoadGeneratorTest {
+    private StubWebHdfsServer webHdfsServer;
+
+    @Before
+    public void setUp() throws Exception {
+        webHdfsServer = new StubWebHdfsServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        webHdfsServer.close();
+    }
+
+    private Config createConfig(Config.LoadConfig.Model model, Config.LoadStage... stages) {
+        final Config config = new Config();
+        config.setDefaultUsername("foo");
+        config.setWebHdfsServices(new Config.WebHdfsService[]{
+                Config.WebHdfsService.of(null, null, webHdfsServer.getKnoxUrl(), "/", "/tmp")});
+        config.getLoad().setModel(model);
+        config.getLoad().setConcurrency(4);
+        config.getLoad().setWarmup(1500); // Covers opening sessions and class loading
+        config.getLoad().setStages(stages);
+        return config;
+    }
+
+    @Test
+    public void testOpenModel() throws InterruptedException {
+        LoadGenerator loadGenerator = new LoadGenerator(createConfig(Config.LoadConfig.Model.OPEN,
+                Config.LoadStage.of(500, 40), Config.LoadStage.of(500, 80)));
+        loadGenerator.run();
+
+        // 20 requests at 40/s, and about 30 requests ramping to 80/s. Exact counts are verified by testSchedule,
+        // tolerating requests not completing in time on a slow build machine
+        final LatencyHistogram[] stageLatencies = loadGenerator.getStageLatencies();
+        assertThat(stageLatencies[0].getCount()).isBetween(10L, 21L);
+        assertThat(stageLatencies[1].getCount()).isBetween(15L, 33L);
+        assertThat(loadGenerator.getStageErrors(0)).isZero();
+        assertThat(loadGenerator.getStageErrors(1)).isZero();
+        // Round robin over both status paths
+        final LatencyHistogram[] targetLatencies = loadGenerator.getTargetLatencies();
+        assertThat(targetLatencies).hasSize(2);
+        assertThat(targetLatencies[0].getCount() + targetLatencies[1].getCount())
+                .isEqualTo(stageLatencies[0].getCount() + stageLatencies[1].getCount());
+        assertThat(targetLatencies[0].getCount()).isPositive();
+        assertThat(targetLatencies[1].getCount()).isPositive();
+
+        StringWriter report = new StringWriter();
+        loadGenerator.writeReport(report);
+        assertThat(report.toString())
+                .contains("model: OPEN, concurrency: 4, warmup: 1500ms, targets: 2")
+                .contains("corrected for coordinated omission")
+                .contains("40.0->80.0")
+                .contains("webhdfs_status " + webHdfsServer.getKnoxUrl() + " foo /tmp");
+    }
+
+    @Test
+    public void testClosedModel() throws InterruptedException {
+        LoadGenerator loadGenerator = new LoadGenerator(createConfig(Config.LoadConfig.Model.CLOSED,
+                Config.LoadStage.of(500, 0)));
+        loadGenerator.run();
+
+        // Unthrottled, as fast as the callers can
+        assertThat(loadGenerator.getStageLatencies()[0].getCount()).isPositive();
+        assertThat(loadGenerator.getStageErrors(0)).isZero();
+        StringWriter report = new StringWriter();
+        loadGenerator.writeReport(report);
+        assertThat(report.toString()).contains("not corrected for coordinated omission");
+    }
+
+    @Test
+    public void testSchedule() {
+        final Config.LoadConfig loadConfig = createConfig(Config.LoadConfig.Model.OPEN,
+                Config.LoadStage.of(500, 40), Config.LoadStage.of(500, 80)).getLoad();
+        final AtomicLong nanoTime = new AtomicLong(1000L);
+        final LoadGenerator.Schedule schedule = new LoadGenerator.Schedule(loadConfig, nanoTime::get);
+        schedule.start();
+        assertThat(schedule.getRemainingNs()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(2500));
+
+        final int[] slotsByStage = new int[3];
+        long slot;
+        while ((slot = schedule.nextSlot()) != LoadGenerator.NO_SLOT) {
+            slotsByStage[schedule.stageOf(slot) + 1]++;
+        }
+        // 60 warm up requests at 40/s, 20 requests at 40/s, and 30 requests ramping to 80/s
+        assertThat(slotsByStage).containsExactly(60, 20, 30);
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(2000));
+        assertThat(schedule.getRemainingNs()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void testRequestTimeout() throws InterruptedException {
+        webHdfsServer.setTrickleStatusMs(5000); // Response never times out reading
+        final Config config = createConfig(Config.LoadConfig.Model.OPEN, Config.LoadStage.of(500, 4));
+        config.setTimeout(500);
+        config.getLoad().setWarmup(0);
+        LoadGenerator loadGenerator = new LoadGenerator(config);
+        final long startNs = System.nanoTime();
+        loadGenerator.run();
+
+        // Cancelled after timeout, counting as errors
+        final LatencyHistogram latencies = loadGenerator.getStageLatencies()[0];
+        assertThat(latencies.getCount()).isEqualTo(2);
+        assertThat(loadGenerator.getStageErrors(0)).isEqualTo(2);
+        assertThat(latencies.getMax()).isLessThan(TimeUnit.MILLISECONDS.toMicros(3000));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)).isLessThan(4000L);
+    }
+
+    @Test
+    public void testUnthrottledOpenModel() {
+        assertThatThrownBy(() -> new LoadGenerator(createConfig(Config.LoadConfig.Model.OPEN,
+                Config.LoadStage.of(500, 0))))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
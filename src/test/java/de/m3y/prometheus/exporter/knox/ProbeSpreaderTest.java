@@ -0,0 +1,73 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProbeSpreaderTest {
+    private static List<List<String>> targets(String gateway, int count) {
+        final List<List<String>> targets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            targets.add(Arrays.asList("webhdfs_status", gateway, "foo", "/path" + i));
+        }
+        return targets;
+    }
+
+    @Test
+    public void testDisabled() {
+        final Map<List<String>, Long> offsets = ProbeSpreader.computeOffsets(targets("https://knox-a", 3),
+                new Config.ProbeSpreadingConfig());
+        assertThat(offsets).hasSize(3);
+        assertThat(offsets.values()).containsOnly(0L);
+    }
+
+    @Test
+    public void testSpreadPerTarget() {
+        final List<List<String>> targets = targets("https://knox-a", 100);
+        final Config.ProbeSpreadingConfig config = Config.ProbeSpreadingConfig.of(10000, 0);
+        final Map<List<String>, Long> offsets = ProbeSpreader.computeOffsets(targets, config);
+        assertThat(offsets.values()).allMatch(offset -> offset >= 0 && offset < 10000);
+        // Spread, rather than a burst
+        assertThat(offsets.values().stream().distinct().count()).isGreaterThan(90);
+        assertThat(offsets.values().stream().filter(offset -> offset < 5000).count()).isBetween(30L, 70L);
+
+        // Deterministic, independent of order and other targets
+        final List<List<String>> reordered = new ArrayList<>(targets.subList(0, 50));
+        Collections.reverse(reordered);
+        final Map<List<String>, Long> reorderedOffsets = ProbeSpreader.computeOffsets(reordered, config);
+        for (List<String> target : reordered) {
+            assertThat(reorderedOffsets.get(target)).isEqualTo(offsets.get(target));
+        }
+    }
+
+    @Test
+    public void testGatewayStagger() {
+        final List<List<String>> targets = new ArrayList<>(targets("https://knox-a", 4));
+        targets.addAll(targets("https://knox-b", 2));
+        final Map<List<String>, Long> offsets = ProbeSpreader.computeOffsets(targets,
+                Config.ProbeSpreadingConfig.of(10000, 2000));
+        assertThat(offsets.values()).allMatch(offset -> offset >= 0 && offset < 10000);
+
+        // Evenly spaced per gateway
+        final List<Long> gatewayA = targets.subList(0, 4).stream().map(offsets::get).sorted()
+                .collect(Collectors.toList());
+        for (int i = 1; i < gatewayA.size(); i++) {
+            assertThat(gatewayA.get(i) - gatewayA.get(i - 1)).isEqualTo(500L);
+        }
+        final List<Long> gatewayB = targets.subList(4, 6).stream().map(offsets::get).sorted()
+                .collect(Collectors.toList());
+        assertThat(gatewayB.get(1) - gatewayB.get(0)).isEqualTo(1000L);
+
+        // Stagger larger than window is limited to the window
+        final Map<List<String>, Long> limited = ProbeSpreader.computeOffsets(targets("https://knox-a", 4),
+                Config.ProbeSpreadingConfig.of(1000, 5000));
+        assertThat(limited.values()).containsExactlyInAnyOrder(0L, 250L, 500L, 750L);
+    }
+}
@@ -0,0 +1,47 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Summary;
+import org.junit.Test;
+
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.assertThat;
+import static de.m3y.prometheus.assertj.MetricFamilySamplesAssert.labelValues;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SeriesRegistryTest {
+    private static final List<String> TARGET_A = Arrays.asList("webhdfs_status", "https://localhost", "foo", "/a");
+    private static final List<String> TARGET_B = Arrays.asList("webhdfs_status", "https://localhost", "foo", "/b");
+
+    private final Counter counter = Counter.build()
+            .name("test_total").help("test").labelNames("target", "status").create();
+    private final Summary summary = Summary.build()
+            .name("test_duration").help("test").labelNames("uri").create();
+
+    @Test
+    public void testRetainTargets() {
+        SeriesRegistry registry = new SeriesRegistry();
+        registry.labels(counter, TARGET_A, "a", "SUCCESS").inc();
+        registry.labels(counter, TARGET_A, "a", "ERROR_OTHER").inc();
+        registry.labels(counter, TARGET_B, "b", "SUCCESS").inc();
+        // Shared by both targets
+        registry.labels(summary, TARGET_A, "https://localhost").observe(1);
+        registry.labels(summary, TARGET_B, "https://localhost").observe(1);
+        assertThat(registry.size()).isEqualTo(4);
+
+        assertThat(registry.retainTargets(Collections.singletonList(TARGET_B))).isEqualTo(2);
+        assertThat(registry.size()).isEqualTo(2);
+        assertThat(counter.collect().get(0)).hasTypeOfCounter()
+                .hasSampleValue(labelValues("b", "SUCCESS"), v -> v.isEqualTo(1.0));
+        assertThat(counter.collect().get(0).samples).noneMatch(sample -> sample.labelValues.contains("a"));
+        assertThat(summary.collect().get(0).samples).isNotEmpty(); // Still used by target B
+
+        assertThat(registry.retainTargets(Collections.emptyList())).isEqualTo(2);
+        assertThat(registry.size()).isZero();
+        assertThat(counter.collect().get(0).samples).isEmpty();
+        assertThat(summary.collect().get(0).samples).isEmpty();
+    }
+}
@@ -0,0 +1,170 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ShardManagerTest {
+    private static final String[] PEERS = {"http://exporter-0:7123", "http://exporter-1:7123", "http://exporter-2:7123"};
+    private static final int TARGETS = 3000;
+
+    private final List<ShardManager> shardManagers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        shardManagers.forEach(ShardManager::shutdown);
+    }
+
+    private ShardManager[] createShardManagers(int replicationFactor) {
+        ShardManager[] instances = new ShardManager[PEERS.length];
+        for (int i = 0; i < PEERS.length; i++) {
+            Config.ShardingConfig shardingConfig = new Config.ShardingConfig();
+            shardingConfig.setPeers(PEERS);
+            shardingConfig.setShardIndex(i);
+            shardingConfig.setReplicationFactor(replicationFactor);
+            shardingConfig.setHealthCheckInterval(0); // Health marked by test
+            instances[i] = new ShardManager();
+            instances[i].configure(shardingConfig);
+            shardManagers.add(instances[i]);
+        }
+        return instances;
+    }
+
+    private static String target(int i) {
+        return "webhdfs_status|https://localhost:8443/gateway/default|foo|/tmp/" + i;
+    }
+
+    @Test
+    public void testDisabled() {
+        ShardManager shardManager = new ShardManager();
+        shardManagers.add(shardManager);
+        shardManager.configure(new Config.ShardingConfig());
+        assertThat(shardManager.isEnabled()).isFalse();
+        assertThat(shardManager.owns(target(0))).isTrue();
+        assertThat(shardManager.getHealthyPeerCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInvalidShardIndex() {
+        Config.ShardingConfig shardingConfig = new Config.ShardingConfig();
+        shardingConfig.setPeers(PEERS);
+        shardingConfig.setShardIndex(PEERS.length);
+        assertThatThrownBy(shardingConfig::validate).isInstanceOf(IllegalArgumentException.class);
+
+        // Keeps previous config
+        ShardManager shardManager = new ShardManager();
+        shardManagers.add(shardManager);
+        shardManager.configure(shardingConfig);
+        assertThat(shardManager.isEnabled()).isFalse();
+        assertThat(shardManager.owns(target(0))).isTrue();
+    }
+
+    @Test
+    public void testEvenSplit() {
+        ShardManager[] instances = createShardManagers(1);
+        int[] owned = new int[instances.length];
+        for (int t = 0; t < TARGETS; t++) {
+            int owners = 0;
+            for (int i = 0; i < instances.length; i++) {
+                if (instances[i].owns(target(t))) {
+                    owners++;
+                    owned[i]++;
+                }
+            }
+            assertThat(owners).as("owners of target %d", t).isEqualTo(1);
+        }
+        for (int count : owned) {
+            assertThat(count).isBetween(TARGETS / 3 * 9 / 10, TARGETS / 3 * 11 / 10);
+        }
+    }
+
+    @Test
+    public void testReplicationFactor() {
+        ShardManager[] instances = createShardManagers(2);
+        int[] owned = new int[instances.length];
+        for (int t = 0; t < TARGETS; t++) {
+            int owners = 0;
+            for (int i = 0; i < instances.length; i++) {
+                if (instances[i].owns(target(t))) {
+                    owners++;
+                    owned[i]++;
+                }
+            }
+            assertThat(owners).as("owners of target %d", t).isEqualTo(2);
+        }
+        for (int count : owned) {
+            assertThat(count).isBetween(TARGETS * 2 / 3 * 9 / 10, TARGETS * 2 / 3 * 11 / 10);
+        }
+    }
+
+    @Test
+    public void testFailoverMovesOnlyTargetsOfFailedPeer() {
+        ShardManager[] instances = createShardManagers(1);
+        boolean[][] ownedBefore = new boolean[instances.length][TARGETS];
+        for (int t = 0; t < TARGETS; t++) {
+            for (int i = 0; i < instances.length; i++) {
+                ownedBefore[i][t] = instances[i].owns(target(t));
+            }
+        }
+
+        // Peer 2 stops answering health checks, below threshold nothing moves
+        instances[0].markPeerHealth(2, false);
+        instances[1].markPeerHealth(2, false);
+        assertThat(instances[0].getHealthyPeerCount()).isEqualTo(3);
+        instances[0].markPeerHealth(2, false);
+        instances[1].markPeerHealth(2, false);
+        assertThat(instances[0].getHealthyPeerCount()).isEqualTo(2);
+        assertThat(instances[1].getHealthyPeerCount()).isEqualTo(2);
+
+        int moved = 0;
+        int[] owned = new int[2];
+        for (int t = 0; t < TARGETS; t++) {
+            boolean owned0 = instances[0].owns(target(t));
+            boolean owned1 = instances[1].owns(target(t));
+            assertThat(owned0 ^ owned1).as("single owner of target %d", t).isTrue();
+            if (ownedBefore[2][t]) {
+                moved++;
+            } else {
+                // Targets of healthy peers stay
+                assertThat(owned0).isEqualTo(ownedBefore[0][t]);
+                assertThat(owned1).isEqualTo(ownedBefore[1][t]);
+            }
+            owned[0] += owned0 ? 1 : 0;
+            owned[1] += owned1 ? 1 : 0;
+        }
+        assertThat(moved).isBetween(TARGETS / 3 * 9 / 10, TARGETS / 3 * 11 / 10);
+        for (int count : owned) {
+            assertThat(count).isBetween(TARGETS / 2 * 9 / 10, TARGETS / 2 * 11 / 10);
+        }
+
+        // Peer recovers, and gets back its targets
+        instances[0].markPeerHealth(2, true);
+        assertThat(instances[0].getHealthyPeerCount()).isEqualTo(3);
+        for (int t = 0; t < TARGETS; t++) {
+            assertThat(instances[0].owns(target(t))).isEqualTo(ownedBefore[0][t]);
+        }
+    }
+
+    @Test
+    public void testCheckPeers() {
+        Config.ShardingConfig shardingConfig = new Config.ShardingConfig();
+        // Nothing listens on port 1
+        shardingConfig.setPeers(new String[]{"http://localhost:1", "http://localhost:1"});
+        shardingConfig.setShardIndex(0);
+        shardingConfig.setHealthCheckInterval(0);
+        shardingConfig.setUnhealthyThreshold(1);
+        ShardManager shardManager = new ShardManager();
+        shardManagers.add(shardManager);
+        shardManager.configure(shardingConfig);
+        assertThat(shardManager.getHealthyPeerCount()).isEqualTo(2);
+
+        shardManager.checkPeers();
+        assertThat(shardManager.getHealthyPeerCount()).isEqualTo(1);
+        assertThat(shardManager.owns(target(0))).isTrue();
+    }
+}
@@ -0,0 +1,28 @@
+package de.m3y.prometheus.exporter.knox;
+
+/**
+ * Action completing immediately with a fixed status, for testing the collect path without backends.
+ */
+class StubAction extends KnoxCollector.AbstractBaseAction {
+    private final Status result;
+
+    /**
+     * @param param  the action parameter label, eg a path.
+     * @param result the status of each run.
+     */
+    StubAction(String param, Status result) {
+        super("webhdfs_status", "https://localhost:8443/gateway/default", "foo", param, 1000);
+        this.result = result;
+    }
+
+    @Override
+    boolean perform() {
+        setLabelStatus(result);
+        return result == Status.SUCCESS;
+    }
+
+    @Override
+    public void cancel() {
+        // Nothing to cancel
+    }
+}
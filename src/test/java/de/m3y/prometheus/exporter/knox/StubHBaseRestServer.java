@@ -0,0 +1,183 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Stand-in for HBase REST behind a Knox gateway, storing rows of any table in memory.
+ * <p>
+ * Supports row get and put (one value per row), and stateful scanners returning one cell per row,
+ * without authentication.
+ */
+class StubHBaseRestServer implements AutoCloseable {
+    private static final String HBASE_PATH = "/gateway/default/hbase";
+
+    private final Server server = new Server(0);
+    // Row values by row key
+    private final NavigableMap<String, String> rows = new ConcurrentSkipListMap<>();
+    private final Map<String, Iterator<Map.Entry<String, String>>> scanners = new ConcurrentHashMap<>();
+    private final Map<String, Integer> scannerBatches = new ConcurrentHashMap<>();
+    private final AtomicInteger scannerIds = new AtomicInteger();
+
+    private class HBaseRestServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            final String[] path = req.getPathInfo().split("/"); // "", table, row or "scanner", column or id
+            if ("scanner".equals(path[2])) {
+                final Iterator<Map.Entry<String, String>> scanner = scanners.get(path[3]);
+                if (null == scanner) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                final List<Map.Entry<String, String>> batch = new ArrayList<>();
+                for (int i = 0; i < scannerBatches.get(path[3]) && scanner.hasNext(); i++) {
+                    batch.add(scanner.next());
+                }
+                if (batch.isEmpty()) {
+                    resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    return;
+                }
+                writeCellSet(resp, batch);
+            } else {
+                final String value = rows.get(path[2]);
+                if (null == value) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                writeCellSet(resp, rows.subMap(path[2], true, path[2], true).entrySet());
+            }
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            // Store rows, as in <CellSet><Row key=".."><Cell column="..">value</Cell></Row></CellSet>
+            final NodeList rowElements = parse(req).getElementsByTagName("Row");
+            for (int i = 0; i < rowElements.getLength(); i++) {
+                final Element row = (Element) rowElements.item(i);
+                final Element cell = (Element) row.getElementsByTagName("Cell").item(0);
+                rows.put(decode(row.getAttribute("key")), decode(cell.getTextContent()));
+            }
+        }
+
+        @Override
+        protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            // Create scanner, as in <Scanner startRow=".." endRow=".." batch=".."/>
+            final Element scanner = parse(req);
+            final String startRow = decode(scanner.getAttribute("startRow"));
+            final String endRow = decode(scanner.getAttribute("endRow"));
+            final String id = String.valueOf(scannerIds.incrementAndGet());
+            scanners.put(id, (endRow.isEmpty() ? rows.tailMap(startRow, true)
+                    : rows.subMap(startRow, true, endRow, false)).entrySet().iterator());
+            scannerBatches.put(id, scanner.hasAttribute("batch") ? Integer.parseInt(scanner.getAttribute("batch"))
+                    : 100);
+            resp.setStatus(HttpServletResponse.SC_CREATED);
+            resp.setHeader("Location", req.getRequestURL() + "/" + id);
+        }
+
+        @Override
+        protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            final String[] path = req.getPathInfo().split("/");
+            if (null == scanners.remove(path[3])) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+        }
+    }
+
+    StubHBaseRestServer() throws Exception {
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new HBaseRestServlet()), HBASE_PATH + "/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    /**
+     * @return the Knox gateway URL of the stub.
+     */
+    String getKnoxUrl() {
+        return "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                + "/gateway/default";
+    }
+
+    /**
+     * @return the stored row values by row key.
+     */
+    NavigableMap<String, String> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the ids of open scanners.
+     */
+    Iterable<String> getScannerIds() {
+        return scanners.keySet();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping stub server", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can not stop stub server", e);
+        }
+    }
+
+    private static void writeCellSet(HttpServletResponse resp, Iterable<Map.Entry<String, String>> entries)
+            throws IOException {
+        final StringBuilder json = new StringBuilder("{\"Row\":[");
+        for (Map.Entry<String, String> entry : entries) {
+            if (json.charAt(json.length() - 1) != '[') {
+                json.append(',');
+            }
+            json.append("{\"key\":\"").append(encode(entry.getKey()))
+                    .append("\",\"Cell\":[{\"column\":\"").append(encode("cf:q"))
+                    .append("\",\"timestamp\":1,\"$\":\"").append(encode(entry.getValue())).append("\"}]}");
+        }
+        json.append("]}");
+        resp.setContentType("application/json");
+        resp.getWriter().write(json.toString());
+    }
+
+    private static Element parse(HttpServletRequest req) throws IOException {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(req.getInputStream())
+                    .getDocumentElement();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String encode(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+}
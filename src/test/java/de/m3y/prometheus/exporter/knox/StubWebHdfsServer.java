@@ -0,0 +1,254 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Stand-in for WebHDFS behind a Knox gateway, storing files in memory.
+ * <p>
+ * Supports file status, create (redirecting to a "DataNode" like WebHDFS), open and delete.
+ * Optionally requires authentication like Knox with sessions: A request with Basic credentials logs in
+ * and sets a session cookie, a request without credentials or valid session cookie is challenged.
+ */
+class StubWebHdfsServer implements AutoCloseable {
+    private static final String WEBHDFS_PATH = "/gateway/default/webhdfs/v1";
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final Server server = new Server(0);
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private volatile boolean corruptReads;
+    private volatile boolean sessionAuth;
+    private volatile long trickleStatusMs;
+    private volatile long trickleReadMs;
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger challenges = new AtomicInteger();
+
+    private class WebHdfsServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            if (!sessionAuth || authenticate(req, resp)) {
+                super.service(req, resp);
+            }
+        }
+
+        private boolean authenticate(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            if (null != req.getCookies()) {
+                for (Cookie cookie : req.getCookies()) {
+                    if (SESSION_COOKIE.equals(cookie.getName()) && sessions.contains(cookie.getValue())) {
+                        return true;
+                    }
+                }
+            }
+            final String authorization = req.getHeader("Authorization");
+            if (null != authorization && authorization.startsWith("Basic ")) {
+                logins.incrementAndGet();
+                final String session = UUID.randomUUID().toString();
+                sessions.add(session);
+                final Cookie cookie = new Cookie(SESSION_COOKIE, session);
+                cookie.setPath("/gateway/default");
+                resp.addCookie(cookie);
+                return true;
+            }
+            challenges.incrementAndGet();
+            resp.setHeader("WWW-Authenticate", "BASIC realm=\"application\"");
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            final String op = req.getParameter("op");
+            if ("GETFILESTATUS".equals(op)) {
+                resp.setContentType("application/json");
+                trickle(resp);
+                resp.getWriter().write("{\"FileStatus\":{\"type\":\"DIRECTORY\"}}");
+            } else if ("OPEN".equals(op)) {
+                final byte[] content = files.get(req.getPathInfo());
+                if (null == content) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                final byte[] served = content.clone();
+                if (corruptReads && served.length > 0) {
+                    served[served.length - 1]++;
+                }
+                resp.setContentType("application/octet-stream");
+                resp.setContentLength(served.length);
+                trickle(resp, served);
+            } else {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported op " + op);
+            }
+        }
+
+        /**
+         * Writes a whitespace every 100ms, so that the client never hits a read timeout.
+         */
+        private void trickle(HttpServletResponse resp) throws IOException {
+            final long endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(trickleStatusMs);
+            while (System.nanoTime() < endNs) {
+                resp.getWriter().write(' ');
+                resp.flushBuffer();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Writes the content in chunks every 100ms, spread across the trickle read duration.
+         */
+        private void trickle(HttpServletResponse resp, byte[] content) throws IOException {
+            final int chunks = (int) Math.max(1, trickleReadMs / 100);
+            final int chunkSize = (content.length + chunks - 1) / chunks;
+            for (int offset = 0; offset < content.length; offset += chunkSize) {
+                if (offset > 0) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                resp.getOutputStream().write(content, offset, Math.min(chunkSize, content.length - offset));
+                resp.flushBuffer();
+            }
+        }
+
+        @Override
+        protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            if (!"CREATE".equals(req.getParameter("op"))) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            } else if (null == req.getParameter("datanode")) {
+                // Like the NameNode, redirecting to a DataNode
+                resp.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+                resp.setHeader("Location", req.getRequestURL() + "?" + req.getQueryString() + "&datanode=true");
+            } else {
+                files.put(req.getPathInfo(), readAll(req.getInputStream()));
+                resp.setStatus(HttpServletResponse.SC_CREATED);
+            }
+        }
+
+        @Override
+        protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            final boolean deleted = null != files.remove(req.getPathInfo());
+            resp.setContentType("application/json");
+            resp.getWriter().write("{\"boolean\":" + deleted + "}");
+        }
+    }
+
+    StubWebHdfsServer() throws Exception {
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new WebHdfsServlet()), WEBHDFS_PATH + "/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    /**
+     * @return the Knox gateway URL of the stub.
+     */
+    String getKnoxUrl() {
+        return "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                + "/gateway/default";
+    }
+
+    /**
+     * @return the stored files by path.
+     */
+    Map<String, byte[]> getFiles() {
+        return files;
+    }
+
+    /**
+     * @param corruptReads true, if changing the content of read files.
+     */
+    void setCorruptReads(boolean corruptReads) {
+        this.corruptReads = corruptReads;
+    }
+
+    /**
+     * @param sessionAuth true, if requiring authentication by credentials or session cookie.
+     */
+    void setSessionAuth(boolean sessionAuth) {
+        this.sessionAuth = sessionAuth;
+    }
+
+    /**
+     * @param trickleStatusMs the duration of slowly writing a file status response, or 0 for writing right away.
+     */
+    void setTrickleStatusMs(long trickleStatusMs) {
+        this.trickleStatusMs = trickleStatusMs;
+    }
+
+    /**
+     * @param trickleReadMs the duration of slowly writing the content of a read file, or 0 for writing right away.
+     */
+    void setTrickleReadMs(long trickleReadMs) {
+        this.trickleReadMs = trickleReadMs;
+    }
+
+    /**
+     * @return the number of requests authenticated with credentials.
+     */
+    int getLogins() {
+        return logins.get();
+    }
+
+    /**
+     * @return the number of requests challenged for credentials.
+     */
+    int getChallenges() {
+        return challenges.get();
+    }
+
+    /**
+     * Invalidates all sessions, like a gateway restart.
+     */
+    void invalidateSessions() {
+        sessions.clear();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping stub server", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can not stop stub server", e);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,159 @@
+package de.m3y.prometheus.exporter.knox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.http.HttpHost;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.knox.gateway.shell.BasicResponse;
+import org.apache.knox.gateway.shell.ClientContext;
+import org.apache.knox.gateway.shell.KnoxShellException;
+import org.apache.knox.gateway.shell.hdfs.Hdfs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TimedKnoxSessionTest {
+    private StubWebHdfsServer webHdfsServer;
+
+    @Before
+    public void setUp() throws Exception {
+        webHdfsServer = new StubWebHdfsServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        webHdfsServer.close();
+    }
+
+    @Test
+    public void testPhaseDurations() throws Exception {
+        try (TimedKnoxSession session = new TimedKnoxSession(
+                ClientContext.with("foo", "bar", webHdfsServer.getKnoxUrl()))) {
+            for (TimedKnoxSession.Phase phase : TimedKnoxSession.getPhases()) {
+                assertThat(session.getPhaseDurationNs(phase)).isEqualTo(TimedKnoxSession.NOT_OCCURRED);
+            }
+
+            // New connection
+            try (BasicResponse response = Hdfs.status(session).file("/").now()) {
+                assertThat(response.getStatusCode()).isEqualTo(200);
+            }
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.RESOLVE)).isNotNegative();
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.CONNECT)).isNotNegative();
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.TLS))
+                    .isEqualTo(TimedKnoxSession.NOT_OCCURRED); // Plain HTTP
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.PROCESSING)).isNotNegative();
+
+            // Reused connection
+            session.resetPhaseDurations();
+            try (BasicResponse response = Hdfs.status(session).file("/").now()) {
+                assertThat(response.getStatusCode()).isEqualTo(200);
+            }
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.RESOLVE))
+                    .isEqualTo(TimedKnoxSession.NOT_OCCURRED);
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.CONNECT))
+                    .isEqualTo(TimedKnoxSession.NOT_OCCURRED);
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.PROCESSING)).isNotNegative();
+        }
+    }
+
+    @Test
+    public void testSessionSetUpLikeKnoxSession() throws Exception {
+        webHdfsServer.setSessionAuth(true);
+        final ClientContext clientContext = ClientContext.with("foo", "bar", webHdfsServer.getKnoxUrl());
+        try (TimedKnoxSession session = new TimedKnoxSession(clientContext)) {
+            assertThat(session.base()).isEqualTo(webHdfsServer.getKnoxUrl());
+            // Sends credentials preemptively, without being challenged
+            assertStatus(session, 200);
+            assertThat(webHdfsServer.getLogins()).isEqualTo(1);
+            assertThat(webHdfsServer.getChallenges()).isZero();
+        }
+
+        // Without credentials
+        try (TimedKnoxSession session = new TimedKnoxSession(
+                ClientContext.with(webHdfsServer.getKnoxUrl()))) {
+            assertThatThrownBy(() -> Hdfs.status(session).file("/").now())
+                    .isInstanceOf(KnoxShellException.class)
+                    .hasMessageContaining("401");
+            assertThat(webHdfsServer.getChallenges()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testAuthCookieReuse() throws Exception {
+        webHdfsServer.setSessionAuth(true);
+        final ClientContext clientContext = ClientContext.with("foo", "bar", webHdfsServer.getKnoxUrl());
+        final KnoxAuthSession authSession = new KnoxAuthSession(Config.AuthCookieConfig.of(true, 60000));
+        try (TimedKnoxSession session = new TimedKnoxSession(clientContext, authSession);
+             TimedKnoxSession otherSession = new TimedKnoxSession(clientContext, authSession)) {
+            // Authenticates with credentials, as no cookie yet
+            assertStatus(session, 200);
+            assertThat(webHdfsServer.getLogins()).isEqualTo(1);
+            assertThat(session.getAuthenticationCount(KnoxAuthSession.Reason.NO_COOKIE)).isEqualTo(1);
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.AUTH)).isNotNegative();
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.PROCESSING))
+                    .isEqualTo(TimedKnoxSession.NOT_OCCURRED);
+
+            // Another session of the same gateway and user reuses the cookie
+            assertStatus(otherSession, 200);
+            assertThat(webHdfsServer.getLogins()).isEqualTo(1);
+            for (KnoxAuthSession.Reason reason : TimedKnoxSession.getAuthReasons()) {
+                assertThat(otherSession.getAuthenticationCount(reason)).isZero();
+            }
+            assertThat(otherSession.getPhaseDurationNs(TimedKnoxSession.Phase.AUTH))
+                    .isEqualTo(TimedKnoxSession.NOT_OCCURRED);
+            assertThat(otherSession.getPhaseDurationNs(TimedKnoxSession.Phase.PROCESSING)).isNotNegative();
+
+            // Knox rejects the cookie, eg after a restart, and the challenged request gets retried with credentials
+            webHdfsServer.invalidateSessions();
+            assertStatus(session, 200);
+            assertThat(webHdfsServer.getLogins()).isEqualTo(2);
+            assertThat(session.getAuthenticationCount(KnoxAuthSession.Reason.REJECTED)).isEqualTo(1);
+            assertThat(session.getAuthenticationCount(KnoxAuthSession.Reason.NO_COOKIE)).isZero();
+            assertThat(session.getPhaseDurationNs(TimedKnoxSession.Phase.AUTH)).isNotNegative();
+        }
+
+        // Expired right away
+        try (TimedKnoxSession session = new TimedKnoxSession(clientContext,
+                new KnoxAuthSession(Config.AuthCookieConfig.of(true, 0)))) {
+            assertStatus(session, 200);
+            assertStatus(session, 200);
+            assertThat(webHdfsServer.getLogins()).isEqualTo(4);
+            assertThat(session.getAuthenticationCount(KnoxAuthSession.Reason.EXPIRED)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testCheckSupported() {
+        TimedKnoxSession.checkSupported();
+
+        // Fails fast with a clear error, eg on a changed gateway-shell version
+        assertThatThrownBy(() -> TimedKnoxSession.getSessionField("hostname", HttpHost.class))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("KnoxSession.hostname");
+        assertThatThrownBy(() -> TimedKnoxSession.getSessionField("host", BasicHttpContext.class))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("KnoxSession.host of type " + BasicHttpContext.class.getName());
+    }
+
+    @Test
+    public void testGetJwtExpiryMs() {
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        final String jwt = encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + '.'
+                + encoder.encodeToString("{\"sub\":\"foo\",\"aud\":[\"a\"],\"exp\":1600000000}"
+                .getBytes(StandardCharsets.UTF_8)) + ".c2lnbmF0dXJl";
+        assertThat(KnoxAuthSession.getJwtExpiryMs(jwt)).isEqualTo(1600000000000L);
+        assertThat(KnoxAuthSession.getJwtExpiryMs("3f1c7a9e-session-id")).isEqualTo(Long.MAX_VALUE);
+        assertThat(KnoxAuthSession.getJwtExpiryMs("not.a.jwt")).isEqualTo(Long.MAX_VALUE);
+    }
+
+    private static void assertStatus(TimedKnoxSession session, int statusCode) throws Exception {
+        session.resetPhaseDurations();
+        try (BasicResponse response = Hdfs.status(session).file("/").now()) {
+            assertThat(response.getStatusCode()).isEqualTo(statusCode);
+        }
+    }
+}
@@ -120,6 +120,43 @@ public class WebServerIT {
         assertThat(body).contains("Hive services");
         assertThat(body).contains("JDBC URL : jdbc:hive2://localhost:10000/default");
         assertThat(body).contains("Queries : [SELECT current_database()]");
+
+        assertThat(body).contains("Probe modules");
+        assertThat(body).contains("webhdfs : WEBHDFS_STATUS");
+    }
+
+    @Test
+    public void testProbeWithFailingBackend() throws Exception {
+        Response response = getResponse(exporterBaseUrl
+                + "/probe?module=webhdfs&target=https://localhost:8443/gateway/default");
+        assertThat(response.code()).isEqualTo(200);
+
+        String body = response.body().string();
+        assertThat(body).contains("probe_success 0.0");
+        assertThat(body).contains("probe_duration_seconds ");
+        assertThat(body).contains("knox_exporter_probe_status{action=\"webhdfs_status\",uri=\"https://localhost:8443/gateway/default\",user=\"foo\",param=\"/\",status=\"ERROR_OTHER\",} 1.0");
+        // Only probed target
+        assertThat(body).doesNotContain("knox_exporter_ops_duration_seconds");
+        assertThat(body).doesNotContain("jvm_memory_bytes_used");
+
+        response = getResponse(exporterBaseUrl + "/probe?module=hive&target=jdbc:hive2://localhost:10001/default");
+        assertThat(response.code()).isEqualTo(200);
+        body = response.body().string();
+        assertThat(body).contains("probe_success 0.0");
+        assertThat(body).contains("knox_exporter_probe_status{action=\"hive_query\",uri=\"jdbc:hive2://localhost:10001/default\",user=\"foo\",param=\"SELECT current_database()\",status=\"ERROR_OTHER\",} 1.0");
+
+        assertThat(getResponse(exporterBaseUrl + "/probe?module=unknown&target=https://localhost:8443").code())
+                .isEqualTo(400);
+        assertThat(getResponse(exporterBaseUrl + "/probe?module=webhdfs").code()).isEqualTo(400);
+        assertThat(getResponse(exporterBaseUrl + "/probe?module=webhdfs&target=https://other-host:8443/gateway")
+                .code()).isEqualTo(400);
+    }
+
+    @Test
+    public void testHealth() throws Exception {
+        Response response = getResponse(exporterBaseUrl + ShardManager.HEALTH_PATH);
+        assertThat(response.code()).isEqualTo(200);
+        assertThat(response.body().string()).isEqualTo("OK");
     }
 
     private Response getResponse(String url) throws IOException {